@@ -4,18 +4,30 @@ import core.BaseSequence;
 import core.dnarules.DNARule;
 import dnacoders.headercoders.PermutationCoder;
 import utils.lsh.LSH;
-import java.util.BitSet;
-import java.util.HashSet;
-import java.util.List;
-import java.util.Set;
-import java.util.function.Function;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.IntPredicate;
 import java.util.function.Predicate;
 
-public class DistanceCoder extends PermutationCoder {
+public class DistanceCoder extends PermutationCoder implements AutoCloseable {
 
     public static final int LARGE_K = 9;
 
+    private static final String SCORE_PROPERTY    = "score";
+    private static final String ERROR_PROPERTY    = "error";
+    private static final String DISTANCE_PROPERTY = "distance";
+
     private final LSH lsh;
+    private final DNARule rules;
+    private final float errorWeight;
+    private final float distanceWeight;
+    private final int epochSize;
+    private final ForkJoinPool epochPool;
+    private final Map<Long, Batch> arrivedBatches;
+    private long nextBatch;
+    private Epoch currentEpoch;
 
     /**
      * Creates an instance of DistanceCoder that optimizes a given DNA sequence by applying a number of permutations to it and returning that permuted DNA sequence that maximizes the score.
@@ -39,8 +51,31 @@ public class DistanceCoder extends PermutationCoder {
      * @param rules the DNA rules.
      */
     public DistanceCoder(boolean parallel, int permsCount, LSH lsh, DNARule rules, float errorWeight, float distanceWeight) {
-        super(parallel, permsCount, seq -> errorWeight * -rules.evalErrorProbability(seq) + distanceWeight * Math.min(distanceScore(seq, lsh, true), distanceScore(seq.complement(), lsh, true)));
+        this(parallel, permsCount, lsh, rules, errorWeight, distanceWeight, 0);
+    }
+
+    /**
+     * Creates an instance of DistanceCoder that optimizes a given DNA sequence by applying a number of permutations to it and returning that permuted DNA sequence that maximizes the score.
+     * @param parallel true to compute permutations in parallel, and false to compute them sequentially.
+     * @param permsCount the number of permutations.
+     * @param lsh the LSH instance to use for similarity checks.
+     * @param distanceWeight the weight for the distance computed by LSH.
+     * @param errorWeight the weight for the error by the DNA rules.
+     * @param rules the DNA rules.
+     * @param epochSize the number of DNA sequences that are optimized together by <Code>encodeBatch(long, BaseSequence[])</Code>. A value of 0 or less disables the epoch mode. In the epoch mode, the instance owns a thread pool that is shut down by <Code>close</Code>.
+     */
+    public DistanceCoder(boolean parallel, int permsCount, LSH lsh, DNARule rules, float errorWeight, float distanceWeight, int epochSize) {
+        super(parallel, permsCount, seq -> errorWeight * -rules.evalErrorProbability(seq) + distanceWeight * Math.min(distanceScore(seq, lsh), distanceScore(seq.complement(), lsh)));
         this.lsh = lsh;
+        this.rules = rules;
+        this.errorWeight = errorWeight;
+        this.distanceWeight = distanceWeight;
+        this.epochSize = epochSize;
+        // the epochs are optimized on their own pool, since the callers of encodeBatch block until their batch is optimized
+        this.epochPool = epochSize > 0 ? new ForkJoinPool() : null;
+        this.arrivedBatches = new HashMap<>();
+        this.nextBatch = 0L;
+        this.currentEpoch = new Epoch(CompletableFuture.completedFuture(null));
     }
 
     @Override
@@ -50,12 +85,155 @@ public class DistanceCoder extends PermutationCoder {
         return result;
     }
 
+    /**
+     * Optimizes the given batch of DNA sequences, e.g., the segments of a row. If the epoch mode is disabled, each DNA sequence is encoded by <Code>encode(BaseSequence)</Code>.
+     * Otherwise, the batches join the epochs in the order of their indices, regardless of the order in which they arrive, and an epoch is closed once it contains at least epochSize DNA sequences. Hence, the epochs and the results do not depend on thread timing.
+     * The DNA sequences of an epoch are optimized in parallel against the LSH that contains exactly the previous epochs. Afterwards, the distances to the preceding DNA sequences of the same epoch are resolved, and a closed epoch is inserted into the LSH at once.
+     * A batch only depends on the batches with smaller indices, so this method returns before its epoch is closed. The last epoch of a stream is closed by <Code>flush()</Code>.
+     * @param index the index of the batch in the stream, starting at 0 and without gaps.
+     * @param seqs the DNA sequences to optimize.
+     * @return the optimized DNA sequences in the same order as seqs.
+     */
+    public BaseSequence[] encodeBatch(long index, BaseSequence[] seqs) {
+        if (epochSize <= 0) {
+            BaseSequence[] result = new BaseSequence[seqs.length];
+            for (int i = 0; i < seqs.length; i++)
+                result[i] = encode(seqs[i]);
+
+            return result;
+        }
+
+        Batch batch = new Batch(seqs);
+        synchronized (this) {
+            if (index < nextBatch || arrivedBatches.putIfAbsent(index, batch) != null)
+                throw new RuntimeException("batch " + index + " was already encoded");
+
+            for (Batch next = arrivedBatches.remove(nextBatch); next != null; next = arrivedBatches.remove(nextBatch)) {
+                nextBatch++;
+                schedule(next);
+            }
+        }
+        try {
+            return batch.result.join();
+        }
+        catch (CompletionException e) {
+            throw new RuntimeException("failed optimizing epoch", e.getCause());
+        }
+    }
+
+    /**
+     * Closes the last epoch of the stream, waits until all epochs are inserted into the LSH, and resets the batch indices for the next stream.
+     * This method must be called after the last batch of a stream was encoded by <Code>encodeBatch(long, BaseSequence[])</Code>.
+     */
+    public void flush() {
+        if (epochSize <= 0)
+            return;
+
+        Epoch last;
+        synchronized (this) {
+            if (!arrivedBatches.isEmpty())
+                throw new RuntimeException("batch " + nextBatch + " is missing");
+
+            if (currentEpoch.size > 0)
+                close(currentEpoch);
+
+            last = currentEpoch;
+            nextBatch = 0L;
+        }
+        try {
+            last.snapshot.join();
+        }
+        catch (CompletionException e) {
+            throw new RuntimeException("failed optimizing epoch", e.getCause());
+        }
+    }
+
+    /**
+     * Shuts down the thread pool of the epoch mode. The epochs that were not flushed before are still optimized, but no further batches must be encoded.
+     */
+    @Override
+    public void close() {
+        if (epochPool != null)
+            epochPool.shutdown();
+    }
+
+    private void schedule(Batch batch) {
+        Epoch epoch = currentEpoch;
+        // the ranking waits for the previous epochs to be inserted, whereas the resolution runs in the order of the batches
+        CompletableFuture<List<List<BaseSequence>>> candidates = epoch.snapshot.thenApplyAsync(__ -> Arrays.stream(batch.seqs).parallel().map(this::rankedCandidates).toList(), epochPool);
+        CompletableFuture<BaseSequence[]> results = epoch.resolved.thenCombineAsync(candidates, (__, c) -> resolve(epoch, c), epochPool);
+        results.whenComplete((r, t) -> {
+            if (t != null)
+                batch.result.completeExceptionally(t);
+            else
+                batch.result.complete(r);
+        });
+        epoch.resolved = results;
+        epoch.size += batch.seqs.length;
+        if (epoch.size >= epochSize)
+            close(epoch);
+    }
+
+    private void close(Epoch epoch) {
+        CompletableFuture<Void> inserted = epoch.resolved.thenRunAsync(() -> lsh.insertAllSafe(epoch.results), epochPool);
+        currentEpoch = new Epoch(inserted);
+    }
+
+    private BaseSequence[] resolve(Epoch epoch, List<List<BaseSequence>> candidates) {
+        if (epoch.lsh == null)
+            epoch.lsh = lsh.emptyCopy();
+
+        BaseSequence[] results = new BaseSequence[candidates.size()];
+        for (int i = 0; i < results.length; i++) {
+            BaseSequence best = null;
+            float bestScore = Float.NEGATIVE_INFINITY;
+            for (BaseSequence candidate : candidates.get(i)) {
+                float score = candidate.getProperty(SCORE_PROPERTY);
+                // the distance to the epoch can only lower a candidate's score
+                if (score <= bestScore)
+                    break;
+
+                float epochDistance = Math.min(distanceScore(candidate, epoch.lsh), distanceScore(candidate.complement(), epoch.lsh));
+                float distance = candidate.getProperty(DISTANCE_PROPERTY);
+                if (epochDistance < distance)
+                    score = errorWeight * -candidate.<Float>getProperty(ERROR_PROPERTY) + distanceWeight * epochDistance;
+
+                if (score > bestScore) {
+                    best = candidate;
+                    bestScore = score;
+                }
+            }
+            best.putProperty(SCORE_PROPERTY, bestScore);
+            epoch.lsh.insert(best);
+            epoch.results.add(best);
+            results[i] = best;
+        }
+
+        return results;
+    }
+
+    private List<BaseSequence> rankedCandidates(BaseSequence seq) {
+        long seed = DNACoder.seed(seq);
+        List<BaseSequence> candidates = new ArrayList<>(permsCount);
+        for (int i = 0; i < permsCount; i++) {
+            BaseSequence candidate = candidate(seq, seed, i);
+            float error = rules.evalErrorProbability(candidate);
+            float distance = Math.min(distanceScore(candidate, lsh), distanceScore(candidate.complement(), lsh));
+            candidate.putProperty(ERROR_PROPERTY, error);
+            candidate.putProperty(DISTANCE_PROPERTY, distance);
+            candidate.putProperty(SCORE_PROPERTY, errorWeight * -error + distanceWeight * distance);
+            candidates.add(candidate);
+        }
+        candidates.sort(Comparator.comparing(candidate -> -candidate.<Float>getProperty(SCORE_PROPERTY)));
+        return candidates;
+    }
+
     public static float jaccardDistanceLowK(BitSet km1, BitSet km2) {
         BitSet intersectBitSet = (BitSet) km1.clone();
         intersectBitSet.and(km2);
-        km1.or(km2);
+        int intersection = intersectBitSet.cardinality();
 
-        return 1.0f - intersectBitSet.cardinality() / (float) km1.cardinality();
+        return 1.0f - intersection / (float) (km1.cardinality() + km2.cardinality() - intersection);
     }
 
     public static BitSet kmersJaccard(BaseSequence seq, int k) {
@@ -75,39 +253,124 @@ public class DistanceCoder extends PermutationCoder {
         return 1.0f - ((float) intersection.size() / union.size());
     }
 
+    /**
+     * Returns the minimum distance (or maximum similarity) of a BaseSequence to a collection of BaseSequence instances inserted into an LSH instance.
+     * This method is thread-safe and probes the LSH's default number of additional buckets per band.
+     * @param seq the BaseSequence to check.
+     * @param lsh the LSH instance that contains the collection of BaseSequence to check seq against.
+     * @return the minimum distance of seq to the BaseSequence instances in the LSH.
+     */
+    public static float distanceScore(BaseSequence seq, LSH lsh) {
+        return distanceScoreFilter(seq, lsh, __ -> true, lsh.getProbes());
+    }
+
     /**
      * Returns the minimum distance (or maximum similarity) of a BaseSequence to a collection of BaseSequence instances inserted into an LSH instance.
      * @param seq the BaseSequence to check.
      * @param lsh the LSH instance that contains the collection of BaseSequence to check seq against.
-     * @param safe true to do this operation thread-safe.
+     * @param probes the number of additional buckets the LSH probes per band (multi-probe LSH).
      * @return the minimum distance of seq to the BaseSequence instances in the LSH.
      */
-    public static float distanceScore(BaseSequence seq, LSH lsh, boolean safe) {
-        return distanceScoreFilter(seq, lsh, __ -> true, safe);
+    public static float distanceScore(BaseSequence seq, LSH lsh, int probes) {
+        return distanceScoreFilter(seq, lsh, __ -> true, probes);
     }
 
-    public static float distanceScoreExclusive(BaseSequence seq, LSH lsh, boolean safe) {
-        return distanceScoreFilter(seq, lsh, can -> seq != can, safe);
+    /**
+     * Returns the minimum distance of a BaseSequence that was inserted into an LSH instance to the other BaseSequence instances in that LSH, probing the LSH's default number of additional buckets per band (see <Code>distanceScoreExclusive(BaseSequence, LSH, int)</Code>).
+     * @param seq the BaseSequence to check.
+     * @param lsh the LSH instance that contains seq.
+     * @return the minimum distance of seq to the other BaseSequence instances in the LSH.
+     */
+    public static float distanceScoreExclusive(BaseSequence seq, LSH lsh) {
+        return distanceScoreExclusive(seq, lsh, lsh.getProbes());
     }
 
-    private static float distanceScoreFilter(BaseSequence seq, LSH lsh, Predicate<BaseSequence> filter, boolean safe) {
-        Set<BaseSequence> hits = safe ? lsh.similarSeqsSafe(seq) : lsh.similarSeqs(seq);
-        if (hits.isEmpty()) {
-            return 1.0f;
-        }
-        else {
-            int k = lsh.getK();
-            Function<BaseSequence, Float> distFunc;
+    /**
+     * Returns the minimum distance of a BaseSequence that was inserted into an LSH instance to the other BaseSequence instances in that LSH. Exactly one match equal to seq is skipped, such that seq is excluded even if the LSH holds a copy of it, e.g., when its sequences are memory-mapped.
+     * @param seq the BaseSequence to check.
+     * @param lsh the LSH instance that contains seq.
+     * @param probes the number of additional buckets the LSH probes per band (multi-probe LSH).
+     * @return the minimum distance of seq to the other BaseSequence instances in the LSH.
+     */
+    public static float distanceScoreExclusive(BaseSequence seq, LSH lsh, int probes) {
+        boolean[] skipped = {false};
+        return distanceScoreFilter(seq, lsh, can -> {
+            if (!skipped[0] && (can == seq || can.equals(seq))) {
+                skipped[0] = true;
+                return false;
+            }
+            return true;
+        }, probes);
+    }
+
+    /**
+     * Returns the minimum distance of a BaseSequence to the BaseSequence instances of an LSH instance whose ids pass a given filter, e.g., the DNA sequences that a merged LSH index took from other shards.
+     * @param seq the BaseSequence to check.
+     * @param lsh the LSH instance that contains the collection of BaseSequence to check seq against.
+     * @param probes the number of additional buckets the LSH probes per band (multi-probe LSH).
+     * @param idFilter the filter that accepts the ids of the BaseSequence instances to check seq against.
+     * @return the minimum distance of seq to the accepted BaseSequence instances in the LSH.
+     */
+    public static float distanceScore(BaseSequence seq, LSH lsh, int probes, IntPredicate idFilter) {
+        return distanceScoreFilter(seq, lsh, idFilter, __ -> true, probes);
+    }
+
+    private static float distanceScoreFilter(BaseSequence seq, LSH lsh, Predicate<BaseSequence> filter, int probes) {
+        return distanceScoreFilter(seq, lsh, __ -> true, filter, probes);
+    }
+
+    private static float distanceScoreFilter(BaseSequence seq, LSH lsh, IntPredicate idFilter, Predicate<BaseSequence> filter, int probes) {
+        int k = lsh.getK();
+        float[] min = {1.0f};
+        Object[] seqKmers = {null};
+        lsh.forEachSimilarId(seq, Integer.MAX_VALUE, probes, id -> {
+            if (!idFilter.test(id))
+                return;
+            BaseSequence can = lsh.getSeq(id);
+            if (!filter.test(can))
+                return;
+            float dist;
             if (k < LARGE_K) {
-                BitSet km1 = kmersJaccard(seq, k);
-                distFunc = can -> jaccardDistanceLowK(km1, kmersJaccard(can, k));
+                if (seqKmers[0] == null)
+                    seqKmers[0] = kmersJaccard(seq, k);
+                dist = jaccardDistanceLowK((BitSet) seqKmers[0], kmersJaccard(can, k));
             }
             else {
-                Set<BaseSequence> kmers = new HashSet<>(seq.kmers(k));
-                distFunc = can -> jaccardDistanceHighK(kmers, can.kmers(k));
+                if (seqKmers[0] == null)
+                    seqKmers[0] = new HashSet<>(seq.kmers(k));
+                @SuppressWarnings("unchecked")
+                Set<BaseSequence> kmers = (Set<BaseSequence>) seqKmers[0];
+                dist = jaccardDistanceHighK(kmers, can.kmers(k));
             }
-            return hits.stream().filter(filter).map(distFunc).min(Float::compare).orElse(1.0f);
+            if (dist < min[0])
+                min[0] = dist;
+        });
+        return min[0];
+    }
+
+    private static class Batch {
+        private final BaseSequence[] seqs;
+        // completes once the batch is scheduled and optimized
+        private final CompletableFuture<BaseSequence[]> result;
+
+        Batch(BaseSequence[] seqs) {
+            this.seqs = seqs;
+            this.result = new CompletableFuture<>();
         }
     }
-}
 
+    private static class Epoch {
+        // completes once the previous epochs are inserted into the LSH
+        private final CompletableFuture<?> snapshot;
+        // completes once the DNA sequences added so far are resolved
+        private CompletableFuture<?> resolved;
+        private final List<BaseSequence> results = new ArrayList<>();
+        private LSH lsh;
+        private int size;
+
+        Epoch(CompletableFuture<?> snapshot) {
+            this.snapshot = snapshot;
+            this.resolved = CompletableFuture.completedFuture(null);
+        }
+    }
+}
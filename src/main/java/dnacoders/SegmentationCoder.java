@@ -42,6 +42,16 @@ public class SegmentationCoder implements Coder<BaseSequence, BaseSequence[]> {
         return result;
     }
 
+    /**
+     * Divides a given DNA sequence into segments like <Code>encode(BaseSequence)</Code>, for subclasses whose encoding depends on the position of the DNA sequence in the encoded stream.
+     * @param index the index of the DNA sequence in the encoded stream, starting at 0 and without gaps.
+     * @param seq the DNA sequence.
+     * @return the segments.
+     */
+    public BaseSequence[] encode(long index, BaseSequence seq) {
+        return encode(seq);
+    }
+
     @Override
     public BaseSequence decode(BaseSequence[] seqs) {
         BaseSequence result = new BaseSequence();
@@ -9,24 +9,34 @@ import utils.FuncUtils;
 import utils.Pair;
 import utils.PooledCompletionService;
 import utils.compression.DeltaCode;
+import utils.compression.RoaringIdSet;
+import utils.compression.VarIntDeltaCode;
+import utils.lsh.Mix;
 import utils.csv.CsvLine;
 import java.nio.charset.StandardCharsets;
 import java.util.*;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.concurrent.Future;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+import java.util.function.Supplier;
 import java.util.stream.Collector;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 public class NonUniqueAttributeCoder implements AttributeCoder<CsvLine, AttributeCoder.DecodedLine<?>, List<AttributeCoder.EncodedLine>> {
 
+    // separates the id of an additional group of a value from the value, i.e., the default csv delimiter, which cannot occur in a csv value
+    public static final char GROUP_ID_SEPARATOR = ',';
+
     protected final DNACoder<Attribute<?>> attributeCoder;
     protected final DNACoder<byte[]> byteCoder;
     protected final Coder<List<Integer>,CharSequence> rangeCompressor;
     protected final String keyName;
     protected final String attributeName;
     protected final SegmentationCoder segmentationCoder;
+    protected final int groupBuffer;
 
     /**
      * Creates an encoder for a non-unique attribute.
@@ -34,7 +44,7 @@ public class NonUniqueAttributeCoder implements AttributeCoder<CsvLine, Attribut
      * @param keyName the unique attribute's name this encoder will map to.
      * @param attributeCoder the instance to encode attributes.
      * @param byteCoder the instance to encode a byte array (e.g. RQCoder).
-     * @param rangeCompressor the delta compressor to compress integers.
+     * @param rangeCompressor the delta compressor to compress integers as text, or null to compress them as binary varints by <Code>VarIntDeltaCode</Code>, in which case the ids of each group are accumulated in a compressed <Code>RoaringIdSet</Code>. Decoding detects the format of each payload regardless.
      * @param segmentationCoder the instance to apply segmentation.
      */
     public NonUniqueAttributeCoder(String attributeName,
@@ -50,34 +60,63 @@ public class NonUniqueAttributeCoder implements AttributeCoder<CsvLine, Attribut
         this.attributeName = attributeName;
         this.keyName = keyName;
         this.segmentationCoder = segmentationCoder;
+        this.groupBuffer = 0;
+    }
+
+    private NonUniqueAttributeCoder(NonUniqueAttributeCoder coder, int groupBuffer) {
+        this.attributeCoder = coder.attributeCoder;
+        this.byteCoder = coder.byteCoder;
+        this.rangeCompressor = coder.rangeCompressor;
+        this.attributeName = coder.attributeName;
+        this.keyName = coder.keyName;
+        this.segmentationCoder = coder.segmentationCoder;
+        this.groupBuffer = groupBuffer;
+    }
+
+    /**
+     * Returns a coder that groups the csv lines while streaming them, rather than after reading all of them, for csv lines that are clustered by the non-unique attribute, e.g., trajectories by an aircraft's id.
+     * A group is held open while its run of csv lines continues, and is emitted once groupBuffer other groups were opened after its last line. Hence, the encoding produces output at once and holds at most groupBuffer groups, while keys that are out of order within the buffer, e.g., interleaved trajectories, are still grouped by hashing.
+     * A key that recurs after its group was emitted opens an additional group, whose attribute value is suffixed by GROUP_ID_SEPARATOR and a group id, such that <Code>decodeFromUnordered</Code> merges the ids of all groups of a value. <Code>decode</Code>, which decodes the groups in order, returns each group as its own line without the group id.
+     * To detect recurring keys, the coder keeps a 64-bit fingerprint of every emitted key, i.e., about 8 bytes per group of the table, which is the only state that is not bounded by groupBuffer. The number of groups that are encoded but not consumed yet is bounded by twice the parallelism.
+     * @param groupBuffer the maximum number of open groups, or 0 to group all csv lines before emitting any group.
+     * @return the streaming coder.
+     */
+    public NonUniqueAttributeCoder withStreaming(int groupBuffer) {
+        if (groupBuffer < 0)
+            throw new RuntimeException("groupBuffer " + groupBuffer + " < 0");
+        return new NonUniqueAttributeCoder(this, groupBuffer);
     }
 
-    protected Stream<List<EncodedLine>> encode(Stream<CsvLine> lines, Collector<CsvLine, ?, ? extends Map<CharSequence, CharSequence>> grouper, boolean parallel) {
+    protected Stream<List<EncodedLine>> encode(Stream<CsvLine> lines, Collector<CsvLine, ?, ? extends Map<CharSequence, byte[]>> grouper, boolean parallel) {
+        return encodeGroups(() -> lines.collect(grouper).entrySet().stream(), parallel);
+    }
+
+    /**
+     * Encodes the groups of csv lines, each of which is the value of the non-unique attribute mapped to the compressed ids.
+     * @param groups the supplier of the groups, which is called by the thread submitting the groups to be encoded.
+     * @param parallel true if the groups should be encoded in parallel.
+     * @return a stream of List < EncodedLine >.
+     */
+    protected Stream<List<EncodedLine>> encodeGroups(Supplier<? extends Stream<? extends Map.Entry<? extends CharSequence, byte[]>>> groups, boolean parallel) {
         final ExecutorService pool = FuncUtils.pool(parallel);
-        final PooledCompletionService<List<EncodedLine>> service = new PooledCompletionService<>(pool);
-        final Future<Map<CharSequence, CharSequence>> groups = pool.submit(() -> lines.collect(grouper));
+        // the producer blocks rather than reading ahead of the consumer and queuing the groups
+        final PooledCompletionService<List<EncodedLine>> service = new PooledCompletionService<>(pool, 2 * (parallel ? Runtime.getRuntime().availableProcessors() : 1));
         ExecutorService singleExecutor = Executors.newSingleThreadExecutor();
         singleExecutor.execute(() -> {
-            FuncUtils.safeCall(groups::get).forEach((key, value) -> service.submit(() -> {
-                String attributeValue = key.toString();
-                BaseSequence byteCoded = byteCoder.encode(value.toString().getBytes(StandardCharsets.UTF_8));
-                int numPartitions = segmentationCoder.numSegments(byteCoded.length());
-                BaseSequence[] attributes = new BaseSequence[numPartitions + 1];
-
-                attributes[0] = attributeCoder.encode(new Attribute<>(attributeName, attributeValue));
-                for (int i = 1; i < attributes.length; i++)
-                    attributes[i] = attributeCoder.encode(new Attribute<>(attributeName, attributeValue + SEGMENTATION_ID_SEPARATOR + i));
-
-                BaseSequence[] partitions = segmentationCoder.encode(byteCoded);
-                List<EncodedLine> pairs = new ArrayList<>(attributes.length);
-                for (int i = 0; i < partitions.length; i++) {
-                    pairs.add(new EncodedLine(
-                            attributes[i],
-                            partitions[i]
-                    ));
-                }
-                return pairs;
-            }));
+            try {
+                // the groups are submitted in order, such that their indices are deterministic for the segmentation
+                long[] nextIndex = {0L};
+                groups.get().forEachOrdered(group -> {
+                    long index = nextIndex[0]++;
+                    service.submit(() -> encodeGroup(index, group.getKey().toString(), group.getValue()));
+                });
+            }
+            catch (RuntimeException e) {
+                // fail the consumer rather than ending its stream early
+                service.submit(() -> {
+                    throw e;
+                });
+            }
             service.shutdown();
         });
 
@@ -85,15 +124,35 @@ public class NonUniqueAttributeCoder implements AttributeCoder<CsvLine, Attribut
         return service.stream();
     }
 
+    private List<EncodedLine> encodeGroup(long index, String attributeValue, byte[] value) {
+        BaseSequence byteCoded = byteCoder.encode(value);
+        int numPartitions = segmentationCoder.numSegments(byteCoded.length());
+        BaseSequence[] attributes = new BaseSequence[numPartitions + 1];
+
+        attributes[0] = attributeCoder.encode(new Attribute<>(attributeName, attributeValue));
+        for (int i = 1; i < attributes.length; i++)
+            attributes[i] = attributeCoder.encode(new Attribute<>(attributeName, attributeValue + SEGMENTATION_ID_SEPARATOR + i));
+
+        BaseSequence[] partitions = segmentationCoder.encode(index, byteCoded);
+        List<EncodedLine> pairs = new ArrayList<>(attributes.length);
+        for (int i = 0; i < partitions.length; i++) {
+            pairs.add(new EncodedLine(
+                    attributes[i],
+                    partitions[i]
+            ));
+        }
+        return pairs;
+    }
+
     protected Stream<DecodedLine<?>> decode(Stream<List<EncodedLine>> encodedLines, boolean parallel) {
         PooledCompletionService<DecodedLine<?>> service = new PooledCompletionService<>(FuncUtils.pool(parallel));
         ExecutorService singleExecutor = Executors.newSingleThreadExecutor();
         singleExecutor.execute(() -> {
             encodedLines.forEach(p -> service.submit(() -> {
-                Attribute<?> attribute = attributeCoder.decode(p.get(0).getT1());
+                Attribute<?> attribute = withoutGroupId(attributeCoder.decode(p.get(0).getT1()));
                 return new DecodedLine<>(
                         attribute,
-                        rangeCompressor.decode(new String(byteCoder.decode(segmentationCoder.decode(p.stream().map(Pair::getT2).toArray(BaseSequence[]::new))))));
+                        decodeIds(byteCoder.decode(segmentationCoder.decode(p.stream().map(Pair::getT2).toArray(BaseSequence[]::new)))));
             }));
             service.shutdown();
         });
@@ -109,17 +168,240 @@ public class NonUniqueAttributeCoder implements AttributeCoder<CsvLine, Attribut
      */
     @Override
     public Stream<List<EncodedLine>> encode(Stream<CsvLine> lines) {
-        return encode(lines, Collectors.groupingBy(line -> line.get(attributeName), Collectors.mapping(line -> line.get(keyName), new DeltaCode.RangeCollector(rangeCompressor, true))), false);
+        if (groupBuffer > 0)
+            return encodeGroups(() -> streamGroups(lines, attributeName, keyName, ids(rangeCompressor, true), groupBuffer), false);
+
+        return encode(lines, grouper(attributeName, keyName, rangeCompressor, false), false);
+    }
+
+    /**
+     * Groups the given csv lines as the encoding does and returns the bytes each group is encoded from, before they are passed to the byte coder. This is useful to train a compression on a table in a pre-pass.
+     * @param lines the csv lines.
+     * @param attributeName the non-unique attribute's name.
+     * @param keyName the unique attribute's name.
+     * @param rangeCompressor the delta compressor to compress integers as text, or null for binary varints.
+     * @return the stream of the groups' bytes.
+     */
+    public static Stream<byte[]> payloads(Stream<CsvLine> lines, String attributeName, String keyName, Coder<List<Integer>, CharSequence> rangeCompressor) {
+        return payloads(lines, attributeName, keyName, rangeCompressor, 0);
+    }
+
+    /**
+     * Groups the given csv lines as the encoding does and returns the bytes each group is encoded from, before they are passed to the byte coder.
+     * @param lines the csv lines.
+     * @param attributeName the non-unique attribute's name.
+     * @param keyName the unique attribute's name.
+     * @param rangeCompressor the delta compressor to compress integers as text, or null for binary varints.
+     * @param groupBuffer the maximum number of open groups while streaming (see <Code>withStreaming</Code>), or 0 to group all csv lines first.
+     * @return the stream of the groups' bytes.
+     */
+    public static Stream<byte[]> payloads(Stream<CsvLine> lines, String attributeName, String keyName, Coder<List<Integer>, CharSequence> rangeCompressor, int groupBuffer) {
+        if (groupBuffer > 0)
+            return streamGroups(lines, attributeName, keyName, ids(rangeCompressor, true), groupBuffer).map(Map.Entry::getValue);
+
+        return lines.sequential().collect(grouper(attributeName, keyName, rangeCompressor, false)).values().stream();
+    }
+
+    private static Collector<CsvLine, ?, ? extends Map<CharSequence, byte[]>> grouper(String attributeName, String keyName, Coder<List<Integer>, CharSequence> rangeCompressor, boolean concurrent) {
+        Collector<CharSequence, ?, byte[]> ids = ids(rangeCompressor, !concurrent);
+        return concurrent ?
+                Collectors.groupingByConcurrent(line -> line.get(attributeName), Collectors.mapping(line -> line.get(keyName), ids))
+                : Collectors.groupingBy(line -> line.get(attributeName), Collectors.mapping(line -> line.get(keyName), ids));
+    }
+
+    private static Collector<CharSequence, ?, byte[]> ids(Coder<List<Integer>, CharSequence> rangeCompressor, boolean isSorted) {
+        return rangeCompressor == null ?
+                new RoaringIdSet.RangeCollector()
+                : Collectors.collectingAndThen(new DeltaCode.RangeCollector(rangeCompressor, isSorted), cs -> cs.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Groups the csv lines lazily in a single pass. A group is held open while its run continues and emitted once groupBuffer other groups were opened after its last line, or at the end of the csv lines.
+     * The fingerprints of the emitted keys are kept, such that a key that recurs after its group was emitted opens an additional group, whose key is suffixed by GROUP_ID_SEPARATOR and a group id that is unique among the additional groups.
+     * @param lines the csv lines.
+     * @param attributeName the non-unique attribute's name.
+     * @param keyName the unique attribute's name.
+     * @param ids the collector that compresses the ids of a group.
+     * @param groupBuffer the maximum number of open groups.
+     * @return the stream of the groups in the order they are emitted.
+     */
+    private static <A> Stream<Map.Entry<String, byte[]>> streamGroups(Stream<CsvLine> lines, String attributeName, String keyName, Collector<CharSequence, A, byte[]> ids, int groupBuffer) {
+        Iterator<CsvLine> it = lines.sequential().iterator();
+        Supplier<A> supplier = ids.supplier();
+        BiConsumer<A, CharSequence> accumulator = ids.accumulator();
+        Function<A, byte[]> finisher = ids.finisher();
+        Iterator<Map.Entry<String, byte[]>> groups = new Iterator<>() {
+            // in the order of the groups' last lines
+            final LinkedHashMap<String, Group<A>> open = new LinkedHashMap<>(16, 0.75f, true);
+            final Deque<Map.Entry<String, byte[]>> ready = new ArrayDeque<>();
+            final FingerprintSet emitted = new FingerprintSet();
+            int nextGroupId = 1;
+            String currentKey;
+            A current;
+
+            @Override
+            public boolean hasNext() {
+                while (ready.isEmpty() && it.hasNext())
+                    accept(it.next());
+                if (ready.isEmpty() && !open.isEmpty()) {
+                    open.values().forEach(group -> ready.add(Map.entry(group.key, finisher.apply(group.ids))));
+                    open.clear();
+                }
+                return !ready.isEmpty();
+            }
+
+            @Override
+            public Map.Entry<String, byte[]> next() {
+                if (!hasNext())
+                    throw new NoSuchElementException();
+                return ready.poll();
+            }
+
+            private void accept(CsvLine line) {
+                String key = line.get(attributeName);
+                if (!key.equals(currentKey)) {
+                    Group<A> group = open.get(key);
+                    if (group == null) {
+                        long fingerprint = fingerprint(key);
+                        // a fingerprint collision only gives a new key a group id, which decoding removes again
+                        group = new Group<>(emitted.contains(fingerprint) ? key + GROUP_ID_SEPARATOR + (nextGroupId++) : key, supplier.get());
+                        open.put(key, group);
+                        if (open.size() > groupBuffer) {
+                            Iterator<Map.Entry<String, Group<A>>> eldest = open.entrySet().iterator();
+                            Map.Entry<String, Group<A>> emit = eldest.next();
+                            eldest.remove();
+                            emitted.add(fingerprint(emit.getKey()));
+                            ready.add(Map.entry(emit.getValue().key, finisher.apply(emit.getValue().ids)));
+                        }
+                    }
+                    current = group.ids;
+                    currentKey = key;
+                }
+                accumulator.accept(current, line.get(keyName));
+            }
+        };
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(groups, Spliterator.ORDERED | Spliterator.NONNULL), false);
+    }
+
+    /**
+     * An open group of <Code>streamGroups</Code>.
+     * @param key the key of the group, which is suffixed by a group id if the group is an additional group of its value.
+     * @param ids the accumulated ids.
+     */
+    private record Group<A>(String key, A ids) {
+    }
+
+    /**
+     * Removes the group id of an additional group (see <Code>withStreaming</Code>) from a decoded attribute.
+     * @param attribute the decoded attribute.
+     * @return the attribute of the group's value.
+     */
+    private static Attribute<?> withoutGroupId(Attribute<?> attribute) {
+        String value = attribute.getValue().toString();
+        int index = value.lastIndexOf(GROUP_ID_SEPARATOR);
+        return index >= 0 ? new Attribute<>(attribute.getName(), value.substring(0, index)) : attribute;
+    }
+
+    /**
+     * Merges the sorted ids of two groups of the same value.
+     * @param ids1 the sorted ids of the first group.
+     * @param ids2 the sorted ids of the second group.
+     * @return the sorted ids of both groups.
+     */
+    private static List<Integer> union(List<Integer> ids1, List<Integer> ids2) {
+        int[] merged = new int[ids1.size() + ids2.size()];
+        int i = 0, j = 0, k = 0;
+        while (i < ids1.size() && j < ids2.size())
+            merged[k++] = ids1.get(i) <= ids2.get(j) ? ids1.get(i++) : ids2.get(j++);
+        while (i < ids1.size())
+            merged[k++] = ids1.get(i++);
+        while (j < ids2.size())
+            merged[k++] = ids2.get(j++);
+        return VarIntDeltaCode.IntList.of(merged);
+    }
+
+    /**
+     * Returns a 64-bit fingerprint of a key. Two distinct keys collide with a probability of about 2^-64, which is negligible for the number of groups of a table.
+     * @param key the key.
+     * @return the fingerprint.
+     */
+    private static long fingerprint(String key) {
+        long h = key.length();
+        for (int i = 0; i < key.length(); i++)
+            h = h * 0x9E3779B97F4A7C15L + key.charAt(i);
+
+        return Mix.mix64(h);
+    }
+
+    /**
+     * An open-addressing set of fingerprints in a primitive long array, i.e., about 8 bytes per fingerprint at its load factor of 3/4. The fingerprint 0 marks an empty slot and is stored as a separate flag.
+     * This class is not thread-safe.
+     */
+    private static final class FingerprintSet {
+        private long[] table = new long[16];
+        private int size;
+        private boolean containsZero;
+
+        boolean contains(long fingerprint) {
+            if (fingerprint == 0L)
+                return containsZero;
+
+            int mask = table.length - 1;
+            for (int i = (int) fingerprint & mask; table[i] != 0L; i = (i + 1) & mask)
+                if (table[i] == fingerprint)
+                    return true;
+            return false;
+        }
+
+        void add(long fingerprint) {
+            if (fingerprint == 0L) {
+                containsZero = true;
+                return;
+            }
+            if (insert(table, fingerprint) && ++size > (table.length >> 2) * 3) {
+                long[] grown = new long[table.length << 1];
+                for (long f : table)
+                    if (f != 0L)
+                        insert(grown, f);
+                table = grown;
+            }
+        }
+
+        private static boolean insert(long[] table, long fingerprint) {
+            int mask = table.length - 1;
+            int i = (int) fingerprint & mask;
+            for (; table[i] != 0L; i = (i + 1) & mask)
+                if (table[i] == fingerprint)
+                    return false;
+            table[i] = fingerprint;
+            return true;
+        }
+    }
+
+    /**
+     * Decodes the ids of a group, which are compressed either as text by the range compressor or as binary varints.
+     * @param payload the decoded bytes of the group.
+     * @return the sorted ids.
+     */
+    protected List<Integer> decodeIds(byte[] payload) {
+        if (VarIntDeltaCode.isVarIntDeltaCode(payload))
+            return VarIntDeltaCode.IntList.of(VarIntDeltaCode.INSTANCE.decode(payload));
+
+        return (rangeCompressor != null ? rangeCompressor : DeltaCode.DEFAULT_RANGE_DELTA_COMPRESSOR).decode(new String(payload, StandardCharsets.UTF_8));
     }
 
     /**
      * Encodes the given csv lines in parallel mode. Due to segmentation, each "line" is encoded to a list of EncodedLine.
+     * A streaming coder (see <Code>withStreaming</Code>) groups the csv lines in order and only encodes the groups in parallel.
      * @param lines the input vsc lines to be encoded.
      * @return a stream of List < EncodedLine >.
      */
     @Override
     public Stream<List<EncodedLine>> encodeParallel(Stream<CsvLine> lines) {
-        return encode(lines.parallel(), Collectors.groupingByConcurrent(line -> line.get(attributeName), Collectors.mapping(line -> line.get(keyName), new DeltaCode.RangeCollector(rangeCompressor, false))), true);
+        if (groupBuffer > 0)
+            return encodeGroups(() -> streamGroups(lines, attributeName, keyName, ids(rangeCompressor, true), groupBuffer), true);
+
+        return encode(lines.parallel(), grouper(attributeName, keyName, rangeCompressor, true), true);
     }
 
     /**
@@ -163,7 +445,11 @@ public class NonUniqueAttributeCoder implements AttributeCoder<CsvLine, Attribut
                             return index >= 0? Integer.parseInt(value.substring(index + 1)) : Integer.MIN_VALUE;
                         }))))))
                 .entrySet().stream()
-                .map(e -> new DecodedLine<>(e.getKey(), rangeCompressor.decode(new String(byteCoder.decode(segmentationCoder.decode(e.getValue().stream().map(Pair::getT2).toArray(BaseSequence[]::new)))))));
+                .map(e -> Map.entry(withoutGroupId(e.getKey()), decodeIds(byteCoder.decode(segmentationCoder.decode(e.getValue().stream().map(Pair::getT2).toArray(BaseSequence[]::new))))))
+                // the additional groups of a value (see withStreaming) are merged with its first group
+                .collect(Collectors.toMap(Map.Entry::getKey, Map.Entry::getValue, NonUniqueAttributeCoder::union))
+                .entrySet().stream()
+                .map(e -> new DecodedLine<>(e.getKey(), e.getValue()));
     }
 
     /**
@@ -187,6 +473,10 @@ public class NonUniqueAttributeCoder implements AttributeCoder<CsvLine, Attribut
                             return index >= 0? Integer.parseInt(value.substring(index + 1)) : Integer.MIN_VALUE;
                         }))))))
                 .entrySet().stream().parallel()
-                .map(e -> new DecodedLine<>(e.getKey(), rangeCompressor.decode(new String(byteCoder.decode(segmentationCoder.decode(e.getValue().stream().map(Pair::getT2).toArray(BaseSequence[]::new)))))));
+                .map(e -> Map.entry(withoutGroupId(e.getKey()), decodeIds(byteCoder.decode(segmentationCoder.decode(e.getValue().stream().map(Pair::getT2).toArray(BaseSequence[]::new))))))
+                // the additional groups of a value (see withStreaming) are merged with its first group
+                .collect(Collectors.toConcurrentMap(Map.Entry::getKey, Map.Entry::getValue, NonUniqueAttributeCoder::union))
+                .entrySet().stream().parallel()
+                .map(e -> new DecodedLine<>(e.getKey(), e.getValue()));
     }
 }
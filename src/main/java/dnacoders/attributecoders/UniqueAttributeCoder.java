@@ -10,6 +10,7 @@ import utils.csv.CsvLine;
 import java.util.*;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.function.Function;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
@@ -19,9 +20,10 @@ public class UniqueAttributeCoder implements AttributeCoder<CsvLine, AttributeCo
     private final DNACoder<byte[]> byteCoder;
     private final String key;
     private final String[] values;
-    private final Packer.Type[] types;
+    private final Packer.ColumnType[] types;
     private final SegmentationCoder segmentationCoder;
     private final Coder<CsvLine, byte[]> csvLinePacker;
+    private final Function<byte[], CsvLine> lineDecoder;
 
     /**
      * Creates an encoder for a unique attribute.
@@ -33,6 +35,19 @@ public class UniqueAttributeCoder implements AttributeCoder<CsvLine, AttributeCo
      * @param types the other attributes' types.
      */
     public UniqueAttributeCoder(DNACoder<Attribute<?>> attributeCoder, DNACoder<byte[]> byteCoder, SegmentationCoder segmentationCoder, String key, String[] values, Packer.Type[] types) {
+        this(attributeCoder, byteCoder, segmentationCoder, key, values, Arrays.stream(types).map(Packer.ColumnType::new).toArray(Packer.ColumnType[]::new));
+    }
+
+    /**
+     * Creates an encoder for a unique attribute.
+     * @param attributeCoder the instance to encode attributes.
+     * @param byteCoder the instance to encode a byte array (e.g. RQCoder).
+     * @param segmentationCoder the instance to apply segmentation.
+     * @param key the unique attribute's name to be encoded.
+     * @param values the other attributes' names this key will map to.
+     * @param types the other attributes' column types.
+     */
+    public UniqueAttributeCoder(DNACoder<Attribute<?>> attributeCoder, DNACoder<byte[]> byteCoder, SegmentationCoder segmentationCoder, String key, String[] values, Packer.ColumnType[] types) {
         if (values.length != types.length)
             throw new RuntimeException("values.length != types.length");
         this.attributeCoder = attributeCoder;
@@ -42,6 +57,49 @@ public class UniqueAttributeCoder implements AttributeCoder<CsvLine, AttributeCo
         this.types = types;
         this.segmentationCoder = segmentationCoder;
         this.csvLinePacker = CSVLinePacker.fromTypeByAttributeNameArrays(values, types);
+        this.lineDecoder = csvLinePacker::decode;
+    }
+
+    private UniqueAttributeCoder(UniqueAttributeCoder coder, Function<byte[], CsvLine> lineDecoder) {
+        this.attributeCoder = coder.attributeCoder;
+        this.byteCoder = coder.byteCoder;
+        this.key = coder.key;
+        this.values = coder.values;
+        this.types = coder.types;
+        this.segmentationCoder = coder.segmentationCoder;
+        this.csvLinePacker = coder.csvLinePacker;
+        this.lineDecoder = lineDecoder;
+    }
+
+    /**
+     * Returns the packed bytes of the given csv lines, i.e., the bytes each line is encoded from before they are passed to the byte coder. This is useful to train a compression on a table in a pre-pass.
+     * @param lines the csv lines.
+     * @param values the other attributes' names the key maps to.
+     * @param types the other attributes' types.
+     * @return the stream of packed bytes.
+     */
+    public static Stream<byte[]> payloads(Stream<CsvLine> lines, String[] values, Packer.ColumnType[] types) {
+        Coder<CsvLine, byte[]> packer = CSVLinePacker.fromTypeByAttributeNameArrays(values, types);
+        return lines.map(packer::encode);
+    }
+
+    /**
+     * Creates a coder that decodes only the given columns of the mapped attributes. The values before the last requested column that are not requested are skipped, and the values after it are not unpacked at all. Encoding is unchanged.
+     * @param columns the names of the columns to decode, in the order of the decoded CsvLines.
+     * @return the projecting coder.
+     */
+    public UniqueAttributeCoder withColumns(String... columns) {
+        return new UniqueAttributeCoder(this, CSVLinePacker.projection(values, types, columns)::decode);
+    }
+
+    /**
+     * Decodes only the given columns of an encoded line.
+     * @param encodedLine the segments of the encoded line in order.
+     * @param columns the names of the columns to decode, in the order of the decoded CsvLine.
+     * @return the DecodedLine with the requested columns.
+     */
+    public DecodedLine<?> decodeColumns(List<EncodedLine> encodedLine, String... columns) {
+        return withColumns(columns).decodeEntry(attributeCoder.decode(encodedLine.get(0).getT1()), encodedLine);
     }
 
     /**
@@ -55,26 +113,31 @@ public class UniqueAttributeCoder implements AttributeCoder<CsvLine, AttributeCo
         ExecutorService singleExecutor = Executors.newSingleThreadExecutor();
         singleExecutor.execute(() -> {
             Attribute<String> keyAttribute = new Attribute<>(key);
-            lines.forEach(line -> service.submit(() -> {
-                byte[] bytes = csvLinePacker.encode(line);
-                BaseSequence byteCoded = byteCoder.encode(bytes);
-                String attributeValue = line.get(key);
-                int numPartitions = segmentationCoder.numSegments(byteCoded.length());
-                BaseSequence[] attributes = new BaseSequence[numPartitions + 1];
-                attributes[0] = attributeCoder.encode(keyAttribute.newValue(attributeValue));
-                for (int i = 1; i < attributes.length; i++)
-                    attributes[i] = attributeCoder.encode(keyAttribute.newValue(attributeValue + SEGMENTATION_ID_SEPARATOR + i));
-
-                BaseSequence[] partitions = segmentationCoder.encode(byteCoded);
-                List<EncodedLine> encodedLines = new ArrayList<>(attributes.length);
-                for (int i = 0; i < partitions.length; i++) {
-                    encodedLines.add(new EncodedLine(
-                            attributes[i],
-                            partitions[i]
-                    ));
-                }
-                return encodedLines;
-            }));
+            // the lines are submitted in order, such that their indices are deterministic for the segmentation
+            long[] nextIndex = {0L};
+            lines.forEachOrdered(line -> {
+                long index = nextIndex[0]++;
+                service.submit(() -> {
+                    byte[] bytes = csvLinePacker.encode(line);
+                    BaseSequence byteCoded = byteCoder.encode(bytes);
+                    String attributeValue = line.get(key);
+                    int numPartitions = segmentationCoder.numSegments(byteCoded.length());
+                    BaseSequence[] attributes = new BaseSequence[numPartitions + 1];
+                    attributes[0] = attributeCoder.encode(keyAttribute.newValue(attributeValue));
+                    for (int i = 1; i < attributes.length; i++)
+                        attributes[i] = attributeCoder.encode(keyAttribute.newValue(attributeValue + SEGMENTATION_ID_SEPARATOR + i));
+
+                    BaseSequence[] partitions = segmentationCoder.encode(index, byteCoded);
+                    List<EncodedLine> encodedLines = new ArrayList<>(attributes.length);
+                    for (int i = 0; i < partitions.length; i++) {
+                        encodedLines.add(new EncodedLine(
+                                attributes[i],
+                                partitions[i]
+                        ));
+                    }
+                    return encodedLines;
+                });
+            });
             service.shutdown();
         });
 
@@ -124,7 +187,7 @@ public class UniqueAttributeCoder implements AttributeCoder<CsvLine, AttributeCo
     }
 
     private DecodedLine<?> decodeEntry(Attribute<?> att, Collection<? extends Pair<?, BaseSequence>> pairs) {
-        CsvLine decoded = csvLinePacker.decode(byteCoder.decode(segmentationCoder.decode(pairs.stream().map(Pair::getT2).toArray(BaseSequence[]::new))));
+        CsvLine decoded = lineDecoder.apply(byteCoder.decode(segmentationCoder.decode(pairs.stream().map(Pair::getT2).toArray(BaseSequence[]::new))));
         return new DecodedLine<>(
                 att,
                 decoded
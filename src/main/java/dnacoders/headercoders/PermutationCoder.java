@@ -34,17 +34,26 @@ public class PermutationCoder implements HeaderCoder<Integer> {
         IntStream s = IntStream.range(0, permsCount);
 
         return FuncUtils.stream(s, parallel)
-                .mapToObj(i -> {
-                    BaseSequence seqPermuted = seq.permute(FuncUtils.getUniformPermutation(seed + i, seq.length()));
-                    BaseSequence result = DNAPacker.pack(i, lengthBase);
-                    result.append(seqPermuted);
-                    return result;
-                })
+                .mapToObj(i -> candidate(seq, seed, i))
                 .peek(seqWithHeader -> seqWithHeader.putProperty("score", scoreFunc.apply(seqWithHeader)))
                 .max(Comparator.comparing(seqWithHeader -> seqWithHeader.getProperty("score")))
                 .orElseThrow();
     }
 
+    /**
+     * Computes the i-th permuted candidate for a given DNA sequence.
+     * @param seq the DNA sequence to permute.
+     * @param seed the seed of seq.
+     * @param i the permutation's index.
+     * @return the permuted DNA sequence prefixed with its header.
+     */
+    protected BaseSequence candidate(BaseSequence seq, long seed, int i) {
+        BaseSequence seqPermuted = seq.permute(FuncUtils.getUniformPermutation(seed + i, seq.length()));
+        BaseSequence result = DNAPacker.pack(i, lengthBase);
+        result.append(seqPermuted);
+        return result;
+    }
+
     @Override
     public Integer decodeHeader(BaseSequence encoded) {
         return (int) DNAPacker.unpackSingle(encoded);
@@ -18,26 +18,38 @@ import dnacoders.headercoders.PermutationCoder;
 import utils.DNAPacker;
 import utils.FuncUtils;
 import utils.Pair;
+import utils.compression.Codecs;
 import utils.compression.DeltaCode;
+import utils.compression.DictionaryGZIP;
 import utils.compression.GZIP;
 import utils.csv.BufferedCsvReader;
 import utils.csv.BufferedCsvWriter;
 import utils.csv.CsvLine;
 import utils.fasta.ReadableFASTAFile;
 import utils.fasta.WriteableFASTAFile;
+import utils.lsh.EvictionPolicy;
 import utils.lsh.LSH;
 import utils.rq.RQCoder;
 import java.io.File;
 import java.time.Duration;
 import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Scanner;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
 import java.util.function.Supplier;
 import java.util.stream.Stream;
 
 public class Application {
 
+    /**
+     * The caption prefix of the header records that store the codec of an attribute, and its dictionary, in a FASTA file.
+     */
+    static final String HEADER_CAPTION = "header-";
+
     public static void main(String... args) {
         ConfigFile config = new ConfigFile(FuncUtils.tryOrElse(() -> args[0], () -> "params.ini"));
         boolean force = FuncUtils.tryOrElse(() -> Boolean.valueOf(args[1]), () -> false);
@@ -90,8 +102,9 @@ public class Application {
         DNARule basicRules = BasicDNARules.INSTANCE;
         DNARule superBasicRules = SuperBasicDNARules.INSTANCE;
 
-        LSH lsh = new LSH(config.getLshK(), config.getLshR(), config.getLshB());
-        Coder<BaseSequence, BaseSequence> distanceCoder = getDistanceCoder(config, basicRules, lsh);
+        LSH lsh = getLSH(config);
+        String indexPath = config.getLshIndex();
+        Coder<BaseSequence, BaseSequence> distanceCoder = getDistanceCoder(config, basicRules, lsh, config.getDistanceCoderEpochSize());
 
         DNACoder<Attribute<?>> attributeCoder = attributeEncoder(
                 false,
@@ -104,6 +117,8 @@ public class Application {
 
         SegmentationCoder segmentationCoder = new MySegmentationCoder(config.getSegmentationLength() - DNAPacker.pack(config.getSegmentationPermutations() - 1).length(), distanceCoder, config.getSegmentationGcCorrections());
         SegmentationCoder doNothingSegmentationCoder = new DoNothingSegmentation();
+        // the header records are neither permuted nor inserted into the LSH, i.e., they do not compete with the encoded lines
+        SegmentationCoder headerSegmentationCoder = new SegmentationCoder(config.getSegmentationLength(), config.getSegmentationGcCorrections());
 
 
         Supplier<BufferedCsvReader> sourceSupplier = () -> new BufferedCsvReader(tablePath);
@@ -114,9 +129,12 @@ public class Application {
         for (ConfigFile.UniqueAttribute att : config.getUniqueAttributes()) {
             seqsCounter = 0;
             WriteableFASTAFile writer = new WriteableFASTAFile(encodePath + "/u_mapping_" + (counter++) + "_" + att.getKey() + ".fa", false);
+            byte[] header = codecHeader(att, sourceSupplier, lines -> UniqueAttributeCoder.payloads(lines, att.getMappingAttributes(), att.getMappingAttributesTypes()), config);
+            if (Codecs.requiresDictionary(att.getCodec(config.getGZIPLevel())))
+                writeHeader(writer, header, rq(false, 0, rqMaxError, superBasicRules), att.getSegmentation() ? headerSegmentationCoder : doNothingSegmentationCoder);
             UniqueAttributeCoder coder = new UniqueAttributeCoder(
                     attributeCoder,
-                    rq(att.getGZIP(), rqMaxError, superBasicRules),
+                    rq(header, config.getGZIPLevel(), rqMaxError, superBasicRules),
                     att.getSegmentation() ? segmentationCoder : doNothingSegmentationCoder,
                     att.getKey(),
                     att.getMappingAttributes(),
@@ -131,7 +149,11 @@ public class Application {
                     writer.append(new BaseSequence(encodedLine.getT1(), encodedLine.getT2()), seqsCounter + "-" + encodedLine.getT1().length());
                 }
             }
+            // the last epoch of the attribute is inserted into the LSH before the next attribute is encoded
+            if (distanceCoder instanceof DistanceCoder dc)
+                dc.flush();
             writer.close();
+            spillLSH(lsh, indexPath);
         }
 
         System.out.println("[encoding non-unique attributes]");
@@ -139,14 +161,20 @@ public class Application {
         for (ConfigFile.NonUniqueAttribute att : config.getNonUniqueAttributes()) {
             seqsCounter = 0;
             WriteableFASTAFile writer = new WriteableFASTAFile(encodePath + "/mapping_" + (counter++) + "_" + att.getKey() + ".fa", false);
+            Coder<List<Integer>, CharSequence> rangeCompressor = att.getVarIntIds() ? null : DeltaCode.DEFAULT_RANGE_DELTA_COMPRESSOR;
+            byte[] header = codecHeader(att, sourceSupplier, lines -> NonUniqueAttributeCoder.payloads(lines, att.getKey(), att.getMappingAttribute(), rangeCompressor, att.getGroupBuffer()), config);
+            if (Codecs.requiresDictionary(att.getCodec(config.getGZIPLevel())))
+                writeHeader(writer, header, rq(false, 0, rqMaxError, superBasicRules), att.getSegmentation() ? headerSegmentationCoder : doNothingSegmentationCoder);
             NonUniqueAttributeCoder coder = new NonUniqueAttributeCoder(
                     att.getKey(),
                     att.getMappingAttribute(),
                     attributeCoder,
-                    rq(att.getGZIP(), rqMaxError, superBasicRules),
-                    DeltaCode.DEFAULT_RANGE_DELTA_COMPRESSOR,
+                    rq(header, config.getGZIPLevel(), rqMaxError, superBasicRules),
+                    rangeCompressor,
                     att.getSegmentation() ? segmentationCoder : doNothingSegmentationCoder
             );
+            if (att.getGroupBuffer() > 0)
+                coder = coder.withStreaming(att.getGroupBuffer());
             System.out.println("-> encoding: " + att);
             var it = encode(coder, sourceSupplier.get(), parallel).iterator();
             while(it.hasNext()) {
@@ -155,11 +183,52 @@ public class Application {
                     writer.append(new BaseSequence(encodedLine.getT1(), encodedLine.getT2()), seqsCounter + "-" + encodedLine.getT1().length());
                 }
             }
+            if (distanceCoder instanceof DistanceCoder dc)
+                dc.flush();
             writer.close();
+            spillLSH(lsh, indexPath);
         }
+
+        if (config.getLshCapacity() > 0)
+            System.out.println("[LSH eviction: " + lsh.getEvictionStats() + "]");
+
+        if (distanceCoder instanceof DistanceCoder dc)
+            dc.close();
+        // the pool threads are idle now, but their zlib streams would only be released by the garbage collector
+        GZIP.endAll();
+    }
+
+    /**
+     * Spills the LSH to its index file after an attribute was encoded, such that the index is up to date and the heap memory of the attribute's DNA sequences is released before the next attribute.
+     * @param lsh the LSH.
+     * @param indexPath the path of the index file, or an empty string to keep the LSH on the heap.
+     */
+    private static void spillLSH(LSH lsh, String indexPath) {
+        if (indexPath.isEmpty())
+            return;
+
+        System.out.println("[spilling LSH index to " + indexPath + "]");
+        lsh.spill(indexPath);
     }
 
-    private static Coder<BaseSequence, BaseSequence> getDistanceCoder(ConfigFile config, DNARule basicRules, LSH lsh) {
+    private static LSH getLSH(ConfigFile config) {
+        String indexPath = config.getLshIndex();
+        int capacity = config.getLshCapacity();
+        if (capacity > 0 && !indexPath.isEmpty())
+            throw new RuntimeException("a capacity-bounded LSH cannot be saved to an index");
+        if (indexPath.isEmpty() || !config.getLshAppend() || !new File(indexPath).exists())
+            return new LSH(config.getLshK(), config.getLshR(), config.getLshB(), false, config.getLshSketch(), config.getLshProbes(), capacity, capacity > 0 ? EvictionPolicy.of(config.getLshEviction()) : null, config.getLshBucketCapacity(), config.getLshSeed() != 0L ? config.getLshSeed() : ThreadLocalRandom.current().nextLong());
+
+        System.out.println("[opening LSH index " + indexPath + "]");
+        // probes is a query-time parameter, so the index is queried with the configured one
+        LSH lsh = LSH.open(indexPath, config.getLshProbes());
+        if (lsh.getK() != config.getLshK() || lsh.getR() != config.getLshR() || lsh.getB() != config.getLshB() || lsh.getSketch() != config.getLshSketch() || (config.getLshSeed() != 0L && lsh.getSeed() != config.getLshSeed()))
+            throw new RuntimeException("the LSH index " + indexPath + " (k=" + lsh.getK() + ", r=" + lsh.getR() + ", b=" + lsh.getB() + ", sketch=" + lsh.getSketch() + ", seed=" + lsh.getSeed() + ") does not match the lsh parameters");
+
+        return lsh;
+    }
+
+    private static Coder<BaseSequence, BaseSequence> getDistanceCoder(ConfigFile config, DNARule basicRules, LSH lsh, int epochSize) {
         if (config.getSegmentationPermutations() <= 0)
             return new Coder<>() {
                 @Override
@@ -173,11 +242,13 @@ public class Application {
             };
 
         return new DistanceCoder(
+                false,
                 config.getSegmentationPermutations(),
                 lsh,
                 basicRules,
                 config.getDistanceCoderCError(),
-                config.getDistanceCoderCDistance()
+                config.getDistanceCoderCDistance(),
+                epochSize
         );
     }
 
@@ -190,10 +261,12 @@ public class Application {
                 extractDnaConvertor(config.getCBBsDnaConvertor())
         );
 
-        Coder<BaseSequence, BaseSequence> distanceCoder = getDistanceCoder(config, null, null);
+        // decoding only reverts the permutations, so no epoch pool is needed
+        Coder<BaseSequence, BaseSequence> distanceCoder = getDistanceCoder(config, null, null, 0);
 
         SegmentationCoder segmentationCoder = new MySegmentationCoder(100, distanceCoder, 0);
         SegmentationCoder doNothingSegmentationCoder = new DoNothingSegmentation();
+        SegmentationCoder headerSegmentationCoder = new SegmentationCoder(100, 0);
         String decodePath = config.getDecodePath();
 
         int counter = 0;
@@ -202,16 +275,20 @@ public class Application {
         for (ConfigFile.UniqueAttribute att : config.getUniqueAttributes()) {
             System.out.println("-> decoding: " + att);
             BufferedCsvWriter writer = new BufferedCsvWriter(decodePath + "/u_mapping_" + counter + "_" + att.getKey() + "_decoded.txt", false);
+            String path = config.getEncodePath() + "/u_mapping_" + (counter++) + "_" + att.getKey() + ".fa";
+            byte[] header = readHeader(path, att, config.getGZIPLevel(), rq(false, 0, 1f, seq -> 0f), att.getSegmentation() ? headerSegmentationCoder : doNothingSegmentationCoder);
             UniqueAttributeCoder coder = new UniqueAttributeCoder(
                     attributeDecoder,
-                    rq(att.getGZIP(), 1f, seq -> 0f),
+                    rq(header, config.getGZIPLevel(), 1f, seq -> 0f),
                     att.getSegmentation() ? segmentationCoder : doNothingSegmentationCoder,
                     att.getKey(),
                     att.getMappingAttributes(),
                     att.getMappingAttributesTypes()
             );
+            if (att.getDecodeColumns().length > 0)
+                coder = coder.withColumns(att.getDecodeColumns());
 
-            decode(coder, new ReadableFASTAFile(config.getEncodePath() + "/u_mapping_" + (counter++) + "_" + att.getKey() + ".fa"), config.getParallel()).map(Pair::toString).forEach(writer::appendNewLine);
+            decode(coder, new ReadableFASTAFile(path), config.getParallel()).map(Pair::toString).forEach(writer::appendNewLine);
             writer.close();
         }
 
@@ -220,18 +297,22 @@ public class Application {
         for (ConfigFile.NonUniqueAttribute att : config.getNonUniqueAttributes()) {
             System.out.println("-> decoding: " + att);
             BufferedCsvWriter writer = new BufferedCsvWriter(config.getDecodePath() + "/mapping_" + counter + "_" + att.getKey() + "_decoded.txt", false);
+            String path = config.getEncodePath() + "/mapping_" + (counter++) + "_" + att.getKey() + ".fa";
+            byte[] header = readHeader(path, att, config.getGZIPLevel(), rq(false, 0, 1f, seq -> 0f), att.getSegmentation() ? headerSegmentationCoder : doNothingSegmentationCoder);
             NonUniqueAttributeCoder coder = new NonUniqueAttributeCoder(
                     att.getKey(),
                     att.getMappingAttribute(),
                     attributeDecoder,
-                    rq(att.getGZIP(), 1f, seq -> 0f),
+                    rq(header, config.getGZIPLevel(), 1f, seq -> 0f),
                     DeltaCode.DEFAULT_RANGE_DELTA_COMPRESSOR,
                     att.getSegmentation() ? segmentationCoder : doNothingSegmentationCoder
             );
 
-            decode(coder, new ReadableFASTAFile(config.getEncodePath() + "/mapping_" + (counter++) + "_" + att.getKey() + ".fa"), config.getParallel()).map(Pair::toString).forEach(writer::appendNewLine);
+            decode(coder, new ReadableFASTAFile(path), config.getParallel()).map(Pair::toString).forEach(writer::appendNewLine);
             writer.close();
         }
+
+        GZIP.endAll();
     }
 
     static DNACoder<String> extractDnaConvertor(String dnaConvertorName) {
@@ -248,13 +329,106 @@ public class Application {
     }
 
 
-    static DNACoder<byte[]> rq(boolean useGZIP, float rqMaxError, DNARule rules) {
+    static DNACoder<byte[]> rq(boolean useGZIP, int gzipLevel, float rqMaxError, DNARule rules) {
         var rq = new RQCoder(
                 seq -> rules.evalErrorProbability(seq) <= rqMaxError,
                 seq -> rules.evalErrorProbability(seq) <= rqMaxError
         );
 
-        return useGZIP ? DNACoder.fuse(GZIP.INSTANCE, rq) : rq;
+        return useGZIP ? DNACoder.fuse(GZIP.of(gzipLevel), rq) : rq;
+    }
+
+    /**
+     * Creates the byte coder of an attribute.
+     * @param header the attribute's header, i.e., the codec's id followed by the dictionary, if any.
+     * @param gzipLevel the compression level of the dictionary codec.
+     * @param rqMaxError the maximum error of the RQ packets.
+     * @param rules the DNA rules to evaluate the error with.
+     * @return the byte coder.
+     */
+    static DNACoder<byte[]> rq(byte[] header, int gzipLevel, float rqMaxError, DNARule rules) {
+        Coder<byte[], byte[]> codec = Codecs.get(header[0], header.length > 1 ? Arrays.copyOfRange(header, 1, header.length) : null, gzipLevel);
+        DNACoder<byte[]> rq = rq(false, gzipLevel, rqMaxError, rules);
+        return codec == null ? rq : DNACoder.fuse(codec, rq);
+    }
+
+    /**
+     * Resolves the codec of an attribute. For "dict" and "auto", a dictionary is trained on a sample of the attribute's payloads in a pre-pass over the table, and "auto" chooses the codec by benchmarking the candidates on that sample (see <Code>Codecs.choose</Code>).
+     * @param att the attribute.
+     * @param sourceSupplier the supplier of the table's reader.
+     * @param payloads the function mapping the table's lines to the attribute's payloads.
+     * @param config the config file.
+     * @return the attribute's header, i.e., the codec's id followed by the dictionary if the codec is "dict".
+     */
+    static byte[] codecHeader(ConfigFile.Attribute att, Supplier<BufferedCsvReader> sourceSupplier, Function<Stream<CsvLine>, Stream<byte[]>> payloads, ConfigFile config) {
+        int codec = att.getCodec(config.getGZIPLevel());
+        byte[] dictionary = null;
+        if (Codecs.requiresDictionary(codec)) {
+            System.out.println("-> training compression dictionary for: " + att.getKey());
+            BufferedCsvReader source = sourceSupplier.get();
+            List<byte[]> sample = DictionaryGZIP.sample(payloads.apply(source.stream()), DictionaryGZIP.DEFAULT_SAMPLES);
+            source.close();
+            dictionary = DictionaryGZIP.train(sample.stream());
+            if (codec == Codecs.AUTO) {
+                codec = Codecs.choose(sample, dictionary, config.getGZIPLevel(), config.getCodecObjective());
+                System.out.println("-> chose codec " + Codecs.name(codec) + " for: " + att.getKey());
+            }
+            else if (dictionary.length == 0)
+                System.out.println("-> no payload of " + att.getKey() + " is long enough to train a dictionary, compressing with plain deflate");
+        }
+
+        byte[] header = new byte[1 + (codec == Codecs.DICTIONARY ? dictionary.length : 0)];
+        header[0] = (byte) codec;
+        if (codec == Codecs.DICTIONARY)
+            System.arraycopy(dictionary, 0, header, 1, dictionary.length);
+        return header;
+    }
+
+    /**
+     * Writes the header of an attribute as header records to a FASTA file, i.e., before its encoded lines. The header is encoded by the given coders like a line and each segment is captioned "header-i", such that decoding reads the codec before the lines.
+     * The header is only required for "dict" and "auto", since the other codecs are read from the config when decoding.
+     * The segmentation coder should not optimize the distance of the segments, since the header records are no encoded lines and should not be inserted into the LSH.
+     * @param writer the FASTA file.
+     * @param header the header created by <Code>codecHeader</Code>.
+     * @param byteCoder the byte coder without compression.
+     * @param segmentationCoder the segmentation coder.
+     */
+    static void writeHeader(WriteableFASTAFile writer, byte[] header, DNACoder<byte[]> byteCoder, SegmentationCoder segmentationCoder) {
+        BaseSequence[] segments = segmentationCoder.encode(byteCoder.encode(header));
+        for (int i = 0; i < segments.length; i++)
+            writer.append(segments[i], HEADER_CAPTION + i);
+    }
+
+    /**
+     * Reads the header written by <Code>writeHeader</Code>. A FASTA file without a header record was encoded by the attribute's configured codec, which is returned.
+     * @param path the path of the FASTA file.
+     * @param att the attribute.
+     * @param gzipLevel the level of "deflate" without a level.
+     * @param byteCoder the byte coder without compression.
+     * @param segmentationCoder the segmentation coder of the header records.
+     * @return the attribute's header, i.e., the codec's id followed by the dictionary, if any.
+     */
+    static byte[] readHeader(String path, ConfigFile.Attribute att, int gzipLevel, DNACoder<byte[]> byteCoder, SegmentationCoder segmentationCoder) {
+        List<BaseSequence> segments = new ArrayList<>();
+        try (ReadableFASTAFile reader = new ReadableFASTAFile(path)) {
+            for (ReadableFASTAFile.Entry entry : reader) {
+                if (!isHeaderRecord(entry.getCaption()))
+                    break;
+                segments.add(entry.getSeq());
+            }
+        }
+        if (segments.isEmpty())
+            return new byte[] {(byte) att.getCodec(gzipLevel)};
+
+        return byteCoder.decode(segmentationCoder.decode(segments.toArray(BaseSequence[]::new)));
+    }
+
+    /**
+     * @param caption the caption of a FASTA record.
+     * @return true if the record is a header record, e.g., of the codec, rather than an encoded line.
+     */
+    static boolean isHeaderRecord(String caption) {
+        return caption.startsWith(HEADER_CAPTION);
     }
 
     static Stream<List<AttributeCoder.EncodedLine>> encode(AttributeCoder<CsvLine, AttributeCoder.DecodedLine<?>, List<AttributeCoder.EncodedLine>> coder, BufferedCsvReader reader, boolean parallel) {
@@ -262,7 +436,7 @@ public class Application {
     }
 
     static Stream<AttributeCoder.DecodedLine<?>> decode(AttributeCoder<CsvLine, AttributeCoder.DecodedLine<?>, List<AttributeCoder.EncodedLine>> coder, ReadableFASTAFile reader, boolean parallel) {
-        Stream<AttributeCoder.EncodedLine> encodedLines = reader.stream().map(e -> {
+        Stream<AttributeCoder.EncodedLine> encodedLines = reader.stream().filter(e -> !isHeaderRecord(e.getCaption())).map(e -> {
             int spLength = Integer.parseInt(e.getCaption().split("-")[1]);
             return new AttributeCoder.EncodedLine(e.getSeq().window(0, spLength), e.getSeq().window(spLength));
         });
@@ -328,6 +502,14 @@ public class Application {
             this.distCoder = distCoder;
         }
 
+        @Override
+        public BaseSequence[] encode(long index, BaseSequence seq) {
+            if (!(distCoder instanceof DistanceCoder distanceCoder))
+                return encode(seq);
+
+            return distanceCoder.encodeBatch(index, super.encode(seq));
+        }
+
         @Override
         public BaseSequence[] encode(BaseSequence seq) {
             BaseSequence[] segments = super.encode(seq);
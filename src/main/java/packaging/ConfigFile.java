@@ -1,8 +1,12 @@
 package packaging;
 
+import org.json.JSONArray;
 import org.json.JSONObject;
 import utils.FuncUtils;
 import utils.Packer;
+import utils.compression.Codecs;
+import utils.compression.GZIP;
+import utils.lsh.MinHashSketcher;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.*;
@@ -17,6 +21,8 @@ public class ConfigFile {
     private static final String DECODE_PATH                     = "decode_path";
     private static final String PARALLEL                        = "parallel";
     private static final String RQ_MAX_ERROR                    = "rq_max_error";
+    private static final String GZIP_LEVEL                      = "gzip_level";
+    private static final String CODEC_OBJECTIVE                 = "codec_objective";
     private static final String SEGMENTATION_LENGTH             = "L_{Info}";
     private static final String SEGMENTATION_PERMUTATIONS       = "segmentation_permutations";
     private static final String SEGMENTATION_GC_CORRECTIONS     = "segmentation_gc_corrections";
@@ -34,18 +40,35 @@ public class ConfigFile {
     private static final String ATTRIBUTE_MAPPING               = "mapping";
     private static final String ATTRIBUTE_SEGMENTATION          = "segmentation";
     private static final String ATTRIBUTE_GZIP                  = "gzip";
+    private static final String ATTRIBUTE_DECODE_COLUMNS        = "decode_columns";
+    private static final String ATTRIBUTE_IDS_FORMAT            = "ids_format";
+    private static final String ATTRIBUTE_GROUP_BUFFER          = "group_buffer";
+    private static final String IDS_FORMAT_VARINT               = "varint";
+    private static final String IDS_FORMAT_TEXT                 = "text";
 
 
     private static final String LSH                             = "lsh";
     private static final String LSH_k                           = "k";
     private static final String LSH_r                           = "r";
     private static final String LSH_b                           = "b";
+    private static final String LSH_SKETCH                      = "sketch";
+    private static final String LSH_PROBES                      = "probes";
+    private static final String LSH_INDEX                       = "index";
+    private static final String LSH_APPEND                      = "append";
+    private static final String LSH_CAPACITY                    = "capacity";
+    private static final String LSH_EVICTION                    = "eviction";
+    private static final String LSH_BUCKET_CAPACITY             = "bucket_capacity";
+    private static final String LSH_SEED                        = "seed";
 
     private static final String DISTANCE_CODER                  = "distance_coder";
     private static final String DISTANCE_CODER_C_ERROR          = "c_error";
     private static final String DISTANCE_CODER_C_DISTANCE       = "c_distance";
+    private static final String DISTANCE_CODER_EPOCH_SIZE       = "epoch_size";
+    private static final String DISTANCE_CODER_VIOLATION        = "violation_distance";
 
 
+    private static final float DEFAULT_CODEC_OBJECTIVE          = 0.1f;
+
     private final JSONObject params;
 
     public ConfigFile(String configPath) {
@@ -83,6 +106,17 @@ public class ConfigFile {
         return params.getFloat(RQ_MAX_ERROR);
     }
 
+    public int getGZIPLevel() {
+        return params.optInt(GZIP_LEVEL, GZIP.DEFAULT_LEVEL);
+    }
+
+    /**
+     * @return the weight of the time over the size in [0, 1] that the codec of an attribute with "gzip" set to "auto" is chosen by.
+     */
+    public float getCodecObjective() {
+        return params.optFloat(CODEC_OBJECTIVE, DEFAULT_CODEC_OBJECTIVE);
+    }
+
     public int getSegmentationLength() {
         return params.getInt(SEGMENTATION_LENGTH);
     }
@@ -119,6 +153,38 @@ public class ConfigFile {
         return params.getJSONObject(LSH).getInt(LSH_b);
     }
 
+    public MinHashSketcher.Type getLshSketch() {
+        return MinHashSketcher.Type.of(params.getJSONObject(LSH).optString(LSH_SKETCH, "permutations"));
+    }
+
+    public int getLshProbes() {
+        return params.getJSONObject(LSH).optInt(LSH_PROBES, 0);
+    }
+
+    public String getLshIndex() {
+        return params.getJSONObject(LSH).optString(LSH_INDEX, "");
+    }
+
+    public boolean getLshAppend() {
+        return params.getJSONObject(LSH).optBoolean(LSH_APPEND, false);
+    }
+
+    public int getLshCapacity() {
+        return params.getJSONObject(LSH).optInt(LSH_CAPACITY, 0);
+    }
+
+    public String getLshEviction() {
+        return params.getJSONObject(LSH).optString(LSH_EVICTION, "fifo");
+    }
+
+    public int getLshBucketCapacity() {
+        return params.getJSONObject(LSH).optInt(LSH_BUCKET_CAPACITY, 0);
+    }
+
+    public long getLshSeed() {
+        return params.getJSONObject(LSH).optLong(LSH_SEED, 0L);
+    }
+
     public float getDistanceCoderCError() {
         return params.getJSONObject(DISTANCE_CODER).getFloat(DISTANCE_CODER_C_ERROR);
     }
@@ -127,6 +193,14 @@ public class ConfigFile {
         return params.getJSONObject(DISTANCE_CODER).getFloat(DISTANCE_CODER_C_DISTANCE);
     }
 
+    public int getDistanceCoderEpochSize() {
+        return params.getJSONObject(DISTANCE_CODER).optInt(DISTANCE_CODER_EPOCH_SIZE, 0);
+    }
+
+    public float getDistanceCoderViolationDistance() {
+        return params.getJSONObject(DISTANCE_CODER).optFloat(DISTANCE_CODER_VIOLATION, 0.5f);
+    }
+
     public List<UniqueAttribute> getUniqueAttributes() {
         return FuncUtils.stream(() -> params.getJSONArray(UNIQUE_ATTRIBUTES).iterator()).map(o -> (JSONObject) o).map(UniqueAttribute::new).toList();
     }
@@ -146,6 +220,8 @@ public class ConfigFile {
                 prefix + DECODE_PATH + ": " + getDecodePath() + "\n" +
                 "-----------------------------\n" +
                 prefix + RQ_MAX_ERROR + ": " + getRqMaxError() + "\n" +
+                prefix + GZIP_LEVEL + ": " + getGZIPLevel() + "\n" +
+                prefix + CODEC_OBJECTIVE + ": " + getCodecObjective() + "\n" +
                 prefix + SEGMENTATION_LENGTH + ": " + getSegmentationLength() + "\n" +
                 prefix + SEGMENTATION_PERMUTATIONS + ": " + getSegmentationPermutations() + "\n" +
                 prefix + SEGMENTATION_GC_CORRECTIONS + ": " + getSegmentationGcCorrections() + "\n" +
@@ -165,94 +241,142 @@ public class ConfigFile {
                 "\t" + LSH_k + ": " + getLshK() + "\n" +
                 "\t" + LSH_r + ": " + getLshR() + "\n" +
                 "\t" + LSH_b + ": " + getLshB() + "\n" +
+                "\t" + LSH_SKETCH + ": " + getLshSketch() + "\n" +
+                "\t" + LSH_PROBES + ": " + getLshProbes() + "\n" +
+                "\t" + LSH_INDEX + ": " + getLshIndex() + "\n" +
+                "\t" + LSH_APPEND + ": " + getLshAppend() + "\n" +
+                "\t" + LSH_CAPACITY + ": " + getLshCapacity() + "\n" +
+                "\t" + LSH_EVICTION + ": " + getLshEviction() + "\n" +
+                "\t" + LSH_BUCKET_CAPACITY + ": " + getLshBucketCapacity() + "\n" +
+                "\t" + LSH_SEED + ": " + getLshSeed() + "\n" +
                 "-----------------------------\n" +
                 prefix + DISTANCE_CODER + "\n" +
                 "\t" + DISTANCE_CODER_C_ERROR + ": " + getDistanceCoderCError() + "\n" +
                 "\t" + DISTANCE_CODER_C_DISTANCE + ": " + getDistanceCoderCDistance() + "\n" +
+                "\t" + DISTANCE_CODER_EPOCH_SIZE + ": " + getDistanceCoderEpochSize() + "\n" +
+                "\t" + DISTANCE_CODER_VIOLATION + ": " + getDistanceCoderViolationDistance() + "\n" +
                 "-----------------------------------------------------------\n";
     }
 
 
     public static class UniqueAttribute extends Attribute {
         private final String[] mappingAttributes;
-        private final Packer.Type[] mappingAttributesTypes;
+        private final Packer.ColumnType[] mappingAttributesTypes;
+        private final String[] decodeColumns;
 
         public UniqueAttribute(JSONObject jo) {
             super(
                     jo.getString(ATTRIBUTE_KEY),
                     jo.getBoolean(ATTRIBUTE_SEGMENTATION),
-                    jo.getBoolean(ATTRIBUTE_GZIP)
+                    jo.get(ATTRIBUTE_GZIP)
             );
             JSONObject mappings = jo.getJSONObject(ATTRIBUTE_MAPPING);
             Set<String> keySet = mappings.keySet();
             Iterator<String> keys = keySet.iterator();
             this.mappingAttributes = new String[mappings.length()];
-            this.mappingAttributesTypes = new Packer.Type[mappings.length()];
+            this.mappingAttributesTypes = new Packer.ColumnType[mappings.length()];
             int keySetSize = keySet.size();
             String key;
             for (int i = 0; i < keySetSize; i++) {
                 key = keys.next();
                 mappingAttributes[i] = key;
-                mappingAttributesTypes[i] = Packer.Type.valueOf(mappings.getString(key).toUpperCase(Locale.ROOT));
+                mappingAttributesTypes[i] = Packer.ColumnType.parse(mappings.getString(key));
             }
+            JSONArray columns = jo.optJSONArray(ATTRIBUTE_DECODE_COLUMNS);
+            this.decodeColumns = columns == null ? new String[0] : IntStream.range(0, columns.length()).mapToObj(columns::getString).toArray(String[]::new);
         }
 
         public String[] getMappingAttributes() {
             return mappingAttributes;
         }
 
-        public Packer.Type[] getMappingAttributesTypes() {
+        public Packer.ColumnType[] getMappingAttributesTypes() {
             return mappingAttributesTypes;
         }
 
+        /**
+         * @return the mapping attributes to decode, or an empty array to decode all of them.
+         */
+        public String[] getDecodeColumns() {
+            return decodeColumns;
+        }
+
         @Override
         public String toString() {
             return "UniqueAttribute{" +
                     "key='" + key + "\', " +
                     "mappingAttributes=[" + IntStream.range(0, mappingAttributes.length).mapToObj(i -> mappingAttributes[i] + ": " + mappingAttributesTypes[i]).collect(Collectors.joining(", ")) + "]\n" +
                     ", segmentation=" + segmentation +
-                    ", gzip=" + gzip +
+                    ", gzip=" + codec +
+                    (decodeColumns.length > 0 ? ", decodeColumns=" + Arrays.toString(decodeColumns) : "") +
                     '}';
         }
 
         public String withIndents(int c) {
             String indents = "\t".repeat(c);
             return super.withIndents(c) + "\n"
-                    + indents + "mappingAttributes: [" + IntStream.range(0, mappingAttributes.length).mapToObj(i -> mappingAttributes[i] + ": " + mappingAttributesTypes[i]).collect(Collectors.joining(", ")) + "]\n";
+                    + indents + "mappingAttributes: [" + IntStream.range(0, mappingAttributes.length).mapToObj(i -> mappingAttributes[i] + ": " + mappingAttributesTypes[i]).collect(Collectors.joining(", ")) + "]\n"
+                    + (decodeColumns.length > 0 ? indents + "decodeColumns: " + Arrays.toString(decodeColumns) + "\n" : "");
         }
     }
 
 
     public static class NonUniqueAttribute extends Attribute {
         private final String mappingAttribute;
+        private final String idsFormat;
+        private final int groupBuffer;
 
         public NonUniqueAttribute(JSONObject jo) {
             super(
                     jo.getString(ATTRIBUTE_KEY),
                     jo.getBoolean(ATTRIBUTE_SEGMENTATION),
-                    jo.getBoolean(ATTRIBUTE_GZIP)
+                    jo.get(ATTRIBUTE_GZIP)
             );
             this.mappingAttribute = jo.getString(ATTRIBUTE_MAPPING);
+            this.idsFormat = jo.optString(ATTRIBUTE_IDS_FORMAT, IDS_FORMAT_TEXT).toLowerCase(Locale.ROOT);
+            if (!idsFormat.equals(IDS_FORMAT_VARINT) && !idsFormat.equals(IDS_FORMAT_TEXT))
+                throw new RuntimeException(ATTRIBUTE_IDS_FORMAT + " must be \"" + IDS_FORMAT_VARINT + "\" or \"" + IDS_FORMAT_TEXT + "\": " + idsFormat);
+            this.groupBuffer = jo.optInt(ATTRIBUTE_GROUP_BUFFER, 0);
+            if (groupBuffer < 0)
+                throw new RuntimeException(ATTRIBUTE_GROUP_BUFFER + " must be >= 0: " + groupBuffer);
         }
 
         public String getMappingAttribute() {
             return mappingAttribute;
         }
 
+        /**
+         * @return true if the ids are compressed as binary varints, or false if they are compressed as decimal text.
+         */
+        public boolean getVarIntIds() {
+            return idsFormat.equals(IDS_FORMAT_VARINT);
+        }
+
+        /**
+         * @return the maximum number of open groups when grouping the csv lines while streaming them, or 0 to group all csv lines before encoding.
+         */
+        public int getGroupBuffer() {
+            return groupBuffer;
+        }
+
         @Override
         public String toString() {
             return "NonUniqueAttribute{" +
                     "mappingAttribute='" + mappingAttribute + '\'' +
                     ", key='" + key + '\'' +
                     ", segmentation=" + segmentation +
-                    ", gzip=" + gzip +
+                    ", gzip=" + codec +
+                    ", idsFormat=" + idsFormat +
+                    (groupBuffer > 0 ? ", groupBuffer=" + groupBuffer : "") +
                     '}';
         }
 
         public String withIndents(int c) {
             String indents = "\t".repeat(c);
             return super.withIndents(c) + "\n"
-                    + indents + "mapping: " + mappingAttribute;
+                    + indents + "mapping: " + mappingAttribute + "\n"
+                    + indents + "idsFormat: " + idsFormat
+                    + (groupBuffer > 0 ? "\n" + indents + "groupBuffer: " + groupBuffer : "");
         }
     }
 
@@ -260,12 +384,25 @@ public class ConfigFile {
     public abstract static class Attribute {
         protected String key;
         protected boolean segmentation;
-        protected boolean gzip;
-
-        protected Attribute(String key, boolean segmentation, boolean gzip) {
+        protected String codec;
+
+        /**
+         * @param key the attribute's name.
+         * @param segmentation true if the Info-DNAs should be segmented.
+         * @param gzip true or false, or the name of a codec (see <Code>Codecs</Code>), e.g., "dict" to compress with a dictionary trained on the table or "auto" to choose the codec on a sample of the table.
+         */
+        protected Attribute(String key, boolean segmentation, Object gzip) {
             this.key = key;
             this.segmentation = segmentation;
-            this.gzip = gzip;
+            String name = String.valueOf(gzip).trim().toLowerCase(Locale.ROOT);
+            if (name.equals("true"))
+                this.codec = Codecs.NAME_DEFLATE;
+            else if (name.equals("false"))
+                this.codec = Codecs.NAME_NONE;
+            else if (gzip instanceof String && FuncUtils.superSafeCall(() -> Codecs.parse(name, GZIP.DEFAULT_LEVEL)) != null)
+                this.codec = name;
+            else
+                throw new RuntimeException(ATTRIBUTE_GZIP + " must be true, false, \"none\", \"deflate\", \"deflate:0\" to \"deflate:9\", \"dict\", \"lz\", or \"auto\": " + gzip);
         }
 
 
@@ -278,14 +415,22 @@ public class ConfigFile {
         }
 
         public boolean getGZIP() {
-            return gzip;
+            return !codec.equals(Codecs.NAME_NONE);
+        }
+
+        /**
+         * @param deflateLevel the level of "deflate" without a level, i.e., of "gzip" set to true.
+         * @return the id of the attribute's codec, or <Code>Codecs.AUTO</Code>.
+         */
+        public int getCodec(int deflateLevel) {
+            return Codecs.parse(codec, deflateLevel);
         }
 
         public String withIndents(int c) {
             String indents = "\t".repeat(c);
             return indents + "key: " + key + "\n"
                     + indents + "segmentation: " + segmentation + "\n"
-                    + indents + "gzip: " + gzip;
+                    + indents + "gzip: " + codec;
         }
     }
 
@@ -108,7 +108,7 @@ public class Experiment1 {
 
 
     public static Aggregator.NumberAggregates distStats(List<BaseSequence> seqs, LSH lsh) {
-        return Aggregator.aggregateNumbers(seqs.stream().parallel().mapToDouble(seq -> Math.min(DistanceCoder.distanceScoreExclusive(seq, lsh, false), DistanceCoder.distanceScore(seq.complement(), lsh, false))).toArray(), true);
+        return Aggregator.aggregateNumbers(seqs.stream().parallel().mapToDouble(seq -> Math.min(DistanceCoder.distanceScoreExclusive(seq, lsh), DistanceCoder.distanceScore(seq.complement(), lsh))).toArray(), true);
     }
 }
 
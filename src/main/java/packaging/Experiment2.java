@@ -9,6 +9,9 @@ import utils.analyzing.Aggregator;
 import utils.csv.BufferedCsvWriter;
 import utils.fasta.ReadableFASTAFile;
 import utils.lsh.LSH;
+import utils.lsh.MappedLSHIndex;
+import java.io.File;
+import java.nio.file.Path;
 import java.time.Duration;
 import java.time.Instant;
 import java.util.ArrayList;
@@ -59,12 +62,30 @@ public class Experiment2 {
         System.out.println("----------------- done");
     }
 
-    static Aggregator.NumberAggregates distAggregate(List<BaseSequence> seqs, LSH lsh) {
+    /**
+     * Returns the LSH index of the given sequences. If an index file newer than the FASTA files exists and was written with the k, r, b and sketch of lsh, it is memory-mapped and queried with the probes of lsh. Otherwise, the sequences are inserted into lsh, which is then saved to that file.
+     */
+    static LSH indexed(LSH lsh, List<BaseSequence> seqs, String indexPath, List<String> fastaPaths) {
+        File index = new File(indexPath);
+        if (index.exists() && fastaPaths.stream().allMatch(p -> new File(p).lastModified() <= index.lastModified())) {
+            // the header is checked before the index is mapped, such that a stale index is rewritten without a mapping of it
+            MappedLSHIndex.Header header = MappedLSHIndex.readHeader(indexPath);
+            if (header.size() == seqs.size() && header.k() == lsh.getK() && header.r() == lsh.getR() && header.b() == lsh.getB() && header.sketch() == lsh.getSketch()) {
+                System.out.println("..opening LSH index " + indexPath);
+                return LSH.open(indexPath, lsh.getProbes());
+            }
+            System.out.println("..LSH index " + indexPath + " (k=" + header.k() + ", r=" + header.r() + ", b=" + header.b() + ", sketch=" + header.sketch() + ") does not match the LSH and is rewritten");
+        }
         System.out.println("..inserting " + seqs.size() + " sequences into LSH");
         lsh.insertParallel(seqs);
+        lsh.save(indexPath);
+        return lsh;
+    }
+
+    static Aggregator.NumberAggregates distAggregate(List<BaseSequence> seqs, LSH lsh) {
         System.out.println("..calculating distance aggregate");
         return Aggregator.aggregateNumbers(seqs.stream().parallel()
-                .mapToDouble(seq -> Math.min(DistanceCoder.distanceScoreExclusive(seq, lsh, false), DistanceCoder.distanceScore(seq.complement(), lsh, false))).toArray(), true);
+                .mapToDouble(seq -> Math.min(DistanceCoder.distanceScoreExclusive(seq, lsh), DistanceCoder.distanceScore(seq.complement(), lsh))).toArray(), true);
     }
 
     static Aggregator.NumberAggregates errorAggregate(List<BaseSequence> seqs, DNARule rules) {
@@ -119,7 +140,7 @@ public class Experiment2 {
         List<BaseSequence> infoDNAs = new ArrayList<>();
         List<BaseSequence> oligos = new ArrayList<>();
         System.out.println("reading sequences...");
-        fastaFiles.stream().flatMap(Streamable::stream).forEach(fa -> {
+        fastaFiles.stream().flatMap(Streamable::stream).filter(fa -> !Application.isHeaderRecord(fa.getCaption())).forEach(fa -> {
             String caption = fa.getCaption();
             int cbbLength = Integer.parseInt(caption.substring(caption.indexOf('-') + 1));
             cbbs.add(fa.getSeq().window(0, cbbLength));
@@ -131,6 +152,12 @@ public class Experiment2 {
         int count = cbbs.size();
         System.out.println("read " + count + " sequences");
 
+        String indexDir = Path.of(filePaths[0]).toAbsolutePath().getParent().toString();
+        List<String> fastaPaths = Arrays.asList(filePaths);
+        cbbsLSH = indexed(cbbsLSH, cbbs, indexDir + "/cbbs.lsh", fastaPaths);
+        infoDnaLSH = indexed(infoDnaLSH, infoDNAs, indexDir + "/info_dna.lsh", fastaPaths);
+        oligosLSH = indexed(oligosLSH, oligos, indexDir + "/oligos.lsh", fastaPaths);
+
         System.out.println("\ncbbs:");
         var cbbsAggs = aggregate(cbbs, cbbsLSH, rules);
         int cbbsK = cbbsLSH.getK();
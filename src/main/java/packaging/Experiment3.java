@@ -0,0 +1,110 @@
+package packaging;
+
+import core.Base;
+import core.BaseSequence;
+import dnacoders.DistanceCoder;
+import utils.csv.BufferedCsvWriter;
+import utils.lsh.LSH;
+import utils.lsh.MinHashSketcher;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+/**
+ * Compares the sketching schemes of LSH: the sketching time per sequence and the recall of mutated copies of inserted sequences.
+ */
+public class Experiment3 {
+
+    // the number of timed sketching rounds after the warm-up round, of which the fastest is reported as the sketch time
+    private static final int SKETCH_ROUNDS = 3;
+
+    public static void main(String[] args) {
+        Instant start = Instant.now();
+        int size = 100_000;
+        int queries = 10_000;
+        int length = 150;
+        var ks = new int[] {4, 6};
+        var mutationRates = new double[] {0.01d, 0.02d, 0.05d, 0.1d, 0.2d};
+        BufferedCsvWriter csv = new BufferedCsvWriter("experiment_3.csv", false);
+        if (csv.isEmpty()) {
+            csv.appendNewLine(
+                    "Sketch",
+                    "k",
+                    "r",
+                    "b",
+                    "#Sequences",
+                    "Mutation Rate",
+                    "avg(jaccard distance)",
+                    "sketch time per sequence (us)",
+                    "recall",
+                    "avg(candidates)"
+            );
+        }
+
+        System.out.printf("started generating %d sequences of length %d%n", size, length);
+        List<BaseSequence> seqs = IntStream.range(0, size).parallel().mapToObj(__ -> BaseSequence.random(length, 0.5d)).toList();
+        for (int k : ks) {
+            for (MinHashSketcher.Type sketch : MinHashSketcher.Type.values()) {
+                System.out.printf("..computing (sketch: %s, k: %d)%n", sketch, k);
+                LSH lsh = new LSH(k, 200, 20, false, sketch);
+                // the first round only warms up, such that the sketcher timed first is not biased by the JIT
+                long sketchNanos = Long.MAX_VALUE;
+                for (int round = 0; round <= SKETCH_ROUNDS; round++) {
+                    long sketchStart = System.nanoTime();
+                    seqs.stream().limit(queries).forEach(lsh::minHashes);
+                    if (round > 0)
+                        sketchNanos = Math.min(sketchNanos, System.nanoTime() - sketchStart);
+                }
+                double sketchMicros = sketchNanos / 1000.0d / queries;
+                lsh.insertParallel(seqs);
+                for (double mutationRate : mutationRates) {
+                    AtomicInteger hits = new AtomicInteger();
+                    AtomicInteger candidates = new AtomicInteger();
+                    double avgDist = IntStream.range(0, queries).parallel().mapToDouble(i -> {
+                        BaseSequence original = seqs.get(i);
+                        BaseSequence mutated = mutate(original, mutationRate, new Random(i));
+                        candidates.addAndGet(lsh.forEachSimilarSeq(mutated, can -> {
+                            if (can == original)
+                                hits.incrementAndGet();
+                        }));
+                        return DistanceCoder.jaccardDistanceLowK(DistanceCoder.kmersJaccard(original, k), DistanceCoder.kmersJaccard(mutated, k));
+                    }).average().orElse(1.0d);
+
+                    csv.appendNewLine(
+                            Stream.of(
+                                    sketch,
+                                    k,
+                                    lsh.getR(),
+                                    lsh.getB(),
+                                    size,
+                                    mutationRate,
+                                    avgDist,
+                                    sketchMicros,
+                                    (double) hits.get() / queries,
+                                    (double) candidates.get() / queries
+                            ).map(Object::toString).toArray(String[]::new));
+
+                    csv.flush();
+                }
+                System.out.printf("finished (sketch: %s, k: %d)%n%n", sketch, k);
+            }
+        }
+        csv.close();
+
+        System.out.println("\n-----------------------------------------------------------\nExperiment 3 took: " + Application.elapsedTime(Duration.between(start, Instant.now())) + "\n-----------------------------------------------------------\n");
+    }
+
+    static BaseSequence mutate(BaseSequence seq, double rate, Random rand) {
+        BaseSequence mutated = seq.clone();
+        Base[] bases = Base.values();
+        for (int i = 0; i < mutated.length(); i++) {
+            if (rand.nextDouble() < rate)
+                mutated.set(i, bases[(mutated.get(i).ordinal() + 1 + rand.nextInt(bases.length - 1)) % bases.length]);
+        }
+        return mutated;
+    }
+}
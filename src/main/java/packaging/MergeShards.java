@@ -0,0 +1,127 @@
+package packaging;
+
+import core.BaseSequence;
+import core.dnarules.BasicDNARules;
+import dnacoders.DistanceCoder;
+import utils.FuncUtils;
+import utils.fasta.ReadableFASTAFile;
+import utils.fasta.WriteableFASTAFile;
+import utils.lsh.LSH;
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.IntPredicate;
+
+/**
+ * The second phase of encoding a table in shards, e.g., by Application processes on separate machines. Each shard is encoded with its own config file that sets an "index" and the same "lsh" parameters, including the same non-zero "seed".
+ * MergeShards then merges the shard indexes into one index and checks each Info-DNA segment of the i-th shard against the segments of the shards before it and the segments optimized again so far. Only a segment whose distance is below "violation_distance" is decoded, optimized again against the merged LSH, and rewritten in its FASTA file.
+ * The CBB of a rewritten segment is unchanged, such that each shard still decodes with its own config file. The previous version of a rewritten segment remains in the merged index, which only makes subsequent optimizations against it more conservative.
+ */
+public class MergeShards {
+
+    public static void main(String... args) {
+        if (args.length < 2) {
+            System.out.println("usage: MergeShards <merged index path> <shard config> [<shard config> ...]");
+            return;
+        }
+        Instant start = Instant.now();
+        merge(args[0], Arrays.stream(args, 1, args.length).map(ConfigFile::new).toList());
+        System.out.println("\n-----------------------------------------------------------------\nMerging took: " + Application.elapsedTime(Duration.between(start, Instant.now())) + "\n-----------------------------------------------------------------\n");
+    }
+
+    /**
+     * Merges the LSH indexes of the given shards and optimizes the Info-DNA segments that violate the distance to the shards before them again.
+     * @param indexPath the path of the merged index file.
+     * @param shards the config files the shards were encoded with. The parameters of the distance coder are taken from the first one.
+     * @return the LSH instance of the merged index, including the segments that were optimized again.
+     */
+    public static LSH merge(String indexPath, List<ConfigFile> shards) {
+        String[] shardIndexes = shards.stream().map(ConfigFile::getLshIndex).toArray(String[]::new);
+        int[] offsets = new int[shardIndexes.length + 1];
+        for (int i = 0; i < shardIndexes.length; i++) {
+            if (shardIndexes[i].isEmpty() || !new File(shardIndexes[i]).exists())
+                throw new RuntimeException("shard " + i + " has no LSH index");
+            offsets[i + 1] = offsets[i] + LSH.open(shardIndexes[i]).size();
+        }
+
+        System.out.println("[merging " + shardIndexes.length + " LSH indexes into " + indexPath + "]");
+        LSH lsh = LSH.merge(indexPath, shardIndexes);
+        ConfigFile config = shards.get(0);
+        if (config.getSegmentationPermutations() <= 0)
+            return lsh;
+
+        DistanceCoder distanceCoder = new DistanceCoder(
+                false,
+                config.getSegmentationPermutations(),
+                lsh,
+                BasicDNARules.INSTANCE,
+                config.getDistanceCoderCError(),
+                config.getDistanceCoderCDistance()
+        );
+        float violationDistance = config.getDistanceCoderViolationDistance();
+        int mergedSize = offsets[shardIndexes.length];
+        System.out.println("[checking the distances across shards]");
+        for (int i = 1; i < shardIndexes.length; i++) {
+            int shardOffset = offsets[i];
+            // the shards before the i-th shard and the segments optimized again so far, which are appended to the merged index
+            IntPredicate accepted = id -> id < shardOffset || id >= mergedSize;
+            for (String path : segmentedFASTAFiles(shards.get(i))) {
+                int[] counts = reoptimize(path, lsh, distanceCoder, accepted, violationDistance);
+                System.out.println("-> " + path + ": optimized " + counts[1] + " of " + counts[0] + " segments again");
+            }
+        }
+
+        System.out.println("[saving LSH index to " + indexPath + "]");
+        lsh.save(indexPath);
+        return lsh;
+    }
+
+    private static int[] reoptimize(String path, LSH lsh, DistanceCoder distanceCoder, IntPredicate accepted, float violationDistance) {
+        int probes = lsh.getProbes();
+        String tmp = path + ".tmp";
+        int[] counts = new int[2];
+        try (ReadableFASTAFile reader = new ReadableFASTAFile(path); WriteableFASTAFile writer = new WriteableFASTAFile(tmp, false)) {
+            for (ReadableFASTAFile.Entry entry : reader) {
+                if (Application.isHeaderRecord(entry.getCaption())) {
+                    writer.append(entry.getSeq(), entry.getCaption());
+                    continue;
+                }
+                int cbbLength = Integer.parseInt(entry.getCaption().split("-")[1]);
+                BaseSequence seq = entry.getSeq();
+                BaseSequence segment = seq.window(cbbLength);
+                float distance = Math.min(DistanceCoder.distanceScore(segment, lsh, probes, accepted), DistanceCoder.distanceScore(segment.complement(), lsh, probes, accepted));
+                if (distance < violationDistance) {
+                    seq = new BaseSequence(seq.window(0, cbbLength), distanceCoder.encode(distanceCoder.decode(segment)));
+                    counts[1]++;
+                }
+                writer.append(seq, entry.getCaption());
+                counts[0]++;
+            }
+        }
+        FuncUtils.safeRun(() -> Files.move(Path.of(tmp), Path.of(path), StandardCopyOption.REPLACE_EXISTING));
+        return counts;
+    }
+
+    private static List<String> segmentedFASTAFiles(ConfigFile config) {
+        List<String> paths = new ArrayList<>();
+        int counter = 0;
+        for (ConfigFile.UniqueAttribute att : config.getUniqueAttributes()) {
+            String path = config.getEncodePath() + "/u_mapping_" + (counter++) + "_" + att.getKey() + ".fa";
+            if (att.getSegmentation())
+                paths.add(path);
+        }
+        counter = 0;
+        for (ConfigFile.NonUniqueAttribute att : config.getNonUniqueAttributes()) {
+            String path = config.getEncodePath() + "/mapping_" + (counter++) + "_" + att.getKey() + ".fa";
+            if (att.getSegmentation())
+                paths.add(path);
+        }
+        return paths;
+    }
+}
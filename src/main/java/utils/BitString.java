@@ -1,40 +1,33 @@
 package utils;
 
 import java.io.Serializable;
-import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
-import java.util.BitSet;
+import java.util.Arrays;
 import java.util.Iterator;
-import java.util.Objects;
-import java.util.stream.Collector;
 
+/**
+ * A growable string of bits that is backed by an array of 64-bit words. The bit at position i is stored in word i / 64, the first bit of a word being its most significant bit. Hence, appending or reading n &lt;= 64 bits touches at most two words.
+ * All bits at positions &gt;= length() are 0.
+ */
 public class BitString implements Appendable, Streamable<Boolean>, CharSequence, Cloneable, Serializable {
 
     private static final char TRUE  = '1';
     private static final char FALSE = '0';
 
-    private static final int HIGHEST_SET_BIT_BYTE_POS = Byte.SIZE - 1;
-    private static final int HIGHEST_SET_BIT_BYTE = 1 << HIGHEST_SET_BIT_BYTE_POS;
+    private static final int WORD_BITS = Long.SIZE;
+    private static final int WORD_SHIFT = 6;
+    private static final int WORD_MASK = WORD_BITS - 1;
 
-    private static final int HIGHEST_SET_BIT_SHORT_POS = Short.SIZE - 1;
-    private static final int HIGHEST_SET_BIT_SHORT = 1 << HIGHEST_SET_BIT_SHORT_POS;
-
-    private static final int HIGHEST_SET_BIT_INT_POS = Integer.SIZE - 1;
-    private static final int HIGHEST_SET_BIT_INT = 1 << HIGHEST_SET_BIT_INT_POS;
-
-    private static final int HIGHEST_SET_BIT_LONG_POS = Long.SIZE - 1;
-    private static final long HIGHEST_SET_BIT_LONG = 1L << HIGHEST_SET_BIT_LONG_POS;
-
-    private final BitSet bits;
+    private long[] words;
     private int length;
 
     public BitString() {
-        this.bits = new BitSet();
+        this.words = new long[2];
         this.length = 0;
     }
 
     public BitString(byte[] bytes) {
-        this();
+        this.words = new long[Math.max(1, wordCount(bytes.length * Byte.SIZE))];
+        this.length = 0;
         append(bytes);
     }
 
@@ -45,20 +38,101 @@ public class BitString implements Appendable, Streamable<Boolean>, CharSequence,
             append(c);
     }
 
-    private BitString(BitSet bits, int length) {
-        this.bits = bits;
+    private BitString(long[] words, int length) {
+        this.words = words;
         this.length = length;
     }
 
     public BitString append(boolean bit) {
-        this.bits.set(length++, bit);
+        ensureCapacity(length + 1);
+        if (bit)
+            words[length >>> WORD_SHIFT] |= Long.MIN_VALUE >>> (length & WORD_MASK);
+        length++;
         return this;
     }
 
     public BitString append(boolean bit, int nTimes) {
-        while (nTimes-- > 0)
-            this.append(bit);
+        if (nTimes <= 0)
+            return this;
+        if (!bit) {
+            ensureCapacity(length + nTimes);
+            length += nTimes;
+            return this;
+        }
+        while (nTimes >= WORD_BITS) {
+            appendBits(-1L, WORD_BITS);
+            nTimes -= WORD_BITS;
+        }
+        return appendBits(-1L, nTimes);
+    }
+
+    /**
+     * Appends the nBits least significant bits of a value, the most significant of them first.
+     * @param value the value.
+     * @param nBits the number of bits to append (0 to 64).
+     * @return this instance.
+     */
+    public BitString appendBits(long value, int nBits) {
+        if (nBits <= 0)
+            return this;
+        ensureCapacity(length + nBits);
+        long bits = nBits == WORD_BITS ? value : value & ((1L << nBits) - 1L);
+        int w = length >>> WORD_SHIFT;
+        int free = WORD_BITS - (length & WORD_MASK);
+        if (nBits <= free) {
+            words[w] |= bits << (free - nBits);
+        }
+        else {
+            words[w] |= bits >>> (nBits - free);
+            words[w + 1] |= bits << (WORD_BITS - (nBits - free));
+        }
+        length += nBits;
+        return this;
+    }
 
+    /**
+     * Reads nBits bits starting at a given position as an unsigned value, the first bit being the most significant.
+     * @param pos the position of the first bit.
+     * @param nBits the number of bits to read (0 to 64).
+     * @return the value.
+     */
+    public long readBits(int pos, int nBits) {
+        checkLimit(pos + nBits, length);
+        if (nBits <= 0)
+            return 0L;
+        int w = pos >>> WORD_SHIFT;
+        int offset = pos & WORD_MASK;
+        long bits = words[w] << offset;
+        if (offset + nBits > WORD_BITS)
+            bits |= words[w + 1] >>> (WORD_BITS - offset);
+
+        return bits >>> (WORD_BITS - nBits);
+    }
+
+    /**
+     * Overwrites nBits bits starting at a given position with the nBits least significant bits of a value, e.g., to fill in a prefix that was reserved before the bits following it were known.
+     * @param pos the position of the first bit.
+     * @param value the value.
+     * @param nBits the number of bits to write (0 to 64).
+     * @return this instance.
+     */
+    public BitString setBits(int pos, long value, int nBits) {
+        checkLimit(pos + nBits, length);
+        if (nBits <= 0)
+            return this;
+        long mask = nBits == WORD_BITS ? -1L : (1L << nBits) - 1L;
+        long bits = value & mask;
+        int w = pos >>> WORD_SHIFT;
+        int free = WORD_BITS - (pos & WORD_MASK);
+        if (nBits <= free) {
+            int shift = free - nBits;
+            words[w] = (words[w] & ~(mask << shift)) | (bits << shift);
+        }
+        else {
+            int rest = nBits - free;
+            words[w] = (words[w] & ~(mask >>> rest)) | (bits >>> rest);
+            words[w + 1] = (words[w + 1] & ~(mask << (WORD_BITS - rest))) | (bits << (WORD_BITS - rest));
+        }
         return this;
     }
 
@@ -71,11 +145,11 @@ public class BitString implements Appendable, Streamable<Boolean>, CharSequence,
     }
 
     public BitString append(double d) {
-        return append(ByteBuffer.allocate(Double.BYTES).order(ByteOrder.BIG_ENDIAN).putDouble(d).array());
+        return appendBits(Double.doubleToRawLongBits(d), Double.SIZE);
     }
 
     public BitString append(float f) {
-        return append(ByteBuffer.allocate(Float.BYTES).order(ByteOrder.BIG_ENDIAN).putFloat(f).array());
+        return appendBits(Float.floatToRawIntBits(f), Float.SIZE);
     }
 
     public BitString append(short s) {
@@ -83,12 +157,28 @@ public class BitString implements Appendable, Streamable<Boolean>, CharSequence,
     }
 
     public BitString append(int integer, boolean fill) {
-        append(integer, fill, true);
-        return this;
+        return appendNumber(integer & 0xFFFFFFFFL, Integer.SIZE, fill);
+    }
+
+    /**
+     * Appends the bits of another BitString.
+     * @param bs the BitString to append.
+     * @return this instance.
+     */
+    public BitString append(BitString bs) {
+        int n = bs.length;
+        ensureCapacity(length + n);
+        int pos = 0;
+        for (; pos + WORD_BITS <= n; pos += WORD_BITS)
+            appendBits(bs.readBits(pos, WORD_BITS), WORD_BITS);
+
+        return appendBits(bs.readBits(pos, n - pos), n - pos);
     }
 
     @Override
     public BitString append(CharSequence cs) {
+        if (cs instanceof BitString bs)
+            return append(bs);
         return append(cs, 0, cs.length());
     }
 
@@ -120,103 +210,59 @@ public class BitString implements Appendable, Streamable<Boolean>, CharSequence,
     }
 
     public BitString append(byte[] bytes, boolean fill) {
-        for (byte b : bytes)
-            append(b, fill, false);
+        if (!fill) {
+            for (byte b : bytes)
+                append(b, false);
+            return this;
+        }
+        ensureCapacity(length + bytes.length * Byte.SIZE);
+        int i = 0;
+        for (; i + Long.BYTES <= bytes.length; i += Long.BYTES) {
+            long word = 0L;
+            for (int j = 0; j < Long.BYTES; j++)
+                word = (word << Byte.SIZE) | (bytes[i + j] & 0xFFL);
+            appendBits(word, WORD_BITS);
+        }
+        for (; i < bytes.length; i++)
+            appendBits(bytes[i], Byte.SIZE);
 
         return this;
     }
 
     public BitString append(byte b) {
-        append(b, true, false);
-        return this;
+        return append(b, true);
     }
 
     public BitString append(byte b, boolean fill) {
-        append(b, fill, false);
-        return this;
-    }
-
-    private void append(int i, boolean fill, boolean isInt) {
-        int highest1 = getHighest1Pos(i, isInt);
-        if (fill) {
-            int fillCounter = isInt? HIGHEST_SET_BIT_INT_POS : HIGHEST_SET_BIT_BYTE_POS;
-            append(false, fillCounter - highest1);
-        }
-        appendFrom(i, highest1);
+        return appendNumber(b & 0xFFL, Byte.SIZE, fill);
     }
 
     public BitString append(long l, boolean fill) {
-        int highest1 = getHighest1Pos(l);
-        if (fill)
-            append(false, HIGHEST_SET_BIT_LONG_POS - highest1);
-
-        appendFrom(l, highest1);
-        return this;
+        return appendNumber(l, Long.SIZE, fill);
     }
 
     public BitString append(short s, boolean fill) {
-        int highest1 = getHighest1Pos(s);
-        if (fill)
-            append(false, HIGHEST_SET_BIT_SHORT_POS - highest1);
+        return appendNumber(s & 0xFFFFL, Short.SIZE, fill);
+    }
 
-        appendFrom(s, highest1);
-        return this;
+    /**
+     * Appends the bits of a number of a given width. Without filling, the bits from the highest 1 bit of the number (or a single 0 bit for 0) are appended.
+     */
+    private BitString appendNumber(long bits, int width, boolean fill) {
+        if (fill)
+            return appendBits(bits, width);
+        return appendBits(bits, bits == 0L ? 1 : WORD_BITS - Long.numberOfLeadingZeros(bits));
     }
 
     public void clear() {
+        Arrays.fill(words, 0, Math.min(words.length, wordCount(length)), 0L);
         this.length = 0;
     }
 
-    private void appendFrom(long l, int index) {
-        long mask = 1L << index;
-        do {
-            append((l & mask) == mask);
-            mask >>= 1;
-        } while (mask != 0);
-    }
-
-    private int getHighest1Pos(int i, boolean isInt) {
-        if (i == 0)
-            return 0;
-        int mask = HIGHEST_SET_BIT_INT;
-        int highest1 = HIGHEST_SET_BIT_INT_POS;
-        if (!isInt) {
-            mask = HIGHEST_SET_BIT_BYTE;
-            highest1 = HIGHEST_SET_BIT_BYTE_POS;
-        }
-        while((i & mask) == 0) {
-            highest1--;
-            mask >>= 1;
-        }
-        return highest1;
-    }
-
-    private int getHighest1Pos(long l) {
-        if (l == 0)
-            return 0;
-        long mask = HIGHEST_SET_BIT_LONG;
-        int highest1 = HIGHEST_SET_BIT_LONG_POS;
-        while((l & mask) == 0) {
-            highest1--;
-            mask >>= 1;
-        }
-        return highest1;
-    }
-
-    private int getHighest1Pos(short s) {
-        if (s == 0)
-            return 0;
-        int mask = HIGHEST_SET_BIT_SHORT;
-        int highest1 = HIGHEST_SET_BIT_SHORT_POS;
-        while((s & mask) == 0) {
-            highest1--;
-            mask >>= 1;
-        }
-        return highest1;
-    }
-
     public boolean get(int i) {
-        return this.bits.get(i);
+        if (i >= length)
+            return false;
+        return (words[i >>> WORD_SHIFT] & (Long.MIN_VALUE >>> (i & WORD_MASK))) != 0L;
     }
 
     @Override
@@ -226,7 +272,13 @@ public class BitString implements Appendable, Streamable<Boolean>, CharSequence,
 
     public BitString subString(int from, int to) {
         checkLimit(to, length);
-        return new BitString(this.bits.get(from, to), to - from);
+        int n = to - from;
+        BitString bs = new BitString(new long[Math.max(1, wordCount(n))], 0);
+        int pos = from;
+        for (; pos + WORD_BITS <= to; pos += WORD_BITS)
+            bs.appendBits(readBits(pos, WORD_BITS), WORD_BITS);
+
+        return bs.appendBits(readBits(pos, to - pos), to - pos);
     }
 
     public BitString subString(int from) {
@@ -236,14 +288,14 @@ public class BitString implements Appendable, Streamable<Boolean>, CharSequence,
     public void set(int pos, boolean value) {
         if (pos < length)
             if (value)
-                this.bits.set(pos);
+                words[pos >>> WORD_SHIFT] |= Long.MIN_VALUE >>> (pos & WORD_MASK);
             else
-                this.bits.clear(pos);
+                words[pos >>> WORD_SHIFT] &= ~(Long.MIN_VALUE >>> (pos & WORD_MASK));
     }
 
     public void flip(int pos) {
         if (pos < length)
-            this.bits.flip(pos);
+            words[pos >>> WORD_SHIFT] ^= Long.MIN_VALUE >>> (pos & WORD_MASK);
     }
 
     public int toInt(int from) {
@@ -255,11 +307,11 @@ public class BitString implements Appendable, Streamable<Boolean>, CharSequence,
     }
 
     public float toFloat(int from) {
-        return ByteBuffer.wrap(toBytes(from, from + Float.SIZE)).order(ByteOrder.BIG_ENDIAN).getFloat();
+        return Float.intBitsToFloat((int) readBits(from, Float.SIZE));
     }
 
     public double toDouble(int from) {
-        return ByteBuffer.wrap(toBytes(from, from + Double.SIZE)).order(ByteOrder.BIG_ENDIAN).getDouble();
+        return Double.longBitsToDouble(readBits(from, Double.SIZE));
     }
 
     public byte toByte(int from) {
@@ -282,27 +334,13 @@ public class BitString implements Appendable, Streamable<Boolean>, CharSequence,
     public int toInt(int from, int to) {
         checkLimit(to, length);
         checkRangeSize(from, to, Integer.SIZE);
-        int result = 0;
-        int c = 0;
-        for (int k = to - 1; k >= from; k--) {
-            if (bits.get(k))
-                result |= 1 << c;
-            c++;
-        }
-        return result;
+        return (int) readBits(from, to - from);
     }
 
     public long toLong(int from, int to) {
         checkLimit(to, length);
         checkRangeSize(from, to, Long.SIZE);
-        long result = 0;
-        int c = 0;
-        for (int k = to - 1; k >= from; k--) {
-            if (bits.get(k))
-                result |= 1L << c;
-            c++;
-        }
-        return result;
+        return readBits(from, to - from);
     }
 
     private static void checkRangeSize(int from, int to, int maxLength) {
@@ -326,10 +364,15 @@ public class BitString implements Appendable, Streamable<Boolean>, CharSequence,
             throw new RuntimeException("cannot convert BitString to byte array: length % " + Byte.SIZE + " != 0");
 
         byte[] bytes = new byte[numBits / Byte.SIZE];
-        Iterator<Byte> byteIt = byteIterator(from, to);
         int c = 0;
-        while(byteIt.hasNext())
-            bytes[c++] = byteIt.next();
+        int pos = from;
+        for (; pos + WORD_BITS <= to; pos += WORD_BITS) {
+            long word = readBits(pos, WORD_BITS);
+            for (int shift = WORD_BITS - Byte.SIZE; shift >= 0; shift -= Byte.SIZE)
+                bytes[c++] = (byte) (word >>> shift);
+        }
+        for (; pos < to; pos += Byte.SIZE)
+            bytes[c++] = (byte) readBits(pos, Byte.SIZE);
 
         return bytes;
     }
@@ -373,14 +416,14 @@ public class BitString implements Appendable, Streamable<Boolean>, CharSequence,
 
             @Override
             public Boolean next() {
-                return bits.get(index++);
+                return get(index++);
             }
         };
     }
 
     @Override
     public char charAt(int index) {
-        return this.bits.get(index)? TRUE : FALSE;
+        return get(index)? TRUE : FALSE;
     }
 
     @Override
@@ -396,29 +439,41 @@ public class BitString implements Appendable, Streamable<Boolean>, CharSequence,
             return toString().equals(o);
         if (o instanceof BitString bs) {
             return length == bs.length
-                    && bits.equals(bs.bits);
+                    && Arrays.equals(words, 0, wordCount(length), bs.words, 0, wordCount(length));
         }
         return false;
     }
 
     @Override
     public int hashCode() {
-        return Objects.hash(bits, length);
+        int h = 1;
+        for (int w = 0; w < wordCount(length); w++)
+            h = 31 * h + Long.hashCode(words[w]);
+
+        return 31 * h + length;
     }
 
     @Override
     public String toString() {
-        return stream()
-                .map(b -> b? TRUE : FALSE)
-                .collect(Collector.of(
-                        () -> new StringBuilder(length),
-                        StringBuilder::append,
-                        StringBuilder::append,
-                        StringBuilder::toString));
+        StringBuilder sb = new StringBuilder(length);
+        for (int i = 0; i < length; i++)
+            sb.append(get(i) ? TRUE : FALSE);
+
+        return sb.toString();
     }
 
     @Override
     protected BitString clone() {
-        return new BitString((BitSet) this.bits.clone(), length);
+        return new BitString(words.clone(), length);
+    }
+
+    private void ensureCapacity(int bits) {
+        int required = wordCount(bits);
+        if (required > words.length)
+            words = Arrays.copyOf(words, Math.max(required, words.length << 1));
+    }
+
+    private static int wordCount(int bits) {
+        return (bits + WORD_MASK) >>> WORD_SHIFT;
     }
 }
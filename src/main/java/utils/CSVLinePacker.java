@@ -2,34 +2,392 @@ package utils;
 
 import dnacoders.Coder;
 import utils.csv.CsvLine;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
 import java.util.Map;
 import java.util.stream.Collectors;
 import java.util.stream.IntStream;
 
 public final class CSVLinePacker {
 
+    /**
+     * The format versions of a packed row, recorded in the padding prefix. Rows of the signature format are a sequence of signature-tagged values, and rows of the presence format start with a bitmap of the attributes present in the row, such that empty fields are not packed at all.
+     * Rows of the schema format also start with that bitmap, but omit the signatures of the values, since their types are given by the schema. Only a value that does not parse as its type is escaped by a single bit and packed as a string.
+     */
+    static final int FORMAT_SIGNATURES = 0;
+    static final int FORMAT_PRESENCE = 1;
+    static final int FORMAT_SCHEMA = 2;
+
+    private static final int MAX_SIZE_8_BIT = 255;
+    private static final int MAX_SIZE_16_BIT = 65535;
+    private static final double[] POWERS_OF_TEN = IntStream.rangeClosed(0, Packer.ColumnType.MAX_SCALE).mapToDouble(i -> Math.pow(10d, i)).toArray();
+
+    /**
+     * Creates a coder that packs the given attributes of a CsvLine.
+     * @param attributeNames the names of the attributes to pack.
+     * @param types the types of the attributes.
+     * @return the coder.
+     */
     public static Coder<CsvLine, byte[]> fromTypeByAttributeNameArrays(String[] attributeNames, Packer.Type[] types) {
+        return fromTypeByAttributeNameArrays(attributeNames, Arrays.stream(types).map(Packer.ColumnType::new).toArray(Packer.ColumnType[]::new));
+    }
+
+    /**
+     * Creates a coder that packs the given attributes of a CsvLine. The attributes are resolved against the header of the first CsvLine encoded, i.e., its column mapping, and the compiled packer is reused as long as the CsvLines share that column mapping.
+     * @param attributeNames the names of the attributes to pack.
+     * @param types the types of the attributes.
+     * @return the coder.
+     */
+    public static Coder<CsvLine, byte[]> fromTypeByAttributeNameArrays(String[] attributeNames, Packer.ColumnType[] types) {
         return new Coder<>() {
             final Map<String, Integer> colMapping = IntStream.range(0, attributeNames.length).boxed().collect(Collectors.toMap(i -> attributeNames[i], i -> i));
+            volatile Compiled compiled;
+
             @Override
             public byte[] encode(CsvLine csvLine) {
-                BitString buff = new BitString();
-                IntStream.range(0, attributeNames.length).forEach(i -> packSafe(csvLine.get(attributeNames[i]), buff, types[i]));
-                return Packer.withBytePadding(buff).toBytes();
+                Compiled c = compiled;
+                if (c == null || c.header != csvLine.getColMapping()) {
+                    c = compile(attributeNames, types, csvLine.getColMapping());
+                    compiled = c;
+                }
+                return c.pack(csvLine.getSplitLine());
             }
 
             @Override
             public CsvLine decode(byte[] bytes) {
-                return new CsvLine(
-                        unpackALl(Packer.withoutBytePadding(new BitString().append(bytes))),
-                        colMapping
-                );
+                BitString bits = new BitString().append(bytes);
+                BitString packed = Packer.withoutBytePadding(bits);
+                String[] fields = switch (Packer.getPaddingVersion(bits)) {
+                    case FORMAT_SCHEMA -> unpackSchema(packed, types);
+                    case FORMAT_PRESENCE -> unpackPresent(packed, attributeNames.length);
+                    case FORMAT_SIGNATURES -> unpackALl(packed);
+                    default -> throw new RuntimeException("unknown row format " + Packer.getPaddingVersion(bits));
+                };
+                return new CsvLine(fields, colMapping);
+            }
+        };
+    }
+
+    /**
+     * Creates a projection that decodes only the given columns of rows packed for the given attributes.
+     * @param attributeNames the names of the packed attributes.
+     * @param types the types of the packed attributes.
+     * @param columns the names of the columns to decode, in the order of the projected CsvLine.
+     * @return the projection.
+     */
+    public static Projection projection(String[] attributeNames, Packer.ColumnType[] types, String... columns) {
+        Map<String, Integer> attributeIndexes = IntStream.range(0, attributeNames.length).boxed().collect(Collectors.toMap(i -> attributeNames[i], i -> i));
+        int[] targets = new int[attributeNames.length];
+        Arrays.fill(targets, -1);
+        int last = -1;
+        for (int i = 0; i < columns.length; i++) {
+            Integer index = attributeIndexes.get(columns[i]);
+            if (index == null)
+                throw new RuntimeException("column not found: " + columns[i]);
+            if (targets[index] >= 0)
+                throw new RuntimeException("duplicate column: " + columns[i]);
+            targets[index] = i;
+            last = Math.max(last, index);
+        }
+        Map<String, Integer> colMapping = IntStream.range(0, columns.length).boxed().collect(Collectors.toMap(i -> columns[i], i -> i));
+        return new Projection(types, targets, last + 1, colMapping);
+    }
+
+    /**
+     * Decodes a subset of the columns of packed rows. Rows in the schema format are unpacked up to the last requested column only, and the values of the other columns before it are skipped without being materialized. This class is thread-safe.
+     */
+    public static final class Projection {
+        private final Packer.ColumnType[] types;
+        private final int[] targets;
+        private final int end;
+        private final Map<String, Integer> colMapping;
+        private final int size;
+
+        private Projection(Packer.ColumnType[] types, int[] targets, int end, Map<String, Integer> colMapping) {
+            this.types = types;
+            this.targets = targets;
+            this.end = end;
+            this.colMapping = colMapping;
+            this.size = colMapping.size();
+        }
+
+        /**
+         * Decodes the requested columns of a packed row.
+         * @param bytes the packed row.
+         * @return the CsvLine with the requested columns, in the requested order.
+         */
+        public CsvLine decode(byte[] bytes) {
+            BitString bits = new BitString().append(bytes);
+            BitString packed = Packer.withoutBytePadding(bits);
+            int version = Packer.getPaddingVersion(bits);
+            String[] fields = new String[size];
+            if (version != FORMAT_SCHEMA) {
+                String[] all = version == FORMAT_PRESENCE ? unpackPresent(packed, types.length) : unpackALl(packed);
+                for (int i = 0; i < end; i++)
+                    if (targets[i] >= 0)
+                        fields[targets[i]] = all[i];
+
+                return new CsvLine(fields, colMapping);
+            }
+
+            int pos = types.length;
+            for (int i = 0; i < end; i++) {
+                if (packed.get(i))
+                    pos = unpackSchemaValue(packed, pos, types[i], targets[i] >= 0 ? fields : null, targets[i]);
+                else if (targets[i] >= 0)
+                    fields[targets[i]] = "";
+            }
+            return new CsvLine(fields, colMapping);
+        }
+    }
+
+    /**
+     * Compiles a packer for the given attributes and CSV header. The column index and the writer of each attribute are resolved once, such that packing a row only parses its fields and appends their bits.
+     * A row is packed in the schema format: a bitmap marks the fields that are neither empty nor missing, and only those are packed without signatures, with an escape to a string for fields that do not parse as their type.
+     * @param attributeNames the names of the attributes to pack.
+     * @param types the types of the attributes.
+     * @param header the CSV header that maps a column name to its index.
+     * @return the compiled packer.
+     */
+    public static Compiled compile(String[] attributeNames, Packer.ColumnType[] types, Map<String, Integer> header) {
+        int[] columns = new int[attributeNames.length];
+        ColumnWriter[] writers = new ColumnWriter[attributeNames.length];
+        for (int i = 0; i < attributeNames.length; i++) {
+            Integer index = header.get(attributeNames[i]);
+            if (index == null)
+                throw new RuntimeException("column not found: " + attributeNames[i]);
+            columns[i] = index;
+            writers[i] = writer(types[i]);
+        }
+        return new Compiled(header, columns, writers);
+    }
+
+    /**
+     * A packer compiled for a CSV header. This class is thread-safe.
+     */
+    public static final class Compiled {
+        private final Map<String, Integer> header;
+        private final int[] columns;
+        private final ColumnWriter[] writers;
+        private final ThreadLocal<BitString> buffers;
+
+        private Compiled(Map<String, Integer> header, int[] columns, ColumnWriter[] writers) {
+            this.header = header;
+            this.columns = columns;
+            this.writers = writers;
+            this.buffers = ThreadLocal.withInitial(BitString::new);
+        }
+
+        /**
+         * Packs the fields of a row into the calling thread's reusable buffer and returns the padded bytes.
+         * @param fields the fields of the row in the order of the CSV header. Trailing fields may be missing, and are then packed as empty fields.
+         * @return the packed bytes.
+         */
+        public byte[] pack(String[] fields) {
+            BitString buff = buffers.get();
+            buff.clear();
+            buff.append(false, Byte.SIZE + columns.length);
+            for (int i = 0; i < columns.length; i++) {
+                String field = columns[i] < fields.length ? fields[columns[i]] : null;
+                if (field != null && !field.isEmpty()) {
+                    buff.set(Byte.SIZE + i, true);
+                    writers[i].write(field, buff);
+                }
+            }
+
+            return Packer.withBytePaddingInPlace(buff, FORMAT_SCHEMA).toBytes();
+        }
+    }
+
+    /**
+     * Appends a non-empty field's value to a BitString in the schema format. A field that does not parse as the writer's type is detected without throwing and escaped as a string.
+     */
+    private interface ColumnWriter {
+        void write(String field, BitString buff);
+    }
+
+    private static ColumnWriter writer(Packer.ColumnType columnType) {
+        return switch (columnType.getType()) {
+            case BYTE -> integerWriter(Byte.MIN_VALUE, Byte.MAX_VALUE, Byte.SIZE);
+            case SHORT -> integerWriter(Short.MIN_VALUE, Short.MAX_VALUE, Short.SIZE);
+            case INT -> integerWriter(Integer.MIN_VALUE, Integer.MAX_VALUE, Integer.SIZE);
+            case LONG -> integerWriter(Long.MIN_VALUE, Long.MAX_VALUE, Long.SIZE);
+            case FLOAT -> (s, buff) -> {
+                if (Packer.isDecimal(s))
+                    buff.append(false).append(Float.parseFloat(s));
+                else
+                    packEscaped(s, buff.append(true));
+            };
+            case DOUBLE -> (s, buff) -> {
+                if (Packer.isDecimal(s))
+                    buff.append(false).append(Double.parseDouble(s));
+                else
+                    packEscaped(s, buff.append(true));
+            };
+            case VARINT -> (s, buff) -> {
+                if (Packer.isInteger(s, Long.MIN_VALUE, Long.MAX_VALUE))
+                    Packer.appendVarLong(Long.parseLong(s), buff.append(false));
+                else
+                    packEscaped(s, buff.append(true));
+            };
+            case DECIMAL -> {
+                double factor = POWERS_OF_TEN[columnType.getScale()];
+                yield (s, buff) -> {
+                    // rounded to the scale, and escaped if it is not finite or does not fit into a long
+                    double scaled = Packer.isDecimal(s) ? Double.parseDouble(s) * factor : Double.NaN;
+                    if (Math.abs(scaled) < 0x1p62)
+                        Packer.appendVarLong(Math.round(scaled), buff.append(false));
+                    else
+                        packEscaped(s, buff.append(true));
+                };
             }
+            case HALF -> shortFloatWriter(Packer::floatToHalf, Packer::halfToFloat);
+            case BFLOAT16 -> shortFloatWriter(Packer::floatToBFloat16, Packer::bFloat16ToFloat);
+            case STRING_8, STRING_16 -> CSVLinePacker::packEscaped;
+        };
+    }
+
+    private static ColumnWriter integerWriter(long min, long max, int size) {
+        return (s, buff) -> {
+            if (Packer.isInteger(s, min, max))
+                buff.append(false).appendBits(Long.parseLong(s), size);
+            else
+                packEscaped(s, buff.append(true));
+        };
+    }
+
+    /**
+     * Creates a writer for a 16-bit float type. The value is rounded to the nearest 16-bit float, and a finite value that is out of the type's range is escaped.
+     */
+    private static ColumnWriter shortFloatWriter(FloatToShort toShort, ShortToFloat toFloat) {
+        return (s, buff) -> {
+            if (Packer.isDecimal(s)) {
+                float f = Float.parseFloat(s);
+                short bits = toShort.convert(f);
+                if (!Float.isFinite(f) || Float.isFinite(toFloat.convert(bits))) {
+                    buff.append(false).appendBits(bits, Short.SIZE);
+                    return;
+                }
+            }
+            packEscaped(s, buff.append(true));
+        };
+    }
+
+    private interface FloatToShort {
+        short convert(float f);
+    }
+
+    private interface ShortToFloat {
+        float convert(short s);
+    }
+
+    /**
+     * Packs a string in the schema format, i.e., a bit that selects an 8-bit or 16-bit length, the length in bytes, and the UTF-8 bytes.
+     * @param s the string.
+     * @param buff the BitString to append to.
+     */
+    private static void packEscaped(String s, BitString buff) {
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        if (bytes.length <= MAX_SIZE_8_BIT)
+            buff.append(false).appendBits(bytes.length, Byte.SIZE);
+        else if (bytes.length <= MAX_SIZE_16_BIT)
+            buff.append(true).appendBits(bytes.length, Short.SIZE);
+        else
+            throw new RuntimeException("string's length is " + bytes.length + " > max allowed length " + MAX_SIZE_16_BIT);
+
+        buff.append(bytes);
+    }
+
+    /**
+     * Unpacks a row packed in the schema format.
+     * @param buff the packed row without padding.
+     * @param types the types of the attributes.
+     * @return the fields of the row, where absent fields are empty strings.
+     */
+    private static String[] unpackSchema(BitString buff, Packer.ColumnType[] types) {
+        String[] fields = new String[types.length];
+        int pos = types.length;
+        for (int i = 0; i < types.length; i++) {
+            if (buff.get(i))
+                pos = unpackSchemaValue(buff, pos, types[i], fields, i);
+            else
+                fields[i] = "";
+        }
+        return fields;
+    }
+
+    /**
+     * Unpacks or skips a present value of a row packed in the schema format. A skipped value is not materialized, i.e., only the length of a string or the groups of a varint are read.
+     * @param buff the packed row without padding.
+     * @param pos the position of the value.
+     * @param columnType the value's type.
+     * @param fields the array to store the unpacked value in, or null to skip the value.
+     * @param i the index in fields.
+     * @return the position after the value.
+     */
+    private static int unpackSchemaValue(BitString buff, int pos, Packer.ColumnType columnType, String[] fields, int i) {
+        Packer.Type type = columnType.getType();
+        if (type.isString() || buff.get(pos++)) {
+            int lengthSize = buff.get(pos++) ? Short.SIZE : Byte.SIZE;
+            int end = pos + lengthSize + Byte.SIZE * (int) buff.readBits(pos, lengthSize);
+            if (fields != null)
+                fields[i] = new String(buff.toBytes(pos + lengthSize, end), StandardCharsets.UTF_8);
+            return end;
+        }
+        if (type == Packer.Type.VARINT || type == Packer.Type.DECIMAL) {
+            long v = Packer.readVarLong(buff, pos);
+            if (fields != null)
+                fields[i] = type == Packer.Type.VARINT ? Long.toString(v) : Double.toString(v / POWERS_OF_TEN[columnType.getScale()]);
+            return pos + Packer.varLongLength(v);
+        }
+        if (fields != null) {
+            fields[i] = switch (type) {
+                case BYTE -> Byte.toString((byte) buff.readBits(pos, Byte.SIZE));
+                case SHORT -> Short.toString((short) buff.readBits(pos, Short.SIZE));
+                case INT -> Integer.toString((int) buff.readBits(pos, Integer.SIZE));
+                case LONG -> Long.toString(buff.readBits(pos, Long.SIZE));
+                case FLOAT -> Float.toString(buff.toFloat(pos));
+                case DOUBLE -> Double.toString(buff.toDouble(pos));
+                case HALF -> Float.toString(Packer.halfToFloat((short) buff.readBits(pos, Short.SIZE)));
+                case BFLOAT16 -> Float.toString(Packer.bFloat16ToFloat((short) buff.readBits(pos, Short.SIZE)));
+                default -> throw new RuntimeException("unknown Number type " + type);
+            };
+        }
+        return pos + valueSize(type);
+    }
+
+    private static int valueSize(Packer.Type type) {
+        return switch (type) {
+            case BYTE -> Byte.SIZE;
+            case SHORT, HALF, BFLOAT16 -> Short.SIZE;
+            case INT -> Integer.SIZE;
+            case FLOAT -> Float.SIZE;
+            case LONG -> Long.SIZE;
+            case DOUBLE -> Double.SIZE;
+            default -> throw new RuntimeException("unknown Number type " + type);
         };
     }
 
-    private static void packSafe(String s, BitString buff, Packer.Type type) {
-        FuncUtils.tryOrElse(() -> Packer.pack(s, buff, type), () -> Packer.packString(s, buff));
+    /**
+     * Unpacks a row packed in the presence format, i.e., a bitmap with one bit per attribute followed by the values of the present attributes.
+     * @param buff the packed row without padding.
+     * @param count the number of attributes.
+     * @return the fields of the row, where absent fields are empty strings.
+     */
+    private static String[] unpackPresent(BitString buff, int count) {
+        String[] fields = new String[count];
+        int pos = count;
+        for (int i = 0; i < count; i++) {
+            if (buff.get(i)) {
+                Packer.UnpackingResult<?> result = Packer.unpackAt(buff, pos);
+                fields[i] = result.getValue().toString();
+                pos = result.getLastExclusiveIndex();
+            }
+            else {
+                fields[i] = "";
+            }
+        }
+        return fields;
     }
 
     private static String[] unpackALl(BitString buff) {
@@ -7,6 +7,51 @@ import dnacoders.dnaconvertors.RotatingQuattro;
 
 public class DNAPacker {
     private static final AbstractRotatingCoder rotator = RotatingQuattro.INSTANCE;
+    private static final Base[] BASES = Base.values();
+
+    /**
+     * The DNA bases of each packed value for HALF_BYTE, BYTE, and SHORT, indexed by <Code>LengthBase.ordinal()</Code> and the value. Since the rotation starts from an empty context for each packed value, the DNA bases of a value only depend on its LengthBase.
+     * Each entry holds the ordinals of the DNA bases, 2 bits per base, the first base being the most significant. The entry for INT_31 is null, since its table would be too large.
+     */
+    private static final int[][] CODES = new int[LengthBase.values().length][];
+
+    /**
+     * The inverse of CODES, which maps the ordinals of the packed DNA bases to the value. Since the rotation maps the 4 digits to the 4 DNA bases in each context, every code decodes to exactly one value.
+     */
+    private static final int[][] VALUES = new int[LengthBase.values().length][];
+
+    static {
+        for (LengthBase lb : new LengthBase[] {LengthBase.HALF_BYTE, LengthBase.BYTE}) {
+            int[] codes = new int[1 << lb.bitCount];
+            for (int v = 0; v < codes.length; v++)
+                codes[v] = encodeCode(v, lb.bitCount);
+            CODES[lb.ordinal()] = codes;
+        }
+
+        // RotatingQuattro maps a digit depending on the previous two DNA bases only. Hence, the last 4 DNA bases of a SHORT are the low byte rotated in the context of the last 2 DNA bases of the high byte.
+        int[] byteCodes = CODES[LengthBase.BYTE.ordinal()];
+        int[][] lowCodes = new int[16][];
+        int[] shortCodes = new int[1 << LengthBase.SHORT.bitCount];
+        for (int high = 0; high < byteCodes.length; high++) {
+            int context = byteCodes[high] & 0xF;
+            if (lowCodes[context] == null) {
+                lowCodes[context] = new int[1 << Byte.SIZE];
+                for (int low = 0; low < lowCodes[context].length; low++)
+                    lowCodes[context][low] = encodeCode((high << Byte.SIZE) | low, Short.SIZE) & 0xFF;
+            }
+            for (int low = 0; low < lowCodes[context].length; low++)
+                shortCodes[(high << Byte.SIZE) | low] = (byteCodes[high] << Byte.SIZE) | lowCodes[context][low];
+        }
+        CODES[LengthBase.SHORT.ordinal()] = shortCodes;
+
+        for (LengthBase lb : new LengthBase[] {LengthBase.HALF_BYTE, LengthBase.BYTE, LengthBase.SHORT}) {
+            int[] codes = CODES[lb.ordinal()];
+            int[] values = new int[codes.length];
+            for (int v = 0; v < codes.length; v++)
+                values[codes[v]] = v;
+            VALUES[lb.ordinal()] = values;
+        }
+    }
 
     /**
      * The enum for the supported data types.
@@ -90,7 +135,24 @@ public class DNAPacker {
          * @return the decoded number.
          */
         public long unpackSingle(BaseSequence sequence) {
-            BaseSequence encodedValue = sequence.window(1, 1 + baseCount);
+            return unpackAt(sequence, 0);
+        }
+
+        /**
+         * Unpacks the packed number that starts at a given position of a DNA sequence.
+         * @param sequence the DNA sequence.
+         * @param pos the position of the DNA base that refers to this LengthBase.
+         * @return the decoded number.
+         */
+        private long unpackAt(BaseSequence sequence, int pos) {
+            int[] values = VALUES[ordinal()];
+            if (values != null) {
+                int code = 0;
+                for (int i = pos + 1; i <= pos + baseCount; i++)
+                    code = (code << 2) | sequence.get(i).ordinal();
+                return values[code];
+            }
+            BaseSequence encodedValue = sequence.window(pos + 1, pos + 1 + baseCount);
             BitString decodedBases = rotator.decodeWithBase(encodedValue);
             return decodedBases.toLong(0, bitCount);
         }
@@ -116,10 +178,7 @@ public class DNAPacker {
      * @return the DNA sequence with the packed number to its end.
      */
     public static BaseSequence pack(BaseSequence seq, Number n) {
-        BitString bits = new BitString();
-        appendMinimal(bits, n, false);
-        LengthBase lengthBase = LengthBase.from(bits.length());
-        return pack(seq, n, lengthBase);
+        return pack(seq, n, LengthBase.from(bitLength(n)));
     }
 
     /**
@@ -130,6 +189,17 @@ public class DNAPacker {
      * @return the DNA sequence with the packed number to its end.
      */
     public static BaseSequence pack(BaseSequence seq, Number n, LengthBase lb) {
+        int[] codes = CODES[lb.ordinal()];
+        if (codes != null) {
+            int length = bitLength(n);
+            if (length > lb.bitCount)
+                throw new RuntimeException("number " + n + " requires " + length + " bits > fillToNumBits(" + lb.bitCount + ")");
+            int code = codes[(int) bits(n)];
+            seq.append(lb.dnaBase);
+            for (int shift = (lb.baseCount - 1) << 1; shift >= 0; shift -= 2)
+                seq.append(BASES[(code >>> shift) & 3]);
+            return seq;
+        }
         BitString newBits = new BitString();
         appendAndFillTo(newBits, n, lb.bitCount);
         seq.append(lb.dnaBase);
@@ -201,6 +271,48 @@ public class DNAPacker {
         bitString.append(false, fillToNumBits - bs.length()).append(bs);
     }
 
+    /**
+     * Rotates a value into DNA bases without a lookup table.
+     * @param v the value.
+     * @param bitCount the number of bits v is filled to.
+     * @return the ordinals of the DNA bases, 2 bits per base, the first base being the most significant.
+     */
+    private static int encodeCode(int v, int bitCount) {
+        BitString bits = new BitString();
+        appendAndFillTo(bits, v, bitCount);
+        int code = 0;
+        for (Base base : rotator.encodeWithBase(bits))
+            code = (code << 2) | base.ordinal();
+        return code;
+    }
+
+    /**
+     * Computes the number of bits <Code>appendMinimal(bs, n, false)</Code> appends for a given number, i.e., the position of its highest 1 bit plus 1, or the full width of its type if it is negative.
+     * @param n the number.
+     * @return the number of bits.
+     */
+    private static int bitLength(Number n) {
+        long bits = bits(n);
+        return bits == 0L ? 1 : Long.SIZE - Long.numberOfLeadingZeros(bits);
+    }
+
+    /**
+     * @param n the number.
+     * @return the bits of n as an unsigned value of the width of its type.
+     */
+    private static long bits(Number n) {
+        if (n instanceof Byte)
+            return n.byteValue() & 0xFFL;
+        if (n instanceof Short)
+            return n.shortValue() & 0xFFFFL;
+        if (n instanceof Integer)
+            return n.intValue() & 0xFFFFFFFFL;
+        if (n instanceof Long)
+            return n.longValue();
+
+        throw new RuntimeException("Floats and Doubles have a static length. This method only supports ints, bytes, shorts, and longs.");
+    }
+
     /**
      * Unpacks packed values in a given DNA sequence.
      * @param sequence the DNA sequence that contains packed values.
@@ -209,11 +321,10 @@ public class DNAPacker {
      */
     public static long[] unpack(BaseSequence sequence, int count) {
         long[] vals = new long[count];
-        var index = 0;
-        for (int i = 0; i < count; i++) {
-            vals[i] = unpackSingle(sequence.window(index));
-            index += LengthBase.from(sequence.get(index)).baseCount + 1;
-        }
+        Cursor cursor = new Cursor(sequence);
+        for (int i = 0; i < count; i++)
+            vals[i] = cursor.next();
+
         return vals;
     }
 
@@ -224,11 +335,7 @@ public class DNAPacker {
      * @return the total number of DNA bases.
      */
     public static int getPackedLength(BaseSequence sequence, int packedValueCount) {
-        var index = 0;
-        for (int i = 0; i < packedValueCount; i++) {
-            index += LengthBase.from(sequence.get(index)).baseCount + 1;
-        }
-        return index;
+        return new Cursor(sequence).skip(packedValueCount).position();
     }
 
     /**
@@ -240,4 +347,76 @@ public class DNAPacker {
         var lengthBase = LengthBase.from(sequence);
         return lengthBase.unpackSingle(sequence);
     }
+
+    /**
+     * A cursor that reads packed values from a DNA sequence one after another. Each read decodes the value at the current position straight into a primitive and advances the position past it, such that reading n values is a single pass over their DNA bases without creating windows or BitStrings.
+     * This class is not thread-safe.
+     */
+    public static class Cursor {
+        private final BaseSequence seq;
+        private int pos;
+
+        /**
+         * Creates a cursor at the start of a DNA sequence.
+         * @param seq the DNA sequence.
+         */
+        public Cursor(BaseSequence seq) {
+            this(seq, 0);
+        }
+
+        /**
+         * Creates a cursor at a given position of a DNA sequence.
+         * @param seq the DNA sequence.
+         * @param pos the position of the first DNA base to read.
+         */
+        public Cursor(BaseSequence seq, int pos) {
+            this.seq = seq;
+            this.pos = pos;
+        }
+
+        /**
+         * Unpacks the value at the current position and advances past it.
+         * @return the unpacked value.
+         */
+        public long next() {
+            LengthBase lb = LengthBase.from(seq.get(pos));
+            long value = lb.unpackAt(seq, pos);
+            pos += lb.baseCount + 1;
+            return value;
+        }
+
+        /**
+         * Reads a single DNA base that is not part of a packed value, e.g., a marker, and advances past it.
+         * @return the DNA base.
+         */
+        public Base nextBase() {
+            return seq.get(pos++);
+        }
+
+        /**
+         * Advances past a number of packed values without decoding them.
+         * @param count the number of packed values to skip.
+         * @return this cursor.
+         */
+        public Cursor skip(int count) {
+            for (int i = 0; i < count; i++)
+                pos += LengthBase.from(seq.get(pos)).baseCount + 1;
+
+            return this;
+        }
+
+        /**
+         * @return true if DNA bases are left to read, and false otherwise.
+         */
+        public boolean hasNext() {
+            return pos < seq.length();
+        }
+
+        /**
+         * @return the position of the next DNA base to read.
+         */
+        public int position() {
+            return pos;
+        }
+    }
 }
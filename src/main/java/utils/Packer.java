@@ -3,6 +3,7 @@ package utils;
 import java.nio.charset.StandardCharsets;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Locale;
 import java.util.stream.Stream;
 
 public class Packer {
@@ -20,17 +21,39 @@ public class Packer {
         FLOAT("100"),
         DOUBLE("101"),
         STRING_8("110"),
-        STRING_16("111");
+        STRING_16("111"),
+        // the following types have no signature, and are only packed by the schema format of CSVLinePacker
+        VARINT(null),
+        DECIMAL(null),
+        HALF(null),
+        BFLOAT16(null);
         // add unsigned versions?
 
         static final int LENGTH           = 3;
         static final int MAX_SIZE_8_BIT   = 255;
         static final int MAX_SIZE_16_BIT  = 65535;
 
+        private static final Type[] BY_SIGNATURE = new Type[1 << LENGTH];
+        static {
+            for (Type type : values())
+                if (type.signature != null)
+                    BY_SIGNATURE[(int) type.signature.readBits(0, LENGTH)] = type;
+        }
+
         private final BitString signature;
 
         Type(String s) {
-            this.signature = new BitString(s);
+            this.signature = s == null ? null : new BitString(s);
+        }
+
+        /**
+         * Reads the signature at a given position without copying it.
+         * @param bitString the BitString.
+         * @param i the position of the signature.
+         * @return the data type for that signature.
+         */
+        static Type parse(BitString bitString, int i) {
+            return BY_SIGNATURE[(int) bitString.readBits(i, LENGTH)];
         }
 
         /**
@@ -64,9 +87,16 @@ public class Packer {
             return signature;
         }
 
+        /**
+         * @return the signature as the value of its LENGTH bits.
+         */
+        int getSignatureCode() {
+            return (int) signature.readBits(0, LENGTH);
+        }
+
         public boolean isNumber() {
             return switch(this) {
-                case INT, LONG, FLOAT, DOUBLE, BYTE, SHORT -> true;
+                case INT, LONG, FLOAT, DOUBLE, BYTE, SHORT, VARINT, DECIMAL, HALF, BFLOAT16 -> true;
                 default -> false;
             };
         }
@@ -103,7 +133,172 @@ public class Packer {
             case FLOAT  -> pack(Float.parseFloat(s), buff);
             case DOUBLE -> pack(Double.parseDouble(s), buff);
             case STRING_8, STRING_16 -> packString(s, buff);
+            default -> throw new RuntimeException("type " + type + " has no signature");
+        }
+    }
+
+    /**
+     * A Type with its parameters, i.e., the type of a column in a schema. The scale is the number of decimals of a DECIMAL column, and 0 for other types.
+     */
+    public static final class ColumnType {
+        public static final int MAX_SCALE = 18;
+
+        private final Type type;
+        private final int scale;
+
+        public ColumnType(Type type) {
+            this(type, 0);
+        }
+
+        public ColumnType(Type type, int scale) {
+            if (scale < 0 || scale > MAX_SCALE)
+                throw new RuntimeException("scale " + scale + " is not in [0, " + MAX_SCALE + "]");
+            if (scale != 0 && type != Type.DECIMAL)
+                throw new RuntimeException("type " + type + " has no scale");
+            this.type = type;
+            this.scale = scale;
+        }
+
+        /**
+         * Parses a column type, e.g., "int", "varint", "half", "bfloat16", or "double:3" for a DECIMAL with 3 decimals.
+         * @param s the column type.
+         * @return the parsed ColumnType.
+         */
+        public static ColumnType parse(String s) {
+            String name = s.trim().toLowerCase(Locale.ROOT);
+            int colon = name.indexOf(':');
+            if (colon < 0)
+                return new ColumnType(Type.valueOf(name.toUpperCase(Locale.ROOT)));
+            if (!name.substring(0, colon).equals("double"))
+                throw new RuntimeException("only double supports a scale: " + s);
+
+            return new ColumnType(Type.DECIMAL, Integer.parseInt(name.substring(colon + 1).trim()));
+        }
+
+        public Type getType() {
+            return type;
+        }
+
+        public int getScale() {
+            return scale;
+        }
+
+        @Override
+        public String toString() {
+            return type == Type.DECIMAL ? "double:" + scale : type.name().toLowerCase(Locale.ROOT);
+        }
+    }
+
+    /**
+     * Appends a long as a zig-zag varint, i.e., the zig-zag encoded value in groups of 7 bits, least significant group first, each preceded by a bit that is set if another group follows.
+     * @param value the long.
+     * @param buff the BitString to append to.
+     * @return buff.
+     */
+    public static BitString appendVarLong(long value, BitString buff) {
+        long zigZag = (value << 1) ^ (value >> 63);
+        while ((zigZag & ~0x7FL) != 0L) {
+            buff.appendBits(0x80L | (zigZag & 0x7FL), Byte.SIZE);
+            zigZag >>>= 7;
+        }
+        return buff.appendBits(zigZag, Byte.SIZE);
+    }
+
+    /**
+     * Reads a long appended by <Code>appendVarLong(long, BitString)</Code>.
+     * @param bs the BitString.
+     * @param i the position of the varint.
+     * @return the long.
+     */
+    public static long readVarLong(BitString bs, int i) {
+        long zigZag = 0L;
+        for (int shift = 0; ; shift += 7, i += Byte.SIZE) {
+            long group = bs.readBits(i, Byte.SIZE);
+            zigZag |= (group & 0x7FL) << shift;
+            if ((group & 0x80L) == 0L)
+                return (zigZag >>> 1) ^ -(zigZag & 1L);
+        }
+    }
+
+    /**
+     * @param value the long.
+     * @return the number of bits <Code>appendVarLong(long, BitString)</Code> appends for that long.
+     */
+    public static int varLongLength(long value) {
+        long zigZag = (value << 1) ^ (value >> 63);
+        int significantBits = Math.max(1, Long.SIZE - Long.numberOfLeadingZeros(zigZag));
+        return Byte.SIZE * ((significantBits + 6) / 7);
+    }
+
+    /**
+     * Converts a float to an IEEE 754 half-precision float, rounding to the nearest even.
+     * @param f the float.
+     * @return the bits of the half-precision float.
+     */
+    public static short floatToHalf(float f) {
+        int bits = Float.floatToRawIntBits(f);
+        int sign = (bits >>> 16) & 0x8000;
+        int magnitude = bits & 0x7FFFFFFF;
+        if (magnitude >= 0x7F800000) // infinity or NaN
+            return (short) (sign | 0x7C00 | (magnitude > 0x7F800000 ? 0x0200 : 0));
+        if (magnitude >= 0x477FF000) // rounds to a value > 65504
+            return (short) (sign | 0x7C00);
+        if (magnitude >= 0x38800000) { // normal
+            int rebiased = magnitude - 0x38000000;
+            return (short) (sign | ((rebiased + 0x0FFF + ((rebiased >>> 13) & 1)) >>> 13));
         }
+        if (magnitude <= 0x33000000) // rounds to zero
+            return (short) sign;
+
+        // subnormal
+        int shift = 126 - (magnitude >>> 23);
+        int mantissa = (magnitude & 0x7FFFFF) | 0x800000;
+        int half = mantissa >>> shift;
+        int rest = mantissa & ((1 << shift) - 1);
+        int midpoint = 1 << (shift - 1);
+        if (rest > midpoint || (rest == midpoint && (half & 1) != 0))
+            half++;
+        return (short) (sign | half);
+    }
+
+    /**
+     * Converts an IEEE 754 half-precision float to a float.
+     * @param half the bits of the half-precision float.
+     * @return the float.
+     */
+    public static float halfToFloat(short half) {
+        int bits = half & 0xFFFF;
+        int sign = (bits & 0x8000) << 16;
+        int exponent = (bits >>> 10) & 0x1F;
+        int mantissa = bits & 0x03FF;
+        if (exponent == 0x1F)
+            return Float.intBitsToFloat(sign | 0x7F800000 | (mantissa << 13));
+        if (exponent == 0)
+            return Float.intBitsToFloat(sign | Float.floatToRawIntBits(mantissa * 0x1p-24f));
+
+        return Float.intBitsToFloat(sign | ((exponent + 112) << 23) | (mantissa << 13));
+    }
+
+    /**
+     * Converts a float to a bfloat16, i.e., the upper 16 bits of the float, rounding to the nearest even.
+     * @param f the float.
+     * @return the bits of the bfloat16.
+     */
+    public static short floatToBFloat16(float f) {
+        int bits = Float.floatToRawIntBits(f);
+        if (Float.isNaN(f))
+            return (short) ((bits >>> 16) | 0x0040);
+
+        return (short) ((bits + 0x7FFF + ((bits >>> 16) & 1)) >>> 16);
+    }
+
+    /**
+     * Converts a bfloat16 to a float.
+     * @param bfloat16 the bits of the bfloat16.
+     * @return the float.
+     */
+    public static float bFloat16ToFloat(short bfloat16) {
+        return Float.intBitsToFloat((bfloat16 & 0xFFFF) << 16);
     }
 
     /**
@@ -163,16 +358,138 @@ public class Packer {
                 .append(false, paddingSize);
     }
 
+    /**
+     * Creates an empty BitString whose first BYTE.SIZE bits are reserved for the padding prefix written by <Code>withBytePaddingInPlace(BitString)</Code>.
+     * @return the BitString.
+     */
+    public static BitString newPaddedBuffer() {
+        return new BitString().append(false, Byte.SIZE);
+    }
+
+    /**
+     * Adds the padding of <Code>withBytePadding(BitString)</Code> to a BitString created by <Code>newPaddedBuffer()</Code> in place: the padding size is written into the reserved prefix and the padding is appended. Hence, the packed bits are not copied.
+     * @param buff the BitString created by <Code>newPaddedBuffer()</Code> with the bits to be padded appended to it.
+     * @return buff, which is now equal to <Code>withBytePadding</Code> of the bits following its prefix.
+     */
+    public static BitString withBytePaddingInPlace(BitString buff) {
+        return withBytePaddingInPlace(buff, 0);
+    }
+
+    /**
+     * Adds padding to a BitString created by <Code>newPaddedBuffer()</Code> in place, and records a format version in the upper 4 bits of the prefix. Since the padding size is at most 8, it only occupies the lower 4 bits, and a BitString padded by <Code>withBytePadding(BitString)</Code> has the version 0.
+     * @param buff the BitString created by <Code>newPaddedBuffer()</Code> with the bits to be padded appended to it.
+     * @param version the format version (0 to 15).
+     * @return buff.
+     */
+    public static BitString withBytePaddingInPlace(BitString buff, int version) {
+        int paddingSize = Byte.SIZE - buff.length() % Byte.SIZE;
+        return buff.setBits(0, (version << 4) | paddingSize, Byte.SIZE).append(false, paddingSize);
+    }
+
+    /**
+     * @param bs the BitString with padding.
+     * @return the format version recorded by <Code>withBytePaddingInPlace(BitString, int)</Code>.
+     */
+    public static int getPaddingVersion(BitString bs) {
+        return (int) bs.readBits(0, 4);
+    }
+
     /**
      * Removes the padding added by <Code>withBytePadding(BitString)</Code>.
      * @param bs the BitString with padding.
      * @return a new BitString representing the input BitString without padding.
      */
     public static BitString withoutBytePadding(BitString bs) {
-        int numBits = bs.toByte(0);
+        int numBits = (int) bs.readBits(4, 4);
         return bs.subString(Byte.SIZE, bs.length() - numBits);
     }
 
+    /**
+     * Checks without throwing whether a string is an integer in [min, max] that <Code>Long.parseLong</Code> accepts. Only an optional sign followed by ASCII digits is accepted.
+     * @param s the string.
+     * @param min the minimum value.
+     * @param max the maximum value.
+     * @return true if s is such an integer, and false otherwise.
+     */
+    public static boolean isInteger(CharSequence s, long min, long max) {
+        int len = s.length();
+        if (len == 0)
+            return false;
+        int i = 0;
+        boolean negative = false;
+        char first = s.charAt(0);
+        if (first == '-' || first == '+') {
+            negative = first == '-';
+            if (++i == len)
+                return false;
+        }
+        // accumulate negatively, as Long.parseLong does, such that the limit never overflows
+        long limit = negative ? min : -max;
+        long multLimit = limit / 10;
+        long result = 0L;
+        for (; i < len; i++) {
+            int digit = s.charAt(i) - '0';
+            if (digit < 0 || digit > 9 || result < multLimit)
+                return false;
+            result *= 10;
+            if (result < limit + digit)
+                return false;
+            result -= digit;
+        }
+        return true;
+    }
+
+    /**
+     * Checks without throwing whether <Code>Double.parseDouble</Code> accepts a string. Decimal numbers with an optional sign, fraction, exponent, and float suffix, as well as NaN and Infinity are accepted. Other forms that <Code>Double.parseDouble</Code> accepts, e.g., hexadecimal numbers or surrounding whitespace, are rejected.
+     * @param s the string.
+     * @return true if s is such a decimal number, and false otherwise.
+     */
+    public static boolean isDecimal(CharSequence s) {
+        int len = s.length();
+        int i = 0;
+        if (i < len && (s.charAt(i) == '-' || s.charAt(i) == '+'))
+            i++;
+        if (len - i == 3 && "NaN".contentEquals(s.subSequence(i, len)))
+            return true;
+        if (len - i == 8 && "Infinity".contentEquals(s.subSequence(i, len)))
+            return true;
+
+        int digits = 0;
+        while (i < len && isDigit(s.charAt(i))) {
+            i++;
+            digits++;
+        }
+        if (i < len && s.charAt(i) == '.') {
+            i++;
+            while (i < len && isDigit(s.charAt(i))) {
+                i++;
+                digits++;
+            }
+        }
+        if (digits == 0)
+            return false;
+        if (i < len && (s.charAt(i) == 'e' || s.charAt(i) == 'E')) {
+            i++;
+            if (i < len && (s.charAt(i) == '-' || s.charAt(i) == '+'))
+                i++;
+            int exponentDigits = 0;
+            while (i < len && isDigit(s.charAt(i))) {
+                i++;
+                exponentDigits++;
+            }
+            if (exponentDigits == 0)
+                return false;
+        }
+        if (i < len && "fFdD".indexOf(s.charAt(i)) >= 0)
+            i++;
+
+        return i == len;
+    }
+
+    private static boolean isDigit(char c) {
+        return c >= '0' && c <= '9';
+    }
+
     /**
      * Unpacks a String at a given position.
      * @param bitString the BitString with the packed value(s).
@@ -180,8 +497,7 @@ public class Packer {
      * @return the unpacked value.
      */
     public static UnpackingResult<String> unpackString(BitString bitString, int i) {
-        int limit = i + Type.LENGTH;
-        return unpackString(bitString, limit, Type.parse(bitString.subString(i, limit)));
+        return unpackString(bitString, i + Type.LENGTH, Type.parse(bitString, i));
     }
 
     /**
@@ -191,8 +507,7 @@ public class Packer {
      * @return the unpacked value.
      */
     public static UnpackingResult<? extends Number> unpackNumber(BitString bitString, int i) {
-        int limit = i + Type.LENGTH;
-        return unpackNumber(bitString, limit, Type.parse(bitString.subString(i, limit)));
+        return unpackNumber(bitString, i + Type.LENGTH, Type.parse(bitString, i));
     }
 
     /**
@@ -259,7 +574,7 @@ public class Packer {
      */
     public static UnpackingResult<?> unpackAt(BitString bitString, int i) {
         int payloadIndex = i + Type.LENGTH;
-        Type type = Type.parse(bitString.subString(i, payloadIndex));
+        Type type = Type.parse(bitString, i);
         if (type.isNumber())
             return unpackNumber(bitString, payloadIndex, type);
         else
@@ -10,16 +10,29 @@ public class PooledCompletionService<T> extends ExecutorCompletionService<T> imp
     private long currentlyAvailablePolls;
     private final ExecutorService pool;
     private final Lock lock;
+    private final Semaphore inFlight;
+
     public PooledCompletionService(ExecutorService pool) {
+        this(pool, 0);
+    }
+
+    /**
+     * Creates a completion service that bounds the number of submitted tasks whose results were not taken yet. Submitting a task blocks while maxInFlight results are pending, such that a producer cannot run ahead of the consumer.
+     * @param pool the pool executing the tasks.
+     * @param maxInFlight the maximum number of pending results, or 0 for no limit.
+     */
+    public PooledCompletionService(ExecutorService pool, int maxInFlight) {
         super(pool);
         this.pool = pool;
         this.totalSubmittedJobs = 0L;
         this.currentlyAvailablePolls = 0L;
         this.lock = new ReentrantLock();
+        this.inFlight = maxInFlight > 0 ? new Semaphore(maxInFlight) : null;
     }
 
     @Override
     public Future<T> submit(Callable<T> task) {
+        acquire();
         lock.lock();
         totalSubmittedJobs++;
         currentlyAvailablePolls++;
@@ -29,6 +42,7 @@ public class PooledCompletionService<T> extends ExecutorCompletionService<T> imp
 
     @Override
     public Future<T> submit(Runnable task, T result) {
+        acquire();
         lock.lock();
         totalSubmittedJobs++;
         currentlyAvailablePolls++;
@@ -41,7 +55,9 @@ public class PooledCompletionService<T> extends ExecutorCompletionService<T> imp
         lock.lock();
         currentlyAvailablePolls--;
         lock.unlock();
-        return FuncUtils.safeCall(super::take);
+        Future<T> result = FuncUtils.safeCall(super::take);
+        release();
+        return result;
     }
 
     public T takeDirect() {
@@ -55,6 +71,8 @@ public class PooledCompletionService<T> extends ExecutorCompletionService<T> imp
         if (result != null)
             currentlyAvailablePolls--;
         lock.unlock();
+        if (result != null)
+            release();
         return result;
     }
 
@@ -65,9 +83,21 @@ public class PooledCompletionService<T> extends ExecutorCompletionService<T> imp
         if (result != null)
             currentlyAvailablePolls--;
         lock.unlock();
+        if (result != null)
+            release();
         return result;
     }
 
+    private void acquire() {
+        if (inFlight != null)
+            FuncUtils.safeRun(inFlight::acquire);
+    }
+
+    private void release() {
+        if (inFlight != null)
+            inFlight.release();
+    }
+
     @Override
     public Iterator<T> iterator() {
         return new Iterator<>() {
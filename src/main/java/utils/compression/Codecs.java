@@ -0,0 +1,193 @@
+package utils.compression;
+
+import dnacoders.Coder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * The registry of the compression codecs for the bytes of an attribute, identified by an id that is recorded in the encoded output:
+ * 0 for no compression, 1 to 9 for deflate at that level, 10 for deflate with a trained dictionary, 11 for LZ, and 12 for deflate at level 0, i.e., stored blocks.
+ * The codec of an attribute is configured by name, i.e., "none", "deflate" (at the configured level), "deflate:0" to "deflate:9", "dict", "lz", or "auto" to choose the codec by benchmarking the candidates on a sample of the table.
+ */
+public final class Codecs {
+
+    public static final int AUTO = -1;
+    public static final int NONE = 0;
+    public static final int DICTIONARY = 10;
+    public static final int LZ_CODEC = 11;
+    public static final int DEFLATE_STORED = 12;
+
+    public static final String NAME_AUTO = "auto";
+    public static final String NAME_NONE = "none";
+    public static final String NAME_DEFLATE = "deflate";
+    public static final String NAME_DICTIONARY = "dict";
+    public static final String NAME_LZ = "lz";
+
+    private static final int BENCHMARK_ROUNDS = 3;
+
+    // the last dictionary codec, such that choose and the encoding of an attribute share one instance and its per-thread streams
+    private static final AtomicReference<DictionaryGZIP> LAST_DICTIONARY_CODEC = new AtomicReference<>();
+
+    private Codecs() {
+    }
+
+    /**
+     * Parses a codec's name.
+     * @param name the codec's name, or "auto".
+     * @param deflateLevel the level of "deflate" without a level.
+     * @return the codec's id, or AUTO.
+     */
+    public static int parse(String name, int deflateLevel) {
+        String s = name.trim().toLowerCase(Locale.ROOT);
+        if (s.startsWith(NAME_DEFLATE + ":"))
+            return deflate(Integer.parseInt(s.substring(NAME_DEFLATE.length() + 1).trim()));
+        return switch (s) {
+            case NAME_AUTO -> AUTO;
+            case NAME_NONE -> NONE;
+            case NAME_DEFLATE -> deflate(deflateLevel);
+            case NAME_DICTIONARY -> DICTIONARY;
+            case NAME_LZ -> LZ_CODEC;
+            default -> throw new RuntimeException("unknown codec: " + name);
+        };
+    }
+
+    /**
+     * @param id the codec's id.
+     * @return the codec's name.
+     */
+    public static String name(int id) {
+        if (isDeflate(id))
+            return NAME_DEFLATE + ":" + level(id);
+        return switch (id) {
+            case AUTO -> NAME_AUTO;
+            case NONE -> NAME_NONE;
+            case DICTIONARY -> NAME_DICTIONARY;
+            case LZ_CODEC -> NAME_LZ;
+            default -> throw new RuntimeException("unknown codec id: " + id);
+        };
+    }
+
+    /**
+     * Returns the codec for an id.
+     * @param id the codec's id.
+     * @param dictionary the trained dictionary, which is only used by DICTIONARY. A null or empty dictionary, e.g., trained on payloads shorter than the dictionary's strings, makes DICTIONARY plain deflate. Consecutive calls with the same dictionary and level return the same instance.
+     * @param dictionaryLevel the deflate level of DICTIONARY.
+     * @return the codec, or null for NONE.
+     */
+    public static Coder<byte[], byte[]> get(int id, byte[] dictionary, int dictionaryLevel) {
+        if (isDeflate(id))
+            return GZIP.of(level(id));
+        return switch (id) {
+            case NONE -> null;
+            case DICTIONARY -> dictionaryCodec(dictionary, dictionaryLevel);
+            case LZ_CODEC -> LZ.INSTANCE;
+            default -> throw new RuntimeException("unknown codec id: " + id);
+        };
+    }
+
+    private static GZIP dictionaryCodec(byte[] dictionary, int level) {
+        if (dictionary == null || dictionary.length == 0)
+            return GZIP.of(level);
+
+        DictionaryGZIP last = LAST_DICTIONARY_CODEC.get();
+        if (last != null && last.getLevel() == level && Arrays.equals(last.getDictionary(), dictionary))
+            return last;
+
+        DictionaryGZIP codec = new DictionaryGZIP(dictionary, level);
+        LAST_DICTIONARY_CODEC.set(codec);
+        return codec;
+    }
+
+    /**
+     * @param id the codec's id.
+     * @return true if the codec requires a dictionary trained on the table.
+     */
+    public static boolean requiresDictionary(int id) {
+        return id == DICTIONARY || id == AUTO;
+    }
+
+    /**
+     * Chooses the codec for an attribute by compressing and decompressing a sample of its bytes with each candidate: no compression, deflate at each level, deflate with the dictionary, and LZ.
+     * The candidates are scored by (1 - objective) * size + objective * time, where the size is relative to the uncompressed size and the time is relative to the slowest candidate. Hence, an objective of 0 chooses the smallest output, and an objective of 1 the fastest codec.
+     * @param sample the sampled bytes, e.g., packed rows.
+     * @param dictionary the dictionary trained on the sample, or null to skip DICTIONARY.
+     * @param dictionaryLevel the deflate level of DICTIONARY.
+     * @param objective the weight of the time in [0, 1].
+     * @return the id of the chosen codec.
+     */
+    public static int choose(List<byte[]> sample, byte[] dictionary, int dictionaryLevel, float objective) {
+        if (objective < 0f || objective > 1f)
+            throw new RuntimeException("objective " + objective + " is not in [0, 1]");
+
+        List<Integer> candidates = new ArrayList<>();
+        candidates.add(NONE);
+        for (int level = 1; level <= 9; level++)
+            candidates.add(deflate(level));
+        if (dictionary != null && dictionary.length > 0)
+            candidates.add(DICTIONARY);
+        candidates.add(LZ_CODEC);
+
+        long rawSize = Math.max(1L, sample.stream().mapToLong(bytes -> bytes.length).sum());
+        long[] sizes = new long[candidates.size()];
+        long[] times = new long[candidates.size()];
+        for (int c = 0; c < candidates.size(); c++) {
+            Coder<byte[], byte[]> codec = get(candidates.get(c), dictionary, dictionaryLevel);
+            if (codec == null) {
+                sizes[c] = rawSize;
+                continue;
+            }
+            // the first round only warms up
+            times[c] = Long.MAX_VALUE;
+            for (int round = 0; round <= BENCHMARK_ROUNDS; round++) {
+                long size = 0L;
+                long start = System.nanoTime();
+                for (byte[] bytes : sample) {
+                    byte[] encoded = codec.encode(bytes);
+                    if (codec.decode(encoded).length != bytes.length)
+                        throw new RuntimeException("codec " + name(candidates.get(c)) + " failed to decode its output");
+                    size += encoded.length;
+                }
+                long time = System.nanoTime() - start;
+                sizes[c] = size;
+                if (round > 0)
+                    times[c] = Math.min(times[c], time);
+            }
+        }
+
+        long maxTime = Math.max(1L, max(times));
+        int best = 0;
+        double bestScore = Double.MAX_VALUE;
+        for (int c = 0; c < candidates.size(); c++) {
+            double score = (1d - objective) * sizes[c] / rawSize + objective * (double) times[c] / maxTime;
+            if (score < bestScore) {
+                best = c;
+                bestScore = score;
+            }
+        }
+        return candidates.get(best);
+    }
+
+    private static int deflate(int level) {
+        if (level < 0 || level > 9)
+            throw new RuntimeException("deflate level " + level + " is not in [0, 9]");
+        return level == 0 ? DEFLATE_STORED : level;
+    }
+
+    private static int level(int id) {
+        return id == DEFLATE_STORED ? 0 : id;
+    }
+
+    private static boolean isDeflate(int id) {
+        return (id >= 1 && id <= 9) || id == DEFLATE_STORED;
+    }
+
+    private static long max(long[] values) {
+        long max = Long.MIN_VALUE;
+        for (long v : values)
+            max = Math.max(max, v);
+        return max;
+    }
+}
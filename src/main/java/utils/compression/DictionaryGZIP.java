@@ -0,0 +1,144 @@
+package utils.compression;
+
+import java.util.*;
+import java.util.stream.Stream;
+
+/**
+ * The class that enables GZIP compression with a preset dictionary trained on a sample of the data. Short inputs, e.g., packed rows, share no context among each other, such that deflate finds few matches within a single input. The dictionary provides that shared context.
+ */
+public class DictionaryGZIP extends GZIP {
+
+    public static final int DEFAULT_DICTIONARY_SIZE = 4 * 1024;
+    public static final int DEFAULT_SAMPLES = 2000;
+    // deflate only refers back up to 32 KB
+    public static final int MAX_DICTIONARY_SIZE = 32 * 1024;
+    private static final int GRAM_LENGTH = Long.BYTES;
+    private static final int SEGMENT_LENGTH = 64;
+
+    private final byte[] dictionary;
+
+    /**
+     * Creates a GZIP instance with a preset dictionary.
+     * @param dictionary the preset dictionary, e.g., trained by <Code>train</Code>.
+     * @param level the compression level from 0 (no compression) to 9 (best compression).
+     */
+    public DictionaryGZIP(byte[] dictionary, int level) {
+        super(level, dictionary);
+        if (dictionary.length > MAX_DICTIONARY_SIZE)
+            throw new RuntimeException("dictionary size " + dictionary.length + " > " + MAX_DICTIONARY_SIZE);
+        this.dictionary = dictionary;
+    }
+
+    public byte[] getDictionary() {
+        return dictionary;
+    }
+
+    /**
+     * Trains a preset dictionary on a uniform sample of the given inputs by selecting segments of the sampled inputs.
+     * Each 8-byte string is scored by the number of sampled inputs it occurs in, such that the strings shared among the inputs, rather than the strings repeated within a single input, are favored. The sampled inputs are divided into as many epochs as segments fit into the dictionary, and the segment with the highest total score of its strings is selected from each epoch. The strings of a selected segment score 0 afterwards, such that later segments cover other strings.
+     * The segments are ordered such that those selected first are at the end of the dictionary, i.e., at the shortest distance to the input.
+     * @param inputs the inputs, e.g., the packed rows of a table.
+     * @param samples the number of inputs to sample.
+     * @param dictionarySize the maximum size of the dictionary.
+     * @return the dictionary, which is empty if no inputs were given.
+     */
+    public static byte[] train(Stream<byte[]> inputs, int samples, int dictionarySize) {
+        if (dictionarySize > MAX_DICTIONARY_SIZE)
+            throw new RuntimeException("dictionary size " + dictionarySize + " > " + MAX_DICTIONARY_SIZE);
+
+        List<byte[]> sampled = sample(inputs, samples);
+        Map<Long, Integer> scores = new HashMap<>();
+        Set<Long> grams = new HashSet<>();
+        for (byte[] input : sampled) {
+            grams.clear();
+            for (int i = 0; i + GRAM_LENGTH <= input.length; i++)
+                grams.add(gram(input, i));
+            grams.forEach(g -> scores.merge(g, 1, Integer::sum));
+        }
+
+        int epochs = Math.max(1, Math.min(sampled.size(), dictionarySize / SEGMENT_LENGTH));
+        Deque<byte[]> segments = new ArrayDeque<>();
+        int size = 0;
+        for (int epoch = 0; epoch < epochs && size < dictionarySize; epoch++) {
+            byte[] best = null;
+            int bestFrom = 0;
+            long bestScore = 0L;
+            for (int k = epoch * sampled.size() / epochs; k < (epoch + 1) * sampled.size() / epochs; k++) {
+                byte[] input = sampled.get(k);
+                int window = Math.min(SEGMENT_LENGTH, input.length) - GRAM_LENGTH + 1;
+                if (window <= 0)
+                    continue;
+                // slide a window of the segment's strings over the input
+                long score = 0L;
+                for (int i = 0; i < window; i++)
+                    score += scores.getOrDefault(gram(input, i), 0);
+                for (int from = 0; ; from++) {
+                    if (score > bestScore) {
+                        best = input;
+                        bestFrom = from;
+                        bestScore = score;
+                    }
+                    if (from + window + GRAM_LENGTH > input.length)
+                        break;
+                    score += scores.getOrDefault(gram(input, from + window), 0) - scores.getOrDefault(gram(input, from), 0);
+                }
+            }
+            if (best == null)
+                continue;
+
+            int length = Math.min(Math.min(SEGMENT_LENGTH, best.length - bestFrom), dictionarySize - size);
+            for (int i = bestFrom; i + GRAM_LENGTH <= bestFrom + length; i++)
+                scores.remove(gram(best, i));
+            segments.addFirst(Arrays.copyOfRange(best, bestFrom, bestFrom + length));
+            size += length;
+        }
+
+        byte[] dictionary = new byte[size];
+        int pos = 0;
+        for (byte[] segment : segments) {
+            System.arraycopy(segment, 0, dictionary, pos, segment.length);
+            pos += segment.length;
+        }
+        return dictionary;
+    }
+
+    /**
+     * Trains a preset dictionary of the default size on the default number of sampled inputs.
+     * @param inputs the inputs, e.g., the packed rows of a table.
+     * @return the dictionary.
+     */
+    public static byte[] train(Stream<byte[]> inputs) {
+        return train(inputs, DEFAULT_SAMPLES, DEFAULT_DICTIONARY_SIZE);
+    }
+
+    /**
+     * Draws a uniform sample by reservoir sampling.
+     * @param inputs the inputs.
+     * @param samples the sample size.
+     * @return the sampled inputs.
+     */
+    public static List<byte[]> sample(Stream<byte[]> inputs, int samples) {
+        Random rand = new Random(samples);
+        List<byte[]> reservoir = new ArrayList<>(samples);
+        long[] seen = {0L};
+        inputs.sequential().forEach(input -> {
+            long n = seen[0]++;
+            if (n < samples) {
+                reservoir.add(input);
+            }
+            else {
+                long j = (long) (rand.nextDouble() * (n + 1));
+                if (j < samples)
+                    reservoir.set((int) j, input);
+            }
+        });
+        return reservoir;
+    }
+
+    private static long gram(byte[] input, int i) {
+        long g = 0L;
+        for (int j = 0; j < GRAM_LENGTH; j++)
+            g = (g << Byte.SIZE) | (input[i + j] & 0xFF);
+        return g;
+    }
+}
@@ -1,39 +1,181 @@
 package utils.compression;
 
 import dnacoders.Coder;
-import utils.FuncUtils;
-import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.DataFormatException;
 import java.util.zip.Deflater;
-import java.util.zip.DeflaterOutputStream;
 import java.util.zip.Inflater;
-import java.util.zip.InflaterOutputStream;
 
 /**
- * The class that enables GZIP compression.
+ * The class that enables GZIP compression, i.e., raw deflate without header and checksum.
+ * Each thread reuses its own Deflater, Inflater, and output buffer, such that compressing a row neither allocates streams nor leaves native zlib memory to the garbage collector. The streams of all threads are released by <Code>end()</Code> or <Code>endAll()</Code>. This class is thread-safe.
  */
 public class GZIP implements Coder<byte[], byte[]> {
 
-    public static final GZIP INSTANCE = new GZIP();
+    public static final int DEFAULT_LEVEL = Deflater.BEST_COMPRESSION;
+    private static final int INITIAL_BUFFER_SIZE = 1024;
+    private static final GZIP[] BY_LEVEL = new GZIP[Deflater.BEST_COMPRESSION + 1];
+    static {
+        for (int level = 0; level < BY_LEVEL.length; level++)
+            BY_LEVEL[level] = new GZIP(level);
+    }
+
+    public static final GZIP INSTANCE = of(DEFAULT_LEVEL);
+
+    // the streams of all threads and instances that were not released yet
+    private static final Set<Streams> OPEN_STREAMS = ConcurrentHashMap.newKeySet();
+
+    private final int level;
+    private final byte[] dictionary;
+    private final ThreadLocal<Streams> streams;
+
+    private GZIP(int level) {
+        this(level, null);
+    }
+
+    /**
+     * Creates a GZIP instance that uses a preset dictionary for both compression and decompression.
+     * @param level the compression level from 0 (no compression) to 9 (best compression).
+     * @param dictionary the preset dictionary, or null for none.
+     */
+    protected GZIP(int level, byte[] dictionary) {
+        this.level = level;
+        this.dictionary = dictionary;
+        this.streams = new ThreadLocal<>();
+    }
+
+    /**
+     * Returns the shared instance for a compression level. The level only affects encoding, i.e., any instance decodes the data encoded by another one.
+     * @param level the compression level from 0 (no compression) to 9 (best compression).
+     * @return the GZIP instance.
+     */
+    public static GZIP of(int level) {
+        if (level < 0 || level >= BY_LEVEL.length)
+            throw new RuntimeException("compression level " + level + " is not in [0, " + (BY_LEVEL.length - 1) + "]");
+
+        return BY_LEVEL[level];
+    }
+
+    public int getLevel() {
+        return level;
+    }
 
     public byte[] encode(byte[] data) {
-        return FuncUtils.safeCall(() -> {
-            ByteArrayOutputStream out = new ByteArrayOutputStream();
-            DeflaterOutputStream stream = new DeflaterOutputStream(out, new Deflater(Deflater.BEST_COMPRESSION, true));
-            stream.write(data);
-            stream.flush();
-            stream.close();
-            return out.toByteArray();
-        });
+        Streams s = streams();
+        Deflater deflater = s.deflater();
+        deflater.reset();
+        if (dictionary != null)
+            deflater.setDictionary(dictionary);
+        deflater.setInput(data);
+        deflater.finish();
+        byte[] buff = s.buffer;
+        int length = 0;
+        while (!deflater.finished()) {
+            if (length == buff.length)
+                buff = s.grow();
+            length += deflater.deflate(buff, length, buff.length - length);
+        }
+        return Arrays.copyOf(buff, length);
     }
 
     public byte[] decode(byte[] data) {
-        return FuncUtils.safeCall(() -> {
-            ByteArrayOutputStream out = new ByteArrayOutputStream();
-            InflaterOutputStream stream = new InflaterOutputStream(out, new Inflater(true));
-            stream.write(data);
-            stream.flush();
-            stream.close();
-            return out.toByteArray();
-        });
-    }
-}
\ No newline at end of file
+        Streams s = streams();
+        Inflater inflater = s.inflater();
+        inflater.reset();
+        if (dictionary != null)
+            inflater.setDictionary(dictionary);
+        inflater.setInput(data);
+        byte[] buff = s.buffer;
+        int length = 0;
+        try {
+            while (!inflater.finished()) {
+                if (length == buff.length)
+                    buff = s.grow();
+                int inflated = inflater.inflate(buff, length, buff.length - length);
+                if (inflated == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+                    break;
+                length += inflated;
+            }
+        }
+        catch (DataFormatException e) {
+            throw new RuntimeException(e);
+        }
+        return Arrays.copyOf(buff, length);
+    }
+
+    /**
+     * Releases the native memory of the Deflaters and Inflaters of this instance in all threads, without creating any. They are created again if a thread uses this instance later on.
+     * This method must not be called concurrently with <Code>encode</Code> or <Code>decode</Code> of this instance.
+     */
+    public void end() {
+        OPEN_STREAMS.removeIf(s -> s.owner == this && s.end());
+    }
+
+    /**
+     * Releases the native memory of the Deflaters and Inflaters of all instances in all threads, e.g., once encoding or decoding is done.
+     * This method must not be called concurrently with <Code>encode</Code> or <Code>decode</Code> of any instance.
+     */
+    public static void endAll() {
+        OPEN_STREAMS.removeIf(Streams::end);
+    }
+
+    private Streams streams() {
+        Streams s = streams.get();
+        if (s == null || s.ended) {
+            s = new Streams(this);
+            OPEN_STREAMS.add(s);
+            streams.set(s);
+        }
+        return s;
+    }
+
+    /**
+     * The streams and the output buffer of one thread. The Deflater and Inflater are created on first use, since a thread mostly either encodes or decodes.
+     */
+    private static final class Streams {
+        private final GZIP owner;
+        private Deflater deflater;
+        private Inflater inflater;
+        private byte[] buffer;
+        private volatile boolean ended;
+
+        Streams(GZIP owner) {
+            this.owner = owner;
+            this.buffer = new byte[INITIAL_BUFFER_SIZE];
+        }
+
+        Deflater deflater() {
+            if (deflater == null)
+                deflater = new Deflater(owner.level, true);
+            return deflater;
+        }
+
+        Inflater inflater() {
+            if (inflater == null)
+                inflater = new Inflater(true);
+            return inflater;
+        }
+
+        byte[] grow() {
+            buffer = Arrays.copyOf(buffer, buffer.length << 1);
+            return buffer;
+        }
+
+        /**
+         * @return true, such that it can be used as the filter of <Code>removeIf</Code>.
+         */
+        boolean end() {
+            if (deflater != null)
+                deflater.end();
+            if (inflater != null)
+                inflater.end();
+            deflater = null;
+            inflater = null;
+            buffer = null;
+            ended = true;
+            return true;
+        }
+    }
+}
@@ -0,0 +1,138 @@
+package utils.compression;
+
+import dnacoders.Coder;
+import java.util.Arrays;
+
+/**
+ * A fast LZ77 compression in pure Java, using an LZ4-like format preceded by the uncompressed length as a varint.
+ * Each sequence is a token, whose upper 4 bits are the number of literals and lower 4 bits are the match length minus 4, followed by the literals, the match's offset as 2 bytes in little endian, and the extensions of both lengths. The last sequence has only literals.
+ * The format is not compatible with LZ4, i.e., neither LZ4 libraries decode it nor this class decodes LZ4 blocks, since the length prefix is specific to this class and the end-of-block rules of LZ4 (the last literals and the minimum distance of the last match to the end) are not applied. This class is thread-safe.
+ */
+public class LZ implements Coder<byte[], byte[]> {
+
+    public static final LZ INSTANCE = new LZ();
+
+    private static final int MIN_MATCH = 4;
+    private static final int MAX_OFFSET = 65535;
+    private static final int HASH_BITS = 12;
+    private static final int RUN_MASK = 15;
+
+    private final ThreadLocal<int[]> tables = ThreadLocal.withInitial(() -> new int[1 << HASH_BITS]);
+
+    @Override
+    public byte[] encode(byte[] data) {
+        int n = data.length;
+        byte[] out = new byte[5 + n + n / 255 + 16];
+        int op = writeVarInt(out, 0, n);
+        // positions + 1, such that 0 is empty
+        int[] table = tables.get();
+        Arrays.fill(table, 0);
+        int anchor = 0;
+        int i = 0;
+        while (i + MIN_MATCH <= n) {
+            int sequence = readInt(data, i);
+            int h = (sequence * -1640531535) >>> (Integer.SIZE - HASH_BITS);
+            int ref = table[h] - 1;
+            table[h] = i + 1;
+            if (ref < 0 || i - ref > MAX_OFFSET || readInt(data, ref) != sequence) {
+                i++;
+                continue;
+            }
+            int length = MIN_MATCH;
+            while (i + length < n && data[ref + length] == data[i + length])
+                length++;
+
+            op = writeSequence(out, op, data, anchor, i - anchor, i - ref, length);
+            i += length;
+            anchor = i;
+        }
+        op = writeSequence(out, op, data, anchor, n - anchor, 0, 0);
+        return Arrays.copyOf(out, op);
+    }
+
+    @Override
+    public byte[] decode(byte[] data) {
+        int n = 0;
+        int ip = 0;
+        for (int shift = 0; ; shift += 7) {
+            int b = data[ip++];
+            n |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0)
+                break;
+        }
+        byte[] out = new byte[n];
+        int op = 0;
+        while (true) {
+            int token = data[ip++] & 0xFF;
+            int literals = token >>> 4;
+            if (literals == RUN_MASK) {
+                int b;
+                do {
+                    b = data[ip++] & 0xFF;
+                    literals += b;
+                } while (b == 0xFF);
+            }
+            System.arraycopy(data, ip, out, op, literals);
+            ip += literals;
+            op += literals;
+            if (op == n)
+                return out;
+
+            int offset = (data[ip] & 0xFF) | ((data[ip + 1] & 0xFF) << 8);
+            ip += 2;
+            int length = token & RUN_MASK;
+            if (length == RUN_MASK) {
+                int b;
+                do {
+                    b = data[ip++] & 0xFF;
+                    length += b;
+                } while (b == 0xFF);
+            }
+            length += MIN_MATCH;
+            // the match may overlap its own output
+            for (int ref = op - offset, end = op + length; op < end; )
+                out[op++] = out[ref++];
+        }
+    }
+
+    private static int writeSequence(byte[] out, int op, byte[] data, int from, int literals, int offset, int length) {
+        int tokenPos = op++;
+        int token = Math.min(literals, RUN_MASK) << 4;
+        if (literals >= RUN_MASK)
+            op = writeLengthExtension(out, op, literals - RUN_MASK);
+        System.arraycopy(data, from, out, op, literals);
+        op += literals;
+        if (length > 0) {
+            out[op++] = (byte) offset;
+            out[op++] = (byte) (offset >>> 8);
+            int matchLength = length - MIN_MATCH;
+            token |= Math.min(matchLength, RUN_MASK);
+            if (matchLength >= RUN_MASK)
+                op = writeLengthExtension(out, op, matchLength - RUN_MASK);
+        }
+        out[tokenPos] = (byte) token;
+        return op;
+    }
+
+    private static int writeLengthExtension(byte[] out, int op, int remaining) {
+        while (remaining >= 0xFF) {
+            out[op++] = (byte) 0xFF;
+            remaining -= 0xFF;
+        }
+        out[op++] = (byte) remaining;
+        return op;
+    }
+
+    private static int writeVarInt(byte[] out, int op, int value) {
+        while ((value & ~0x7F) != 0) {
+            out[op++] = (byte) (0x80 | (value & 0x7F));
+            value >>>= 7;
+        }
+        out[op++] = (byte) value;
+        return op;
+    }
+
+    private static int readInt(byte[] data, int i) {
+        return (data[i] & 0xFF) | ((data[i + 1] & 0xFF) << 8) | ((data[i + 2] & 0xFF) << 16) | (data[i + 3] << 24);
+    }
+}
@@ -0,0 +1,393 @@
+package utils.compression;
+
+import java.util.*;
+import java.util.function.*;
+import java.util.stream.Collector;
+
+/**
+ * A compressed set of integer ids in the style of Roaring bitmaps. The ids are partitioned by their upper 16 bits into containers of their lower 16 bits, each of which is stored in the smallest of three forms:
+ * runs of consecutive ids, which is the initial form, since the ids of a non-unique attribute's value are mostly appended in ascending runs, a sorted array of up to 4096 ids, or a bitmap of 8 KB.
+ * Hence, an id set costs a few bytes per run and at most 2 bytes per id, rather than the 16 and more bytes of a boxed integer in a list. The ids are iterated in ascending order as ranges, which are written straight to <Code>VarIntDeltaCode</Code> without materializing the ids.
+ * This class is not thread-safe.
+ */
+public class RoaringIdSet {
+
+    private static final int CONTAINER_BITS = 16;
+    private static final int CONTAINER_SIZE = 1 << CONTAINER_BITS;
+    private static final int LOW_MASK = CONTAINER_SIZE - 1;
+    // an array or run container of this many values is as large as a bitmap container
+    private static final int MAX_ARRAY_SIZE = 4096;
+    private static final int MAX_RUNS = MAX_ARRAY_SIZE / 2;
+
+    private int[] keys;
+    private Container[] containers;
+    private int size;
+
+    public RoaringIdSet() {
+        this.keys = new int[4];
+        this.containers = new Container[4];
+        this.size = 0;
+    }
+
+    /**
+     * Adds an id. Adding ids in ascending order is fastest.
+     * @param id the id.
+     */
+    public void add(int id) {
+        int i = containerIndex(id >> CONTAINER_BITS);
+        containers[i] = containers[i].add(id & LOW_MASK);
+    }
+
+    /**
+     * Adds the ids [start, start + length).
+     * @param start the first id.
+     * @param length the number of ids.
+     */
+    public void addRange(int start, int length) {
+        long from = start;
+        long end = from + length;
+        while (from < end) {
+            int low = (int) (from & LOW_MASK);
+            int n = (int) Math.min(end - from, CONTAINER_SIZE - low);
+            int i = containerIndex((int) from >> CONTAINER_BITS);
+            containers[i] = containers[i].addRange(low, n);
+            from += n;
+        }
+    }
+
+    /**
+     * Adds all ids of the other set to this set. This is cheap if the other set's ids follow this set's ids, e.g., when merging the sets of consecutive parts of a table. The other set must not be used afterwards, since this set may take over its containers.
+     * @param other the other set.
+     * @return this set.
+     */
+    public RoaringIdSet or(RoaringIdSet other) {
+        for (int j = 0; j < other.size; j++) {
+            int key = other.keys[j];
+            int i = Arrays.binarySearch(keys, 0, size, key);
+            if (i < 0) {
+                insert(-i - 1, key, other.containers[j]);
+            }
+            else {
+                Container[] merged = {containers[i]};
+                other.containers[j].forEachRange(0, (start, length) -> merged[0] = merged[0].addRange(start, length));
+                containers[i] = merged[0];
+            }
+        }
+        return this;
+    }
+
+    /**
+     * @return the number of ids.
+     */
+    public long cardinality() {
+        long cardinality = 0L;
+        for (int i = 0; i < size; i++)
+            cardinality += containers[i].cardinality();
+        return cardinality;
+    }
+
+    /**
+     * @return the approximate number of bytes the containers use.
+     */
+    public long sizeInBytes() {
+        long bytes = 8L * keys.length;
+        for (int i = 0; i < size; i++)
+            bytes += containers[i].sizeInBytes();
+        return bytes;
+    }
+
+    /**
+     * Passes the ids in ascending order as ranges of consecutive ids. A range may be split at the boundary of two containers.
+     * @param consumer the consumer of each range's first id and length.
+     */
+    public void forEachRange(RangeConsumer consumer) {
+        for (int i = 0; i < size; i++)
+            containers[i].forEachRange(keys[i] << CONTAINER_BITS, consumer);
+    }
+
+    /**
+     * @return the ids compressed by <Code>VarIntDeltaCode</Code>.
+     */
+    public byte[] encode() {
+        VarIntDeltaCode.Writer writer = new VarIntDeltaCode.Writer((int) Math.min(Integer.MAX_VALUE, cardinality()));
+        forEachRange(writer::addRange);
+        return writer.toByteArray();
+    }
+
+    private int containerIndex(int key) {
+        // the ids mostly arrive in ascending order
+        if (size > 0 && keys[size - 1] == key)
+            return size - 1;
+
+        int i = Arrays.binarySearch(keys, 0, size, key);
+        if (i >= 0)
+            return i;
+
+        i = -i - 1;
+        insert(i, key, new RunContainer());
+        return i;
+    }
+
+    private void insert(int i, int key, Container container) {
+        if (size == keys.length) {
+            keys = Arrays.copyOf(keys, size << 1);
+            containers = Arrays.copyOf(containers, size << 1);
+        }
+        System.arraycopy(keys, i, keys, i + 1, size - i);
+        System.arraycopy(containers, i, containers, i + 1, size - i);
+        keys[i] = key;
+        containers[i] = container;
+        size++;
+    }
+
+    @FunctionalInterface
+    public interface RangeConsumer {
+        void accept(int start, int length);
+    }
+
+    private abstract static class Container {
+        abstract Container add(int low);
+        abstract Container addRange(int low, int length);
+        abstract int cardinality();
+        abstract long sizeInBytes();
+        abstract void forEachRange(int base, RangeConsumer consumer);
+
+        /**
+         * @return the container with the same values in an array or a bitmap, which accept ids in any order.
+         */
+        Container toUnordered() {
+            Container[] c = {cardinality() <= MAX_ARRAY_SIZE ? new ArrayContainer(cardinality()) : new BitmapContainer()};
+            forEachRange(0, (start, length) -> c[0] = c[0].addRange(start, length));
+            return c[0];
+        }
+    }
+
+    /**
+     * The runs of consecutive values, which only accepts values that do not precede its last run.
+     */
+    private static final class RunContainer extends Container {
+        private char[] starts = new char[4];
+        // the inclusive ends
+        private char[] ends = new char[4];
+        private int runs;
+        private int cardinality;
+
+        @Override
+        Container add(int low) {
+            return addRange(low, 1);
+        }
+
+        @Override
+        Container addRange(int low, int length) {
+            int last = low + length - 1;
+            if (runs > 0) {
+                int end = ends[runs - 1];
+                if (low < starts[runs - 1])
+                    return toUnordered().addRange(low, length);
+                if (low <= end + 1) {
+                    if (last > end) {
+                        cardinality += last - end;
+                        ends[runs - 1] = (char) last;
+                    }
+                    return this;
+                }
+            }
+            if (runs == MAX_RUNS)
+                return toUnordered().addRange(low, length);
+            if (runs == starts.length) {
+                starts = Arrays.copyOf(starts, runs << 1);
+                ends = Arrays.copyOf(ends, runs << 1);
+            }
+            starts[runs] = (char) low;
+            ends[runs] = (char) last;
+            runs++;
+            cardinality += length;
+            return this;
+        }
+
+        @Override
+        int cardinality() {
+            return cardinality;
+        }
+
+        @Override
+        long sizeInBytes() {
+            return 4L * starts.length;
+        }
+
+        @Override
+        void forEachRange(int base, RangeConsumer consumer) {
+            for (int i = 0; i < runs; i++)
+                consumer.accept(base + starts[i], ends[i] - starts[i] + 1);
+        }
+    }
+
+    /**
+     * The sorted array of up to 4096 values.
+     */
+    private static final class ArrayContainer extends Container {
+        private char[] values;
+        private int size;
+
+        ArrayContainer(int capacity) {
+            this.values = new char[Math.max(4, capacity)];
+        }
+
+        @Override
+        Container add(int low) {
+            int i = size > 0 && values[size - 1] < low ? -size - 1 : Arrays.binarySearch(values, 0, size, (char) low);
+            if (i >= 0)
+                return this;
+            if (size == MAX_ARRAY_SIZE)
+                return toBitmap().add(low);
+
+            i = -i - 1;
+            if (size == values.length)
+                values = Arrays.copyOf(values, Math.min(size << 1, MAX_ARRAY_SIZE));
+            System.arraycopy(values, i, values, i + 1, size - i);
+            values[i] = (char) low;
+            size++;
+            return this;
+        }
+
+        @Override
+        Container addRange(int low, int length) {
+            if (size + length > MAX_ARRAY_SIZE)
+                return toBitmap().addRange(low, length);
+
+            Container c = this;
+            for (int v = low; v < low + length; v++)
+                c = c.add(v);
+            return c;
+        }
+
+        private BitmapContainer toBitmap() {
+            BitmapContainer bitmap = new BitmapContainer();
+            for (int i = 0; i < size; i++)
+                bitmap.add(values[i]);
+            return bitmap;
+        }
+
+        @Override
+        int cardinality() {
+            return size;
+        }
+
+        @Override
+        long sizeInBytes() {
+            return 2L * values.length;
+        }
+
+        @Override
+        void forEachRange(int base, RangeConsumer consumer) {
+            for (int i = 0; i < size; ) {
+                int j = i;
+                while (j + 1 < size && values[j + 1] == values[j] + 1)
+                    j++;
+                consumer.accept(base + values[i], j - i + 1);
+                i = j + 1;
+            }
+        }
+    }
+
+    /**
+     * The bitmap of all 65536 values.
+     */
+    private static final class BitmapContainer extends Container {
+        private final long[] words = new long[CONTAINER_SIZE / Long.SIZE];
+        private int cardinality;
+
+        @Override
+        Container add(int low) {
+            long bit = 1L << low;
+            int i = low >>> 6;
+            if ((words[i] & bit) == 0L) {
+                words[i] |= bit;
+                cardinality++;
+            }
+            return this;
+        }
+
+        @Override
+        Container addRange(int low, int length) {
+            int end = low + length;
+            int first = low >>> 6;
+            int last = (end - 1) >>> 6;
+            for (int i = first; i <= last; i++) {
+                long mask = -1L;
+                if (i == first)
+                    mask &= -1L << low;
+                if (i == last)
+                    mask &= -1L >>> -end;
+                cardinality += Long.bitCount(mask & ~words[i]);
+                words[i] |= mask;
+            }
+            return this;
+        }
+
+        @Override
+        int cardinality() {
+            return cardinality;
+        }
+
+        @Override
+        long sizeInBytes() {
+            return 8L * words.length;
+        }
+
+        @Override
+        void forEachRange(int base, RangeConsumer consumer) {
+            int i = 0;
+            long word = words[0];
+            while (true) {
+                while (word == 0L) {
+                    if (++i == words.length)
+                        return;
+                    word = words[i];
+                }
+                int start = i * Long.SIZE + Long.numberOfTrailingZeros(word);
+                // fill the bits below the start and find the next clear bit
+                word |= word - 1L;
+                while (word == -1L) {
+                    if (++i == words.length) {
+                        consumer.accept(base + start, CONTAINER_SIZE - start);
+                        return;
+                    }
+                    word = words[i];
+                }
+                int end = i * Long.SIZE + Long.numberOfTrailingZeros(~word);
+                consumer.accept(base + start, end - start);
+                // clear the bits below the end
+                word &= word + 1L;
+            }
+        }
+    }
+
+    /**
+     * The collector that accumulates the parsed ids in a <Code>RoaringIdSet</Code> and compresses them by <Code>VarIntDeltaCode</Code>. Duplicate ids are kept once.
+     */
+    public static class RangeCollector implements Collector<CharSequence, RoaringIdSet, byte[]> {
+
+        @Override
+        public Supplier<RoaringIdSet> supplier() {
+            return RoaringIdSet::new;
+        }
+        @Override
+        public BiConsumer<RoaringIdSet, CharSequence> accumulator() {
+            return (set, num) -> set.add(Integer.parseInt(num, 0, num.length(), 10));
+        }
+        @Override
+        public BinaryOperator<RoaringIdSet> combiner() {
+            return RoaringIdSet::or;
+        }
+        @Override
+        public Function<RoaringIdSet, byte[]> finisher() {
+            return RoaringIdSet::encode;
+        }
+
+        @Override
+        public Set<Characteristics> characteristics() {
+            return Collections.emptySet();
+        }
+    }
+}
@@ -0,0 +1,237 @@
+package utils.compression;
+
+import dnacoders.Coder;
+import java.util.*;
+import java.util.stream.IntStream;
+
+/**
+ * The binary counterpart of <Code>DeltaCode</Code> that compresses sorted integers to bytes without boxing them.
+ * The integers are split into ranges of consecutive integers and each range is written as two LEB128 varints, i.e., 7 bits per byte with the highest bit set on all but the last byte: the gap to the end of the previous range (the first range's start for the first range), and the range's size minus 1.
+ * The output starts with the byte 0, which distinguishes it from the decimal text of <Code>DeltaCode</Code>.
+ */
+public class VarIntDeltaCode implements Coder<int[], byte[]> {
+
+    public static final byte FORMAT = 0;
+
+    public static final VarIntDeltaCode INSTANCE = new VarIntDeltaCode();
+
+    /**
+     * @param ids the sorted integers.
+     * @return the compressed integers.
+     */
+    @Override
+    public byte[] encode(int[] ids) {
+        return encode(ids, ids.length);
+    }
+
+    /**
+     * @param ids the buffer of sorted integers.
+     * @param length the number of integers in the buffer.
+     * @return the compressed integers.
+     */
+    public byte[] encode(int[] ids, int length) {
+        Writer writer = new Writer(length);
+        for (int i = 0; i < length; i++)
+            writer.add(ids[i]);
+        return writer.toByteArray();
+    }
+
+    /**
+     * @param bytes the compressed integers.
+     * @return the sorted integers.
+     */
+    @Override
+    public int[] decode(byte[] bytes) {
+        checkFormat(bytes);
+        int count = 0;
+        for (int pos = 1; pos < bytes.length; ) {
+            pos = skipVarInt(bytes, pos);
+            int sizeMinus1 = 0;
+            for (int shift = 0; ; shift += 7) {
+                byte b = bytes[pos++];
+                sizeMinus1 |= (b & 0x7F) << shift;
+                if (b >= 0)
+                    break;
+            }
+            count += sizeMinus1 + 1;
+        }
+
+        int[] ids = new int[count];
+        int i = 0;
+        int next = 0;
+        for (int pos = 1; pos < bytes.length; ) {
+            int gap = 0;
+            for (int shift = 0; ; shift += 7) {
+                byte b = bytes[pos++];
+                gap |= (b & 0x7F) << shift;
+                if (b >= 0)
+                    break;
+            }
+            int sizeMinus1 = 0;
+            for (int shift = 0; ; shift += 7) {
+                byte b = bytes[pos++];
+                sizeMinus1 |= (b & 0x7F) << shift;
+                if (b >= 0)
+                    break;
+            }
+            int id = next + gap;
+            for (int end = i + sizeMinus1 + 1; i < end; )
+                ids[i++] = id++;
+            next = id;
+        }
+        return ids;
+    }
+
+    /**
+     * @param bytes the compressed integers.
+     * @return the stream of the sorted integers.
+     */
+    public IntStream stream(byte[] bytes) {
+        return IntStream.of(decode(bytes));
+    }
+
+    /**
+     * @param bytes the payload of a non-unique attribute.
+     * @return true if the payload was compressed by this class rather than by <Code>DeltaCode</Code>.
+     */
+    public static boolean isVarIntDeltaCode(byte[] bytes) {
+        return bytes.length > 0 && bytes[0] == FORMAT;
+    }
+
+    private static void checkFormat(byte[] bytes) {
+        if (!isVarIntDeltaCode(bytes))
+            throw new RuntimeException("the bytes are not compressed by " + VarIntDeltaCode.class.getSimpleName());
+    }
+
+    private static int skipVarInt(byte[] bytes, int pos) {
+        while (bytes[pos++] < 0);
+        return pos;
+    }
+
+    /**
+     * Writes sorted integers, or ranges of them, to the binary format incrementally.
+     */
+    public static class Writer {
+
+        private byte[] buff;
+        private int length;
+        private int start;
+        private int size;
+        private int next;
+
+        /**
+         * @param expectedIds the expected number of integers, which only sizes the initial buffer.
+         */
+        public Writer(int expectedIds) {
+            this.buff = new byte[1 + Math.max(8, Math.min(expectedIds, 1 << 16))];
+            this.buff[0] = FORMAT;
+            this.length = 1;
+        }
+
+        public Writer() {
+            this(16);
+        }
+
+        /**
+         * @param id the next integer, which must not be smaller than the previous one.
+         */
+        public void add(int id) {
+            addRange(id, 1);
+        }
+
+        /**
+         * Adds the range [start, start + size). It is merged with the previous range if both are adjacent.
+         * @param start the range's first integer, which must not be smaller than the previous one.
+         * @param size the range's size.
+         */
+        public void addRange(int start, int size) {
+            if (size <= 0)
+                return;
+            if (this.size > 0 && start == this.start + this.size) {
+                this.size += size;
+                return;
+            }
+            flush();
+            this.start = start;
+            this.size = size;
+        }
+
+        /**
+         * @return the compressed integers added so far.
+         */
+        public byte[] toByteArray() {
+            flush();
+            return Arrays.copyOf(buff, length);
+        }
+
+        private void flush() {
+            if (size == 0)
+                return;
+            if (length + 2 * 5 > buff.length)
+                buff = Arrays.copyOf(buff, buff.length << 1);
+            length = writeVarInt(buff, length, start - next);
+            length = writeVarInt(buff, length, size - 1);
+            next = start + size;
+            size = 0;
+        }
+
+        private static int writeVarInt(byte[] buff, int pos, int value) {
+            while ((value & ~0x7F) != 0) {
+                buff[pos++] = (byte) (0x80 | (value & 0x7F));
+                value >>>= 7;
+            }
+            buff[pos++] = (byte) value;
+            return pos;
+        }
+    }
+
+    /**
+     * A read-only <Code>List</Code> of the boxed integers that wraps decoded integers, e.g., to print them, but exposes them unboxed.
+     */
+    public static class IntList extends AbstractList<Integer> implements RandomAccess {
+
+        private final int[] ids;
+        private final int size;
+
+        /**
+         * Wraps an array without copying it.
+         * @param ids the array.
+         * @param size the number of integers in the array.
+         */
+        public IntList(int[] ids, int size) {
+            this.ids = ids;
+            this.size = size;
+        }
+
+        /**
+         * @param ids the integers.
+         * @return the list wrapping the integers.
+         */
+        public static IntList of(int[] ids) {
+            return new IntList(ids, ids.length);
+        }
+
+        public int getInt(int index) {
+            Objects.checkIndex(index, size);
+            return ids[index];
+        }
+
+        @Override
+        public Integer get(int index) {
+            return getInt(index);
+        }
+
+        @Override
+        public int size() {
+            return size;
+        }
+
+        public int[] toIntArray() {
+            return Arrays.copyOf(ids, size);
+        }
+
+        public IntStream intStream() {
+            return Arrays.stream(ids, 0, size);
+        }
+    }
+}
@@ -0,0 +1,398 @@
+package utils.lsh;
+
+import java.util.Arrays;
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * A thread-safe hash table that maps the 64-bit signature of a band to an append-only bucket of sequence ids.
+ * The table is split into lock-striped segments, each being an open addressing hash table. Writers lock a single segment, whereas readers do not lock at all unless a writer modified the same segment concurrently.
+ */
+public class BandTable {
+
+    public static final int DEFAULT_SEGMENTS_BITS = 6;
+
+    private static final int INITIAL_CAPACITY = 16;
+    private static final float MAX_LOAD_FACTOR = 0.5f;
+
+    private final int segmentShift;
+    private final Segment[] segments;
+    private final int bucketCapacity;
+
+    /**
+     * Creates an empty BandTable with 2^DEFAULT_SEGMENTS_BITS segments.
+     * @param bandSize the number of min-hashes per band.
+     * @param verify true to store the band's min-hashes with each bucket and compare them on every lookup, and false to rely on the 64-bit signature only.
+     */
+    public BandTable(int bandSize, boolean verify) {
+        this(bandSize, verify, DEFAULT_SEGMENTS_BITS, 0);
+    }
+
+    /**
+     * Creates an empty BandTable with 2^DEFAULT_SEGMENTS_BITS segments.
+     * @param bandSize the number of min-hashes per band.
+     * @param verify true to store the band's min-hashes with each bucket and compare them on every lookup, and false to rely on the 64-bit signature only.
+     * @param bucketCapacity the maximum number of ids per bucket, or 0 for unbounded buckets. A full bucket drops its oldest id when a new id is added.
+     */
+    public BandTable(int bandSize, boolean verify, int bucketCapacity) {
+        this(bandSize, verify, DEFAULT_SEGMENTS_BITS, bucketCapacity);
+    }
+
+    /**
+     * Creates an empty BandTable.
+     * @param bandSize the number of min-hashes per band.
+     * @param verify true to store the band's min-hashes with each bucket and compare them on every lookup, and false to rely on the 64-bit signature only.
+     * @param segmentsBits the log2 of the number of segments.
+     * @param bucketCapacity the maximum number of ids per bucket, or 0 for unbounded buckets. A full bucket drops its oldest id when a new id is added.
+     */
+    public BandTable(int bandSize, boolean verify, int segmentsBits, int bucketCapacity) {
+        if (segmentsBits < 0 || segmentsBits > 16)
+            throw new RuntimeException("segmentsBits must be in [0, 16]");
+        if (bucketCapacity < 0)
+            throw new RuntimeException("bucketCapacity must be >= 0");
+        this.bucketCapacity = bucketCapacity;
+        this.segmentShift = Long.SIZE - segmentsBits;
+        this.segments = new Segment[1 << segmentsBits];
+        for (int i = 0; i < segments.length; i++)
+            segments[i] = new Segment(bandSize, verify);
+    }
+
+    /**
+     * Returns the bucket for a given signature. This method is thread-safe and does not block unless the same segment is modified concurrently.
+     * @param sig the band's signature.
+     * @param bandMinHashes the array containing the band's min-hashes. Only used if this instance verifies signatures.
+     * @param offset the index of the band's first min-hash in bandMinHashes.
+     * @return the bucket, or null if no bucket exists.
+     */
+    public Bucket get(long sig, long[] bandMinHashes, int offset) {
+        return segment(sig).get(sig, bandMinHashes, offset);
+    }
+
+    /**
+     * Appends a sequence id to the bucket of a given signature and creates that bucket if missing. This method is thread-safe.
+     * @param sig the band's signature.
+     * @param bandMinHashes the array containing the band's min-hashes. Only used if this instance verifies signatures.
+     * @param offset the index of the band's first min-hash in bandMinHashes.
+     * @param id the sequence id to append.
+     * @return the id the bucket dropped to make room for id, or -1 if no id was dropped.
+     */
+    public int add(long sig, long[] bandMinHashes, int offset, int id) {
+        return segment(sig).add(sig, bandMinHashes, offset, id, bucketCapacity);
+    }
+
+    /**
+     * Removes a sequence id from the bucket of a given signature, and removes the bucket if it becomes empty. This method is thread-safe.
+     * @param sig the band's signature.
+     * @param id the sequence id to remove.
+     * @return true if the bucket was removed, i.e., no id is left for sig, and false otherwise.
+     */
+    public boolean remove(long sig, int id) {
+        return segment(sig).remove(sig, id);
+    }
+
+    /**
+     * @return the number of buckets.
+     */
+    public int size() {
+        int size = 0;
+        for (Segment segment : segments)
+            size += segment.size;
+
+        return size;
+    }
+
+    /**
+     * Passes each bucket with its signature to the given action. Buckets added concurrently may or may not be passed.
+     * @param action the action to perform on each bucket.
+     */
+    public void forEach(EntryConsumer action) {
+        for (Segment segment : segments)
+            segment.forEach(action);
+    }
+
+    /**
+     * An action on the buckets of a BandTable.
+     */
+    @FunctionalInterface
+    public interface EntryConsumer {
+        /**
+         * @param sig the band's signature.
+         * @param bandMinHashes the band's min-hashes, or null if the BandTable does not verify signatures.
+         * @param bucket the bucket.
+         */
+        void accept(long sig, long[] bandMinHashes, Bucket bucket);
+    }
+
+    private Segment segment(long sig) {
+        return segments[segmentShift == Long.SIZE ? 0 : (int) (sig >>> segmentShift)];
+    }
+
+    static int slot(long sig, int mask) {
+        return (int) (sig ^ (sig >>> 32)) & mask;
+    }
+
+    /**
+     * An append-only list of sequence ids that supports a single writer and any number of concurrent readers without locking.
+     */
+    public static final class Bucket {
+        private static final int INITIAL_CAPACITY = 2;
+
+        private volatile int[] ids;
+        private volatile int size;
+
+        Bucket() {
+            this.ids = new int[INITIAL_CAPACITY];
+            this.size = 0;
+        }
+
+        /**
+         * @return the dropped id, or -1 if no id was dropped.
+         */
+        int add(int id, int capacity) {
+            int[] current = ids;
+            int n = size;
+            if (capacity > 0 && n >= capacity) {
+                // copy-on-write, since concurrent readers may iterate over the current array
+                int dropped = current[0];
+                int[] shifted = new int[current.length];
+                System.arraycopy(current, 1, shifted, 0, n - 1);
+                shifted[n - 1] = id;
+                ids = shifted;
+                return dropped;
+            }
+            add(id);
+            return -1;
+        }
+
+        /**
+         * Removes an id. A concurrent reader that read the previous size may read one id twice, but never reads an id that was not in this bucket.
+         * @return true if id was removed, and false if this bucket does not contain id.
+         */
+        boolean remove(int id) {
+            int[] current = ids;
+            int n = size;
+            int index = -1;
+            for (int i = 0; i < n; i++) {
+                if (current[i] == id) {
+                    index = i;
+                    break;
+                }
+            }
+            if (index < 0)
+                return false;
+
+            int[] copy = new int[current.length];
+            System.arraycopy(current, 0, copy, 0, index);
+            System.arraycopy(current, index + 1, copy, index, n - index - 1);
+            copy[n - 1] = n > 1 ? copy[n - 2] : id;
+            ids = copy;
+            size = n - 1;
+            return true;
+        }
+
+        void add(int id) {
+            int[] current = ids;
+            int n = size;
+            if (n == current.length) {
+                current = Arrays.copyOf(current, n << 1);
+                current[n] = id;
+                ids = current;
+            }
+            else {
+                current[n] = id;
+            }
+            size = n + 1;
+        }
+
+        /**
+         * @return the number of ids in this bucket.
+         */
+        public int size() {
+            return size;
+        }
+
+        /**
+         * Returns the array backing this bucket. Only the first <Code>size()</Code> ids, read before calling this method, are guaranteed to be set.
+         * @return the array of ids.
+         */
+        public int[] ids() {
+            return ids;
+        }
+    }
+
+    private static final class Table {
+        final long[] keys;
+        final long[][] minHashes;
+        final Bucket[] buckets;
+        final int mask;
+
+        Table(int capacity, boolean verify) {
+            this.keys = new long[capacity];
+            this.minHashes = verify ? new long[capacity][] : null;
+            this.buckets = new Bucket[capacity];
+            this.mask = capacity - 1;
+        }
+    }
+
+    private static final class Segment {
+        private final int bandSize;
+        private final boolean verify;
+        private final StampedLock lock;
+        private volatile Table table;
+        private int size;
+
+        Segment(int bandSize, boolean verify) {
+            this.bandSize = bandSize;
+            this.verify = verify;
+            this.lock = new StampedLock();
+            this.table = new Table(INITIAL_CAPACITY, verify);
+        }
+
+        Bucket get(long sig, long[] bandMinHashes, int offset) {
+            long stamp = lock.tryOptimisticRead();
+            if (stamp != 0L) {
+                try {
+                    Bucket bucket = find(table, sig, bandMinHashes, offset);
+                    if (lock.validate(stamp))
+                        return bucket;
+                }
+                catch (RuntimeException ignored) {
+                    // a concurrent writer left the table in an intermediate state
+                }
+            }
+            stamp = lock.readLock();
+            try {
+                return find(table, sig, bandMinHashes, offset);
+            }
+            finally {
+                lock.unlockRead(stamp);
+            }
+        }
+
+        int add(long sig, long[] bandMinHashes, int offset, int id, int bucketCapacity) {
+            long stamp = lock.writeLock();
+            try {
+                Table t = table;
+                int slot = slot(sig, t.mask);
+                Bucket bucket;
+                while ((bucket = t.buckets[slot]) != null) {
+                    if (matches(t, slot, sig, bandMinHashes, offset))
+                        return bucket.add(id, bucketCapacity);
+                    slot = (slot + 1) & t.mask;
+                }
+                Bucket newBucket = new Bucket();
+                newBucket.add(id);
+                t.keys[slot] = sig;
+                if (verify)
+                    t.minHashes[slot] = Arrays.copyOfRange(bandMinHashes, offset, offset + bandSize);
+                t.buckets[slot] = newBucket;
+                if (++size > MAX_LOAD_FACTOR * t.keys.length)
+                    table = rehash(t);
+                return -1;
+            }
+            finally {
+                lock.unlockWrite(stamp);
+            }
+        }
+
+        boolean remove(long sig, int id) {
+            long stamp = lock.writeLock();
+            try {
+                Table t = table;
+                int slot = slot(sig, t.mask);
+                Bucket bucket;
+                while ((bucket = t.buckets[slot]) != null) {
+                    if (t.keys[slot] == sig && bucket.remove(id)) {
+                        if (bucket.size() > 0)
+                            return false;
+                        delete(t, slot);
+                        size--;
+                        return true;
+                    }
+                    slot = (slot + 1) & t.mask;
+                }
+                return false;
+            }
+            finally {
+                lock.unlockWrite(stamp);
+            }
+        }
+
+        /**
+         * Deletes a slot by shifting the following slots of its probe sequence backwards, such that no tombstones are needed.
+         */
+        private void delete(Table t, int slot) {
+            int i = slot;
+            int j = slot;
+            int home;
+            while (true) {
+                j = (j + 1) & t.mask;
+                if (t.buckets[j] == null)
+                    break;
+                home = slot(t.keys[j], t.mask);
+                if (i <= j ? (i < home && home <= j) : (i < home || home <= j))
+                    continue;
+                t.keys[i] = t.keys[j];
+                if (verify)
+                    t.minHashes[i] = t.minHashes[j];
+                t.buckets[i] = t.buckets[j];
+                i = j;
+            }
+            t.buckets[i] = null;
+            t.keys[i] = 0L;
+            if (verify)
+                t.minHashes[i] = null;
+        }
+
+        void forEach(EntryConsumer action) {
+            long stamp = lock.readLock();
+            Table t;
+            try {
+                t = table;
+            }
+            finally {
+                lock.unlockRead(stamp);
+            }
+            for (int i = 0; i < t.keys.length; i++) {
+                if (t.buckets[i] != null)
+                    action.accept(t.keys[i], verify ? t.minHashes[i] : null, t.buckets[i]);
+            }
+        }
+
+        private Bucket find(Table t, long sig, long[] bandMinHashes, int offset) {
+            int slot = slot(sig, t.mask);
+            Bucket bucket;
+            while ((bucket = t.buckets[slot]) != null) {
+                if (matches(t, slot, sig, bandMinHashes, offset))
+                    return bucket;
+                slot = (slot + 1) & t.mask;
+            }
+            return null;
+        }
+
+        private boolean matches(Table t, int slot, long sig, long[] bandMinHashes, int offset) {
+            if (t.keys[slot] != sig)
+                return false;
+            if (!verify)
+                return true;
+            long[] stored = t.minHashes[slot];
+            return stored != null && Arrays.equals(stored, 0, bandSize, bandMinHashes, offset, offset + bandSize);
+        }
+
+        private Table rehash(Table old) {
+            Table t = new Table(old.keys.length << 1, verify);
+            int slot;
+            for (int i = 0; i < old.keys.length; i++) {
+                if (old.buckets[i] == null)
+                    continue;
+                slot = slot(old.keys[i], t.mask);
+                while (t.buckets[slot] != null)
+                    slot = (slot + 1) & t.mask;
+                t.keys[slot] = old.keys[i];
+                if (verify)
+                    t.minHashes[slot] = old.minHashes[i];
+                t.buckets[slot] = old.buckets[i];
+            }
+            return t;
+        }
+    }
+}
@@ -0,0 +1,79 @@
+package utils.lsh;
+
+import java.util.SplittableRandom;
+
+/**
+ * Decides which slot of a capacity-bounded LSH a newly inserted DNA sequence occupies. The DNA sequence previously occupying that slot is evicted.
+ */
+public interface EvictionPolicy {
+
+    /**
+     * Returns the slot for the n-th inserted DNA sequence. Calls are serialized by the LSH.
+     * @param n the number of DNA sequences inserted before, including rejected ones.
+     * @param capacity the number of slots.
+     * @return the slot in [0, capacity), or -1 to reject the DNA sequence.
+     */
+    int slot(long n, int capacity);
+
+    /**
+     * Returns the policy for another LSH instance, e.g., an empty copy. A stateless policy returns itself, whereas a stateful policy returns a new instance with its own state, such that the two LSH instances do not share it.
+     * Calls are serialized by the LSH with its calls of <Code>slot</Code>.
+     * @return the policy for another LSH instance.
+     */
+    default EvictionPolicy split() {
+        return this;
+    }
+
+    /**
+     * @param name the name of the policy, i.e., "fifo" or "reservoir".
+     * @return the policy for that name.
+     */
+    static EvictionPolicy of(String name) {
+        return switch (name.toLowerCase()) {
+            case "fifo"      -> fifo();
+            case "reservoir" -> reservoir(0L);
+            default -> throw new RuntimeException("unknown eviction policy: " + name);
+        };
+    }
+
+    /**
+     * Keeps the most recently inserted DNA sequences (a sliding window), i.e., evicts the oldest one.
+     * @return the FIFO policy.
+     */
+    static EvictionPolicy fifo() {
+        return (n, capacity) -> (int) (n % capacity);
+    }
+
+    /**
+     * Keeps a uniform random sample of all DNA sequences inserted so far (reservoir sampling). Once the LSH is full, the n-th DNA sequence is kept with probability capacity / (n + 1) and replaces a random one.
+     * @param seed the seed of the random generator.
+     * @return the reservoir policy.
+     */
+    static EvictionPolicy reservoir(long seed) {
+        return new Reservoir(new SplittableRandom(seed));
+    }
+
+    /**
+     * The reservoir policy. A split reservoir draws from a random generator split off this one's, i.e., it is seeded separately but deterministically.
+     */
+    final class Reservoir implements EvictionPolicy {
+        private final SplittableRandom rand;
+
+        private Reservoir(SplittableRandom rand) {
+            this.rand = rand;
+        }
+
+        @Override
+        public int slot(long n, int capacity) {
+            if (n < capacity)
+                return (int) n;
+            long j = rand.nextLong(n + 1);
+            return j < capacity ? (int) j : -1;
+        }
+
+        @Override
+        public EvictionPolicy split() {
+            return new Reservoir(rand.split());
+        }
+    }
+}
@@ -3,19 +3,39 @@ package utils.lsh;
 import core.BaseSequence;
 import utils.FuncUtils;
 import java.util.*;
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReadWriteLock;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
-import java.util.function.Supplier;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.function.IntConsumer;
+import java.util.stream.IntStream;
 import java.util.stream.Stream;
 
 public class LSH {
+
+    // the maximum of capacity * b, such that the slot signatures and the power-of-two table of ghosts fit into arrays
+    public static final int MAX_SLOTS = 1 << 30;
+
     private final int k;
     private final int b;
     private final int bandSize;
-    private final List<Map<String, Set<BaseSequence>>> bands;
-    private final ReadWriteLock[] bandLocks;
-    private final PseudoPermutation[] permutations;
+    private final boolean verifySignatures;
+    private volatile State state;
+    private final int probes;
+    private final MinHashSketcher sketcher;
+    private final ThreadLocal<CandidateSet> candidateSets;
+
+    private final int capacity;
+    private final int bucketCapacity;
+    private final EvictionPolicy eviction;
+    private final long[] slotSigs;
+    private final long[] ghosts;
+    private final Object evictionLock;
+    private final LongAdder evicted;
+    private final LongAdder rejected;
+    private final LongAdder bucketDrops;
+    private final LongAdder evictedHits;
+    private long inserted;
+    private volatile int occupied;
 
     /**
      * Creates a tread-safe LSH instance that supports concurrent insertion and querying
@@ -24,33 +44,275 @@ public class LSH {
      * @param b the number of bands. Note that for r=120 and b=10, the resulting bandSize is 12 i.e. 12 hash functions per band/signature
      */
     public LSH(int k, int r, int b) {
+        this(k, r, b, false);
+    }
+
+    /**
+     * Creates a tread-safe LSH instance that supports concurrent insertion and querying
+     * @param k the kmer length
+     * @param r the number of hash functions (permutations)
+     * @param b the number of bands. Note that for r=120 and b=10, the resulting bandSize is 12 i.e. 12 hash functions per band/signature
+     * @param verifySignatures true to compare the min-hashes of a band in addition to its 64-bit signature, and false to rely on the signature only. Verifying rules out false matches due to hash collisions, but stores the min-hashes of each bucket.
+     */
+    public LSH(int k, int r, int b, boolean verifySignatures) {
+        this(k, r, b, verifySignatures, MinHashSketcher.Type.PERMUTATIONS);
+    }
+
+    /**
+     * Creates a tread-safe LSH instance that supports concurrent insertion and querying
+     * @param k the kmer length
+     * @param r the number of hash functions (permutations), or the number of bins for one-permutation hashing
+     * @param b the number of bands. Note that for r=120 and b=10, the resulting bandSize is 12 i.e. 12 hash functions per band/signature
+     * @param verifySignatures true to compare the min-hashes of a band in addition to its 64-bit signature, and false to rely on the signature only. Verifying rules out false matches due to hash collisions, but stores the min-hashes of each bucket.
+     * @param sketch the scheme that computes the r min-hashes of a DNA sequence.
+     */
+    public LSH(int k, int r, int b, boolean verifySignatures, MinHashSketcher.Type sketch) {
+        this(k, r, b, verifySignatures, sketch, 0);
+    }
+
+    /**
+     * Creates a tread-safe LSH instance that supports concurrent insertion and querying
+     * @param k the kmer length
+     * @param r the number of hash functions (permutations), or the number of bins for one-permutation hashing
+     * @param b the number of bands. Note that for r=120 and b=10, the resulting bandSize is 12 i.e. 12 hash functions per band/signature
+     * @param verifySignatures true to compare the min-hashes of a band in addition to its 64-bit signature, and false to rely on the signature only. Verifying rules out false matches due to hash collisions, but stores the min-hashes of each bucket.
+     * @param sketch the scheme that computes the r min-hashes of a DNA sequence.
+     * @param probes the default number of additional buckets probed per band by a query (multi-probe LSH). 0 probes only the bucket of the query's signature.
+     */
+    public LSH(int k, int r, int b, boolean verifySignatures, MinHashSketcher.Type sketch, int probes) {
+        this(k, r, b, verifySignatures, sketch, probes, 0, null, 0);
+    }
+
+    /**
+     * Creates a tread-safe LSH instance that supports concurrent insertion and querying, and that optionally holds a bounded number of DNA sequences.
+     * @param k the kmer length
+     * @param r the number of hash functions (permutations), or the number of bins for one-permutation hashing
+     * @param b the number of bands. Note that for r=120 and b=10, the resulting bandSize is 12 i.e. 12 hash functions per band/signature
+     * @param verifySignatures true to compare the min-hashes of a band in addition to its 64-bit signature, and false to rely on the signature only. Verifying rules out false matches due to hash collisions, but stores the min-hashes of each bucket.
+     * @param sketch the scheme that computes the r min-hashes of a DNA sequence.
+     * @param probes the default number of additional buckets probed per band by a query (multi-probe LSH). 0 probes only the bucket of the query's signature.
+     * @param capacity the maximum number of DNA sequences this instance holds, or 0 for no limit. If capacity &gt; 0, inserting a DNA sequence into a full instance evicts the DNA sequence chosen by eviction, and insertions are serialized.
+     * @param eviction the eviction policy. Only used if capacity &gt; 0.
+     * @param bucketCapacity the maximum number of DNA sequences per bucket, or 0 for no limit. A full bucket drops its oldest DNA sequence, which remains in the buckets of the other bands.
+     */
+    public LSH(int k, int r, int b, boolean verifySignatures, MinHashSketcher.Type sketch, int probes, int capacity, EvictionPolicy eviction, int bucketCapacity) {
+        this(k, r, b, verifySignatures, sketch, probes, capacity, eviction, bucketCapacity, ThreadLocalRandom.current().nextLong());
+    }
+
+    /**
+     * Creates a tread-safe LSH instance that supports concurrent insertion and querying, and whose hash functions are derived from a given seed. LSH instances created with the same k, r, sketch, and seed compute the same min-hashes, e.g., in separate processes that encode shards of a table, such that their index files can be merged with <Code>merge</Code>.
+     * @param k the kmer length
+     * @param r the number of hash functions (permutations), or the number of bins for one-permutation hashing
+     * @param b the number of bands. Note that for r=120 and b=10, the resulting bandSize is 12 i.e. 12 hash functions per band/signature
+     * @param verifySignatures true to compare the min-hashes of a band in addition to its 64-bit signature, and false to rely on the signature only. Verifying rules out false matches due to hash collisions, but stores the min-hashes of each bucket.
+     * @param sketch the scheme that computes the r min-hashes of a DNA sequence.
+     * @param probes the default number of additional buckets probed per band by a query (multi-probe LSH). 0 probes only the bucket of the query's signature.
+     * @param capacity the maximum number of DNA sequences this instance holds, or 0 for no limit. If capacity &gt; 0, inserting a DNA sequence into a full instance evicts the DNA sequence chosen by eviction, and insertions are serialized. capacity * b must not exceed MAX_SLOTS.
+     * @param eviction the eviction policy. Only used if capacity &gt; 0.
+     * @param bucketCapacity the maximum number of DNA sequences per bucket, or 0 for no limit. A full bucket drops its oldest DNA sequence, which remains in the buckets of the other bands.
+     * @param seed the seed of the hash functions.
+     */
+    public LSH(int k, int r, int b, boolean verifySignatures, MinHashSketcher.Type sketch, int probes, int capacity, EvictionPolicy eviction, int bucketCapacity, long seed) {
+        if (capacity < 0)
+            throw new RuntimeException("capacity must be >= 0");
+        if (capacity > 0 && eviction == null)
+            throw new RuntimeException("a capacity-bounded LSH requires an eviction policy");
+        if (probes < 0)
+            throw new RuntimeException("probes must be >= 0");
         if (r % b != 0)
             throw new RuntimeException("r must be a multiple of b");
-        if (k > 33)
-            throw new RuntimeException("this LSH only supports k-mers up to k = 33");
+        if (k > 32)
+            throw new RuntimeException("this LSH only supports k-mers up to k = 32");
+        int slots = capacity > 0 ? slots(capacity, b) : 0;
 
         this.k = k;
         this.b = b;
         this.bandSize = r / b;
+        this.verifySignatures = verifySignatures;
+        this.probes = probes;
+        this.sketcher = MinHashSketcher.newInstance(sketch, k, r, seed);
+        this.capacity = capacity;
+        this.bucketCapacity = bucketCapacity;
+        this.eviction = eviction;
+        this.slotSigs = capacity > 0 ? new long[slots] : null;
+        this.ghosts = capacity > 0 ? new long[Math.max(1 << 10, Integer.highestOneBit(slots - 1) << 1)] : null;
+        this.evictionLock = new Object();
+        this.evicted = new LongAdder();
+        this.rejected = new LongAdder();
+        this.bucketDrops = new LongAdder();
+        this.evictedHits = new LongAdder();
+        this.state = new State(null, b, bandSize, verifySignatures, bucketCapacity);
+        this.candidateSets = ThreadLocal.withInitial(CandidateSet::new);
+    }
+
+    /**
+     * @param capacity the maximum number of DNA sequences.
+     * @param b the number of bands.
+     * @return the number of slot signatures of a capacity-bounded LSH, i.e., capacity * b.
+     */
+    private static int slots(int capacity, int b) {
+        int slots;
+        try {
+            slots = Math.multiplyExact(capacity, b);
+        }
+        catch (ArithmeticException e) {
+            slots = Integer.MAX_VALUE;
+        }
+        if (slots > MAX_SLOTS)
+            throw new RuntimeException("capacity " + capacity + " with b = " + b + " bands exceeds the " + MAX_SLOTS + " slot signatures of a capacity-bounded LSH, i.e., capacity must be <= " + MAX_SLOTS / b);
+        return slots;
+    }
+
+    private LSH(LSH lsh) {
+        this.k = lsh.k;
+        this.b = lsh.b;
+        this.bandSize = lsh.bandSize;
+        this.verifySignatures = lsh.verifySignatures;
+        this.probes = lsh.probes;
+        this.sketcher = lsh.sketcher;
+        this.capacity = lsh.capacity;
+        this.bucketCapacity = lsh.bucketCapacity;
+        // the copy evicts independently of this instance, e.g., a reservoir draws from its own random generator
+        synchronized (lsh.evictionLock) {
+            this.eviction = lsh.eviction == null ? null : lsh.eviction.split();
+        }
+        this.slotSigs = lsh.slotSigs == null ? null : new long[lsh.slotSigs.length];
+        this.ghosts = lsh.ghosts == null ? null : new long[lsh.ghosts.length];
+        this.evictionLock = new Object();
+        this.evicted = new LongAdder();
+        this.rejected = new LongAdder();
+        this.bucketDrops = new LongAdder();
+        this.evictedHits = new LongAdder();
+        this.state = new State(null, b, bandSize, verifySignatures, bucketCapacity);
+        this.candidateSets = ThreadLocal.withInitial(CandidateSet::new);
+    }
+
+    private LSH(MappedLSHIndex index, int probes) {
+        if (probes < 0)
+            throw new RuntimeException("probes must be >= 0");
+        this.k = index.getK();
+        this.b = index.getB();
+        this.bandSize = index.getR() / b;
+        this.verifySignatures = index.getVerify();
+        this.probes = probes;
+        this.sketcher = MinHashSketcher.newInstance(index.getSketch(), k, index.getR(), index.getSeed());
+        this.capacity = 0;
+        this.bucketCapacity = 0;
+        this.eviction = null;
+        this.slotSigs = null;
+        this.ghosts = null;
+        this.evictionLock = new Object();
+        this.evicted = new LongAdder();
+        this.rejected = new LongAdder();
+        this.bucketDrops = new LongAdder();
+        this.evictedHits = new LongAdder();
+        this.state = new State(index, b, bandSize, verifySignatures, 0);
+        this.candidateSets = ThreadLocal.withInitial(CandidateSet::new);
+    }
+
+    /**
+     * Opens an LSH index file written by <Code>save</Code> or <Code>spill</Code>. The sequences of the file are memory-mapped rather than loaded, and the returned LSH instance uses the same hash functions as the LSH instance that wrote the file. DNA sequences inserted into the returned instance are kept on the heap.
+     * @param path the path of the index file.
+     * @return the LSH instance.
+     */
+    public static LSH open(String path) {
+        MappedLSHIndex index = MappedLSHIndex.open(path);
+        return new LSH(index, index.getProbes());
+    }
+
+    /**
+     * Opens an LSH index file like <Code>open(String)</Code>, but queries it with the given default number of probes instead of the one of the LSH instance that wrote the file.
+     * @param path the path of the index file.
+     * @param probes the default number of additional buckets probed per band by a query (multi-probe LSH).
+     * @return the LSH instance.
+     */
+    public static LSH open(String path, int probes) {
+        return new LSH(MappedLSHIndex.open(path), probes);
+    }
+
+    /**
+     * Merges LSH index files, e.g., the indexes of shards encoded in separate processes, into a new index file and opens it. The merged index holds the DNA sequences of all indexes in the given order, and the bucket of a signature is the union of its buckets in all indexes.
+     * @param path the path of the merged index file. It may be one of shardPaths.
+     * @param shardPaths the paths of the index files. They must have been written by LSH instances with the same hash functions (see the seed of the LSH constructor), number of bands, and signature verification.
+     * @return the LSH instance of the merged index.
+     */
+    public static LSH merge(String path, String... shardPaths) {
+        MappedLSHIndex.merge(path, Arrays.stream(shardPaths).map(MappedLSHIndex::open).toArray(MappedLSHIndex[]::new));
+        return open(path);
+    }
 
-        long kMers = (long) Math.pow(4, k);
-        this.permutations = Stream.iterate(new PseudoPermutation(kMers, kMers), p -> new PseudoPermutation(kMers, p.getP())).limit(r).toArray(PseudoPermutation[]::new);
-        this.bands = Stream.generate((Supplier<Map<String, Set<BaseSequence>>>) HashMap::new).limit(b).toList();
-        this.bandLocks = Stream.generate(ReentrantReadWriteLock::new).limit(b).toArray(ReadWriteLock[]::new);
+    /**
+     * Writes the DNA sequences of this LSH instance, including the ones it has spilled, to an index file that can be re-opened with <Code>open</Code>. This method must not be called concurrently with insertions.
+     * @param path the path of the index file.
+     */
+    public void save(String path) {
+        if (capacity > 0)
+            throw new RuntimeException("a capacity-bounded LSH cannot be saved");
+        State s = state;
+        MappedLSHIndex.write(path, sketcher, b, probes, verifySignatures, s.mapped, s.store, s.bands);
     }
 
     /**
-     * Inserts a given DNA sequence into this LSH instance. This method is not thread-safe.
+     * Writes the DNA sequences of this LSH instance to an index file, as <Code>save</Code> does, and replaces the heap tables by that file memory-mapped. Hence, the heap memory of the inserted DNA sequences and their buckets is released. Queries may run concurrently, but insertions must not.
+     * @param path the path of the index file.
+     */
+    public synchronized void spill(String path) {
+        save(path);
+        state = new State(MappedLSHIndex.open(path), b, bandSize, verifySignatures, bucketCapacity);
+    }
+
+    /**
+     * Creates an empty LSH instance that uses the same hash functions as this instance. Hence, both instances compute the same signatures. The copy gets its own eviction policy (see <Code>EvictionPolicy.split</Code>).
+     * @return the empty LSH instance.
+     */
+    public LSH emptyCopy() {
+        return new LSH(this);
+    }
+
+    /**
+     * Inserts a given DNA sequence into this LSH instance. This method is thread-safe and equivalent to <Code>insertSafe(BaseSequence)</Code>.
      * @param seq the DNA sequence to insert.
      */
     public void insert(BaseSequence seq) {
-        String[] sigs = signatures(seq);
-        for (int band = 0; band < b; band++)
-            bands.get(band).computeIfAbsent(sigs[band], k1 -> new HashSet<>()).add(seq);
+        insertSafe(seq);
     }
 
+    /**
+     * Inserts DNA sequences in parallel. This method is equivalent to <Code>insertBulk</Code>.
+     * @param it the DNA sequences to insert.
+     */
     public void insertParallel(Iterable<BaseSequence> it) {
-        FuncUtils.stream(it).parallel().forEach(this::insertSafe);
+        insertBulk(FuncUtils.stream(it).toList());
+    }
+
+    /**
+     * Inserts a list of DNA sequences in two parallel phases. First, the signatures of all DNA sequences are computed and their ids are assigned. Second, each worker inserts all ids into the bands it owns, such that no two workers touch the same band and no lock is contended.
+     * This method is thread-safe. A capacity-bounded instance inserts the DNA sequences one after another instead.
+     * @param seqs the DNA sequences to insert.
+     */
+    public void insertBulk(List<BaseSequence> seqs) {
+        if (capacity > 0) {
+            seqs.forEach(this::insertSafe);
+            return;
+        }
+
+        int n = seqs.size();
+        State s = state;
+        int[] ids = new int[n];
+        long[][] sigs = new long[n][];
+        long[][] minHashes = verifySignatures ? new long[n][] : null;
+        IntStream.range(0, n).parallel().forEach(i -> {
+            BaseSequence seq = seqs.get(i);
+            long[] seqMinHashes = minHashes(seq);
+            sigs[i] = signatures(seqMinHashes);
+            if (minHashes != null)
+                minHashes[i] = seqMinHashes;
+            ids[i] = s.store.add(seq);
+        });
+        IntStream.range(0, b).parallel().forEach(band -> {
+            for (int i = 0; i < n; i++)
+                addToBand(s, band, sigs[i][band], minHashes == null ? null : minHashes[i], ids[i]);
+        });
     }
 
     /**
@@ -58,56 +320,96 @@ public class LSH {
      * @param seq the DNA sequence to insert.
      */
     public void insertSafe(BaseSequence seq) {
-        var sigs = signatures(seq);
-        Lock lock;
+        insert(seq, minHashes(seq));
+    }
+
+    /**
+     * Inserts a collection of DNA sequences into this LSH instance. The signatures of all DNA sequences are computed before the first one is inserted. This method is thread-safe.
+     * @param seqs the DNA sequences to insert.
+     */
+    public void insertAllSafe(Collection<BaseSequence> seqs) {
+        List<long[]> minHashes = seqs.stream().map(this::minHashes).toList();
+        int i = 0;
+        for (BaseSequence seq : seqs)
+            insert(seq, minHashes.get(i++));
+    }
+
+    private int insert(BaseSequence seq, long[] minHashes) {
+        long[] sigs = signatures(minHashes);
+        if (capacity > 0)
+            return insertBounded(seq, minHashes, sigs);
+
+        State s = state;
+        int id = s.store.add(seq);
+        for (int band = 0; band < b; band++)
+            addToBand(s, band, sigs[band], minHashes, id);
+
+        return s.offset + id;
+    }
+
+    private int insertBounded(BaseSequence seq, long[] minHashes, long[] sigs) {
+        long fingerprint = SequenceStore.fingerprint(seq);
+        synchronized (evictionLock) {
+            State s = state;
+            int slot = eviction.slot(inserted++, capacity);
+            if (slot < 0) {
+                rejected.increment();
+                return -1;
+            }
+            if (s.store.contains(slot))
+                evict(s, slot);
+            else
+                occupied++;
+
+            s.store.set(slot, seq, fingerprint);
+            System.arraycopy(sigs, 0, slotSigs, slot * b, b);
+            for (int band = 0; band < b; band++)
+                addToBand(s, band, sigs[band], minHashes, slot);
+
+            return slot;
+        }
+    }
+
+    private void addToBand(State s, int band, long sig, long[] minHashes, int id) {
+        if (s.bands[band].add(sig, minHashes, band * bandSize, id) >= 0)
+            bucketDrops.increment();
+    }
+
+    /**
+     * Removes the DNA sequence of a slot from its buckets. The signature of each bucket that becomes empty is remembered in a direct-mapped table of ghosts, such that queries can count the matches they lost due to eviction.
+     */
+    private void evict(State s, int slot) {
+        long sig;
         for (int band = 0; band < b; band++) {
-            var map = bands.get(band);
-            lock = bandLocks[band].writeLock();
-            lock.lock();
-            map.computeIfAbsent(sigs[band], k1 -> new HashSet<>()).add(seq);
-            lock.unlock();
+            sig = slotSigs[slot * b + band];
+            if (s.bands[band].remove(sig, slot))
+                ghosts[ghostIndex(band, sig)] = ghostKey(band, sig);
         }
+        evicted.increment();
+    }
+
+    private int ghostIndex(int band, long sig) {
+        return (int) ghostKey(band, sig) & (ghosts.length - 1);
+    }
+
+    private static long ghostKey(int band, long sig) {
+        return Mix.mix64(sig + band) | 1L;
     }
 
     /**
      * @return the minHash values for the given BaseSequence.
      */
     public long[] minHashes(BaseSequence seq) {
-        List<BaseSequence> kmers = seq.kmers(k);
-        int size = kmers.size();
-        long[] shingles = new long[size];
-        for (int i = 0; i < size; i++)
-            shingles[i] = kmers.get(i).toBase4();
-
-        PseudoPermutation p;
-        long[] minHashes = new long[permutations.length];
-        long permHash;
-        long minHash;
-        for (int i = 0; i < permutations.length; i++) {
-            p = permutations[i];
-            minHash = Long.MAX_VALUE;
-            for (long shingle : shingles) {
-                permHash = p.apply(shingle);
-                if (permHash == 0L) {
-                    minHash = 0L;
-                    break;
-                }
-                if (permHash < minHash)
-                    minHash = permHash;
-            }
-            minHashes[i] = minHash;
-        }
-        return minHashes;
+        return sketcher.minHashes(seq);
     }
 
-
     /**
-     * This method is not thread-safe.
+     * This method is thread-safe and equivalent to <Code>similarSeqsSafe(BaseSequence)</Code>.
      * @param seq the input DNA sequence.
      * @return the set of similar BaseSequence this LSH instance matches for the input BaseSequence.
      */
     public Set<BaseSequence> similarSeqs(BaseSequence seq) {
-        return similarSeqs(seq, Integer.MAX_VALUE);
+        return similarSeqsSafe(seq, Integer.MAX_VALUE);
     }
 
     /**
@@ -120,75 +422,267 @@ public class LSH {
     }
 
     /**
-     * This method is thread-safe.
+     * This method is thread-safe. It does not block unless a band's segment is modified concurrently.
      * @param seq the input DNA sequence.
      * @param maxCount the maximum number of matches. If maxCount matches are found, this method returns and does not search for more matches.
      * @return the set of similar DNA sequence this LSH instance matches for the input BaseSequence. It will return maxCount matches at most.
      */
     public Set<BaseSequence> similarSeqsSafe(BaseSequence seq, int maxCount) {
-        var sigs = signatures(seq);
         Set<BaseSequence> result = new HashSet<>();
-        Set<BaseSequence> matches;
-        Lock lock;
-        for (int band = 0; band < b; band++) {
-            var map = bands.get(band);
-            lock = bandLocks[band].readLock();
-            lock.lock();
-            matches = map.get(sigs[band]);
-            if (matches != null) {
-                result.addAll(matches);
-                if (result.size() >= maxCount) {
-                    lock.unlock();
-                    return result;
+        forEachSimilarId(seq, maxCount, id -> result.add(getSeq(id)));
+        return result;
+    }
+
+    /**
+     * Passes each similar DNA sequence this LSH instance matches for the input DNA sequence to the given action. Each match is passed once, and no collection of matches is created. This method is thread-safe.
+     * @param seq the input DNA sequence.
+     * @param action the action to perform on each match.
+     * @return the number of matches.
+     */
+    public int forEachSimilarSeq(BaseSequence seq, Consumer<BaseSequence> action) {
+        return forEachSimilarSeq(seq, probes, action);
+    }
+
+    /**
+     * Passes each similar DNA sequence this LSH instance matches for the input DNA sequence to the given action. Each match is passed once, and no collection of matches is created. This method is thread-safe.
+     * @param seq the input DNA sequence.
+     * @param probes the number of additional buckets to probe per band.
+     * @param action the action to perform on each match.
+     * @return the number of matches.
+     */
+    public int forEachSimilarSeq(BaseSequence seq, int probes, Consumer<BaseSequence> action) {
+        return forEachSimilarId(seq, Integer.MAX_VALUE, probes, id -> action.accept(getSeq(id)));
+    }
+
+    /**
+     * Passes the id of each similar DNA sequence this LSH instance matches for the input DNA sequence to the given action. Each id is passed once. This method is thread-safe.
+     * @param seq the input DNA sequence.
+     * @param maxCount the maximum number of matches. If maxCount matches are found, this method returns and does not search for more matches.
+     * @param action the action to perform on each id.
+     * @return the number of matches.
+     */
+    public int forEachSimilarId(BaseSequence seq, int maxCount, IntConsumer action) {
+        return forEachSimilarId(seq, maxCount, probes, action);
+    }
+
+    /**
+     * Passes the id of each similar DNA sequence this LSH instance matches for the input DNA sequence to the given action. Each id is passed once. This method is thread-safe.
+     * With probes &gt; 0, each band is additionally probed with the signatures obtained by replacing one of the band's min-hashes by its second smallest hash. The min-hashes whose second smallest hash is closest are replaced first, since they are the most likely to differ for a similar DNA sequence.
+     * @param seq the input DNA sequence.
+     * @param maxCount the maximum number of matches. If maxCount matches are found, this method returns and does not search for more matches.
+     * @param probes the number of additional buckets to probe per band.
+     * @param action the action to perform on each id.
+     * @return the number of matches.
+     */
+    public int forEachSimilarId(BaseSequence seq, int maxCount, int probes, IntConsumer action) {
+        long[] minHashes;
+        long[] secondMinHashes = null;
+        if (probes > 0) {
+            minHashes = new long[sketcher.getR()];
+            secondMinHashes = new long[minHashes.length];
+            sketcher.minHashes(seq, minHashes, secondMinHashes);
+        }
+        else {
+            minHashes = minHashes(seq);
+        }
+        return forEachSimilarId(minHashes, secondMinHashes, maxCount, probes, action);
+    }
+
+    /**
+     * Passes the id of each DNA sequence matching a precomputed sketch to the given action. LSH instances sharing their hash functions can thus be queried with a single sketch.
+     * @param minHashes the min-hashes of the query. The array is modified while probing, but restored before this method returns.
+     * @param secondMinHashes the second smallest hashes of the query, or null if probes is 0.
+     * @param maxCount the maximum number of matches.
+     * @param probes the number of additional buckets to probe per band.
+     * @param action the action to perform on each id.
+     * @return the number of matches.
+     */
+    int forEachSimilarId(long[] minHashes, long[] secondMinHashes, int maxCount, int probes, IntConsumer action) {
+        long[] sigs = signatures(minHashes);
+        State s = state;
+        CandidateSet candidates = candidateSets.get();
+        boolean reused = candidates.acquire();
+        if (!reused) {
+            candidates = new CandidateSet();
+            candidates.acquire();
+        }
+
+        try {
+            int count = 0;
+            for (int band = 0; band < b && count < maxCount; band++)
+                count = probe(s, band, sigs[band], minHashes, band * bandSize, true, candidates, count, maxCount, action);
+
+            if (probes > 0) {
+                int[] positions = new int[Math.min(probes, bandSize)];
+                for (int band = 0; band < b && count < maxCount; band++) {
+                    int offset = band * bandSize;
+                    int n = closestPositions(minHashes, secondMinHashes, offset, positions);
+                    for (int p = 0; p < n && count < maxCount; p++) {
+                        int m = offset + positions[p];
+                        long minHash = minHashes[m];
+                        minHashes[m] = secondMinHashes[m];
+                        count = probe(s, band, signature(minHashes, offset), minHashes, offset, false, candidates, count, maxCount, action);
+                        minHashes[m] = minHash;
+                    }
                 }
             }
-            lock.unlock();
+            return count;
         }
-        return result;
+        finally {
+            if (reused)
+                candidates.release();
+        }
+    }
+
+    private int probe(State s, int band, long sig, long[] minHashes, int offset, boolean primary, CandidateSet candidates, int count, int maxCount, IntConsumer action) {
+        int id;
+        if (s.mapped != null) {
+            int slot = s.mapped.find(band, sig, minHashes, offset);
+            if (slot >= 0) {
+                int size = s.mapped.bucketSize(band, slot);
+                for (int i = 0; i < size; i++) {
+                    id = s.mapped.bucketId(band, slot, i);
+                    if (candidates.add(id)) {
+                        action.accept(id);
+                        if (++count >= maxCount)
+                            return count;
+                    }
+                }
+            }
+        }
+
+        BandTable.Bucket matches = s.bands[band].get(sig, minHashes, offset);
+        if (matches == null) {
+            if (primary && ghosts != null && ghosts[ghostIndex(band, sig)] == ghostKey(band, sig))
+                evictedHits.increment();
+            return count;
+        }
+
+        int size = matches.size();
+        int[] ids = matches.ids();
+        for (int i = 0; i < size; i++) {
+            id = s.offset + ids[i];
+            if (candidates.add(id)) {
+                action.accept(id);
+                if (++count >= maxCount)
+                    return count;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Selects the positions of a band whose second smallest hash is closest to its min-hash, in ascending order of that gap.
+     * @return the number of selected positions, which is less than positions.length if the band has fewer min-hashes with a second smallest hash.
+     */
+    private int closestPositions(long[] minHashes, long[] secondMinHashes, int offset, int[] positions) {
+        int n = 0;
+        long gap;
+        for (int m = 0; m < bandSize; m++) {
+            if (secondMinHashes[offset + m] == Long.MAX_VALUE)
+                continue;
+            gap = secondMinHashes[offset + m] - minHashes[offset + m];
+            int i = n < positions.length ? n++ : positions.length;
+            while (i > 0 && gap < secondMinHashes[offset + positions[i - 1]] - minHashes[offset + positions[i - 1]]) {
+                if (i < positions.length)
+                    positions[i] = positions[i - 1];
+                i--;
+            }
+            if (i < positions.length)
+                positions[i] = m;
+        }
+        return n;
+    }
+
+    /**
+     * @param id the id of an inserted DNA sequence.
+     * @return the DNA sequence.
+     */
+    public BaseSequence getSeq(int id) {
+        State s = state;
+        return id < s.offset ? s.mapped.getSeq(id) : s.store.get(id - s.offset);
+    }
+
+    /**
+     * @param id the id of an inserted DNA sequence.
+     * @return the fingerprint of that DNA sequence.
+     */
+    public long getFingerprint(int id) {
+        State s = state;
+        return id < s.offset ? s.mapped.getFingerprint(id) : s.store.getFingerprint(id - s.offset);
+    }
+
+    /**
+     * @return the number of DNA sequences inserted into this LSH instance.
+     */
+    public int size() {
+        if (capacity > 0)
+            return occupied;
+        State s = state;
+        return s.offset + s.store.size();
     }
 
     /**
-     * This method is not thread-safe.
+     * @return the counters of the eviction of this LSH instance.
+     */
+    public EvictionStats getEvictionStats() {
+        long count;
+        synchronized (evictionLock) {
+            count = inserted;
+        }
+        return new EvictionStats(capacity > 0 ? count : size(), evicted.sum(), rejected.sum(), bucketDrops.sum(), evictedHits.sum());
+    }
+
+    /**
+     * The counters of the eviction of an LSH instance.
+     * @param inserted the number of DNA sequences inserted so far, including rejected ones.
+     * @param evicted the number of DNA sequences evicted to make room for other DNA sequences.
+     * @param rejected the number of DNA sequences the eviction policy rejected.
+     * @param bucketDrops the number of times a full bucket dropped its oldest DNA sequence.
+     * @param evictedHits the number of band lookups that found no bucket, but would have found the bucket of an evicted DNA sequence (an estimate of the matches lost due to eviction).
+     */
+    public record EvictionStats(long inserted, long evicted, long rejected, long bucketDrops, long evictedHits) {
+    }
+
+    /**
+     * This method is thread-safe and equivalent to <Code>similarSeqsSafe(BaseSequence, int)</Code>.
      * @param seq the input DNA sequence.
      * @param maxCount the maximum number of matches. If maxCount matches are found, this method returns and does not search for more matches.
      * @return the set of similar DNA sequence this LSH instance matches for the input BaseSequence. It will return maxCount matches at most.
      */
     public Set<BaseSequence> similarSeqs(BaseSequence seq, int maxCount) {
-        var sigs = signatures(seq);
-        Set<BaseSequence> result = new HashSet<>();
-        Set<BaseSequence> matches;
-        for (int band = 0; band < b; band++) {
-            var map = bands.get(band);
-            matches = map.get(sigs[band]);
-            if (matches != null) {
-                result.addAll(matches);
-                if (result.size() >= maxCount)
-                    return result;
-            }
-        }
-        return result;
+        return similarSeqsSafe(seq, maxCount);
     }
 
     /**
      * @param seq the input DNA sequence.
      * @return the signatures of each band for the input DNA sequence.
      */
-    public String[] signatures(BaseSequence seq) {
-        var minHashes = minHashes(seq);
-        String[] sigs = new String[b];
-        StringBuilder sb;
-        int offset = 0;
-        for (int band = 0; band < b; band++) {
-            sb = new StringBuilder();
-            for (int m = 0; m < bandSize; m++)
-                sb.append(minHashes[m + offset]);
+    public long[] signatures(BaseSequence seq) {
+        return signatures(minHashes(seq));
+    }
+
+    /**
+     * Computes the 64-bit signature of each band by mixing the band's min-hashes in order.
+     * @param minHashes the min-hashes of a DNA sequence.
+     * @return the signatures of each band.
+     */
+    public long[] signatures(long[] minHashes) {
+        long[] sigs = new long[b];
+        for (int band = 0; band < b; band++)
+            sigs[band] = signature(minHashes, band * bandSize);
 
-            sigs[band] = sb.toString();
-            offset += bandSize;
-        }
         return sigs;
     }
 
+    private long signature(long[] minHashes, int offset) {
+        long sig = bandSize;
+        for (int m = 0; m < bandSize; m++)
+            sig = Mix.mix64(sig ^ minHashes[m + offset]);
+
+        return sig;
+    }
+
     public int getK() {
         return k;
     }
@@ -198,6 +692,112 @@ public class LSH {
     }
 
     public int getR() {
-        return permutations.length;
+        return sketcher.getR();
+    }
+
+    public int getProbes() {
+        return probes;
+    }
+
+    public MinHashSketcher.Type getSketch() {
+        return sketcher.getType();
+    }
+
+    public long getSeed() {
+        return sketcher.getSeed();
+    }
+
+    MinHashSketcher getSketcher() {
+        return sketcher;
+    }
+
+    /**
+     * The content of an LSH instance: an optional memory-mapped index holding the ids [0, offset), followed by the heap tables holding the ids from offset on. Spilling replaces the whole state at once, such that a query never sees a mix of two states.
+     */
+    private static final class State {
+        private final MappedLSHIndex mapped;
+        private final int offset;
+        private final SequenceStore store;
+        private final BandTable[] bands;
+
+        State(MappedLSHIndex mapped, int b, int bandSize, boolean verifySignatures, int bucketCapacity) {
+            this.mapped = mapped;
+            this.offset = mapped == null ? 0 : mapped.size();
+            this.store = new SequenceStore();
+            this.bands = Stream.generate(() -> new BandTable(bandSize, verifySignatures, bucketCapacity)).limit(b).toArray(BandTable[]::new);
+        }
+    }
+
+    /**
+     * A reusable set of sequence ids that deduplicates the matches of a single query. Instead of being cleared, the set increments its stamp, and a slot counts as occupied only if it carries the current stamp.
+     */
+    private static final class CandidateSet {
+        private static final int INITIAL_CAPACITY = 64;
+
+        private int[] ids;
+        private int[] stamps;
+        private int stamp;
+        private int size;
+        private boolean inUse;
+
+        CandidateSet() {
+            this.ids = new int[INITIAL_CAPACITY];
+            this.stamps = new int[INITIAL_CAPACITY];
+            this.stamp = 0;
+        }
+
+        /**
+         * Prepares this set for a new query.
+         * @return false if this set is already used by a query of the same thread, and true otherwise.
+         */
+        boolean acquire() {
+            if (inUse)
+                return false;
+            inUse = true;
+            size = 0;
+            if (++stamp == 0) {
+                Arrays.fill(stamps, 0);
+                stamp = 1;
+            }
+            return true;
+        }
+
+        void release() {
+            inUse = false;
+        }
+
+        /**
+         * @return true if id was not contained in this set, and false otherwise.
+         */
+        boolean add(int id) {
+            if (size >= ids.length >>> 1)
+                grow();
+
+            int mask = ids.length - 1;
+            int slot = (id * 0x9E3779B9) & mask;
+            while (stamps[slot] == stamp) {
+                if (ids[slot] == id)
+                    return false;
+                slot = (slot + 1) & mask;
+            }
+            stamps[slot] = stamp;
+            ids[slot] = id;
+            size++;
+            return true;
+        }
+
+        private void grow() {
+            int[] oldIds = ids;
+            int[] oldStamps = stamps;
+            int oldStamp = stamp;
+            ids = new int[oldIds.length << 1];
+            stamps = new int[oldIds.length << 1];
+            stamp = 1;
+            size = 0;
+            for (int i = 0; i < oldIds.length; i++) {
+                if (oldStamps[i] == oldStamp)
+                    add(oldIds[i]);
+            }
+        }
     }
 }
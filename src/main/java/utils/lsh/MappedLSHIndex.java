@@ -0,0 +1,584 @@
+package utils.lsh;
+
+import core.Base;
+import core.BaseSequence;
+import utils.FuncUtils;
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * A read-only LSH index that is stored in a file and memory-mapped with <Code>FileChannel.map</Code>. Opening an index only parses its header and the sizes of its band tables, such that it takes milliseconds regardless of the number of sequences.
+ * The file stores the LSH's parameters and the seed of its hash functions, the fingerprints and 2-bit packed bases of the sequences, and one open addressing table per band that maps a signature to the ids of its bucket.
+ * This class is thread-safe.
+ */
+public class MappedLSHIndex {
+
+    public static final int MAGIC = 0x4C534831; // "LSH1"
+    public static final int VERSION = 1;
+
+    private static final int HEADER_BYTES = 64;
+    private static final Base[] BASES = Base.values();
+
+    private final Region region;
+    private final int k;
+    private final int r;
+    private final int b;
+    private final int bandSize;
+    private final MinHashSketcher.Type sketch;
+    private final int probes;
+    private final boolean verify;
+    private final long seed;
+    private final int size;
+
+    private final long fingerprintsPos;
+    private final long offsetsPos;
+    private final long basesPos;
+    private final int[] capacities;
+    private final long[] keysPos;
+    private final long[] startsPos;
+    private final long[] countsPos;
+    private final long[] minHashesPos;
+    private final long[] idsPos;
+
+    private MappedLSHIndex(Region region) {
+        this.region = region;
+        if (region.getInt(0L) != MAGIC)
+            throw new RuntimeException("not an LSH index file");
+        int version = region.getInt(4L);
+        if (version != VERSION)
+            throw new RuntimeException("unsupported LSH index version: " + version);
+
+        this.k = region.getInt(8L);
+        this.r = region.getInt(12L);
+        this.b = region.getInt(16L);
+        this.bandSize = r / b;
+        this.sketch = MinHashSketcher.Type.values()[region.getInt(20L)];
+        this.probes = region.getInt(24L);
+        this.verify = region.getInt(28L) != 0;
+        this.seed = region.getLong(32L);
+        this.size = region.getInt(40L);
+        long basesBytes = region.getLong(48L);
+
+        this.fingerprintsPos = HEADER_BYTES;
+        this.offsetsPos = fingerprintsPos + 8L * size;
+        this.basesPos = offsetsPos + 8L * (size + 1);
+        this.capacities = new int[b];
+        this.keysPos = new long[b];
+        this.startsPos = new long[b];
+        this.countsPos = new long[b];
+        this.minHashesPos = new long[b];
+        this.idsPos = new long[b];
+        long pos = basesPos + align8(basesBytes);
+        for (int band = 0; band < b; band++) {
+            int capacity = region.getInt(pos);
+            int idsCount = region.getInt(pos + 4L);
+            capacities[band] = capacity;
+            keysPos[band] = pos + 8L;
+            startsPos[band] = keysPos[band] + 8L * capacity;
+            countsPos[band] = startsPos[band] + 4L * capacity;
+            minHashesPos[band] = countsPos[band] + 4L * capacity;
+            idsPos[band] = minHashesPos[band] + (verify ? 8L * capacity * bandSize : 0L);
+            pos = idsPos[band] + align8(4L * idsCount);
+        }
+    }
+
+    /**
+     * The parameters stored in the header of an LSH index file.
+     */
+    public record Header(int k, int r, int b, MinHashSketcher.Type sketch, int probes, long seed, int size) {
+    }
+
+    /**
+     * Reads the header of an LSH index file without memory-mapping the file, e.g., to check whether the index can be reused before it is rewritten.
+     * @param path the path of the file.
+     * @return the header.
+     */
+    public static Header readHeader(String path) {
+        return FuncUtils.safeCall(() -> {
+            try (FileChannel channel = FileChannel.open(Path.of(path), StandardOpenOption.READ)) {
+                ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+                while (header.hasRemaining() && channel.read(header) >= 0);
+                if (header.position() < HEADER_BYTES || header.getInt(0) != MAGIC)
+                    throw new RuntimeException("not an LSH index file");
+                int version = header.getInt(4);
+                if (version != VERSION)
+                    throw new RuntimeException("unsupported LSH index version: " + version);
+
+                return new Header(header.getInt(8), header.getInt(12), header.getInt(16), MinHashSketcher.Type.values()[header.getInt(20)], header.getInt(24), header.getLong(32), header.getInt(40));
+            }
+        });
+    }
+
+    /**
+     * Opens an LSH index file.
+     * @param path the path of the file.
+     * @return the memory-mapped index.
+     */
+    public static MappedLSHIndex open(String path) {
+        return FuncUtils.safeCall(() -> {
+            try (FileChannel channel = FileChannel.open(Path.of(path), StandardOpenOption.READ)) {
+                return new MappedLSHIndex(new Region(channel, channel.size()));
+            }
+        });
+    }
+
+    /**
+     * Returns the slot of a band's bucket.
+     * @param band the band.
+     * @param sig the band's signature.
+     * @param bandMinHashes the array containing the band's min-hashes. Only used if this index verifies signatures.
+     * @param offset the index of the band's first min-hash in bandMinHashes.
+     * @return the slot of the bucket, or -1 if no bucket exists.
+     */
+    public int find(int band, long sig, long[] bandMinHashes, int offset) {
+        int mask = capacities[band] - 1;
+        int slot = BandTable.slot(sig, mask);
+        while (region.getInt(countsPos[band] + 4L * slot) > 0) {
+            if (region.getLong(keysPos[band] + 8L * slot) == sig && (!verify || matches(band, slot, bandMinHashes, offset)))
+                return slot;
+            slot = (slot + 1) & mask;
+        }
+        return -1;
+    }
+
+    /**
+     * @param band the band.
+     * @param slot the slot of a bucket returned by <Code>find</Code>.
+     * @return the number of ids in the bucket.
+     */
+    public int bucketSize(int band, int slot) {
+        return region.getInt(countsPos[band] + 4L * slot);
+    }
+
+    /**
+     * @param band the band.
+     * @param slot the slot of a bucket returned by <Code>find</Code>.
+     * @param i the index in the bucket.
+     * @return the i-th id of the bucket.
+     */
+    public int bucketId(int band, int slot, int i) {
+        return region.getInt(idsPos[band] + 4L * (region.getInt(startsPos[band] + 4L * slot) + i));
+    }
+
+    /**
+     * @param id the id of a sequence in this index.
+     * @return the sequence.
+     */
+    public BaseSequence getSeq(int id) {
+        long start = region.getLong(offsetsPos + 8L * id);
+        int len = (int) (region.getLong(offsetsPos + 8L * (id + 1)) - start);
+        Base[] bases = new Base[len];
+        long pos;
+        for (int i = 0; i < len; i++) {
+            pos = start + i;
+            bases[i] = BASES[(region.get(basesPos + (pos >>> 2)) >>> ((pos & 3L) << 1)) & 3];
+        }
+        return new BaseSequence(bases);
+    }
+
+    /**
+     * @param id the id of a sequence in this index.
+     * @return the fingerprint of the sequence.
+     */
+    public long getFingerprint(int id) {
+        return region.getLong(fingerprintsPos + 8L * id);
+    }
+
+    /**
+     * @return the number of sequences in this index.
+     */
+    public int size() {
+        return size;
+    }
+
+    public int getK() {
+        return k;
+    }
+
+    public int getR() {
+        return r;
+    }
+
+    public int getB() {
+        return b;
+    }
+
+    public MinHashSketcher.Type getSketch() {
+        return sketch;
+    }
+
+    public int getProbes() {
+        return probes;
+    }
+
+    public boolean getVerify() {
+        return verify;
+    }
+
+    public long getSeed() {
+        return seed;
+    }
+
+    private boolean matches(int band, int slot, long[] bandMinHashes, int offset) {
+        long pos = minHashesPos[band] + 8L * slot * bandSize;
+        for (int m = 0; m < bandSize; m++) {
+            if (region.getLong(pos + 8L * m) != bandMinHashes[offset + m])
+                return false;
+        }
+        return true;
+    }
+
+    private long[] bandMinHashes(int band, int slot) {
+        long pos = minHashesPos[band] + 8L * slot * bandSize;
+        long[] minHashes = new long[bandSize];
+        for (int m = 0; m < bandSize; m++)
+            minHashes[m] = region.getLong(pos + 8L * m);
+
+        return minHashes;
+    }
+
+    private static long align8(long bytes) {
+        return (bytes + 7L) & ~7L;
+    }
+
+    /**
+     * Writes the sequences of an (optional) index followed by the sequences of heap band tables to a new index file. The file is written to a temporary file first and then moved to path, such that an index currently mapped from path stays valid.
+     * @param path the path of the index file.
+     * @param sketcher the sketcher of the LSH.
+     * @param b the number of bands.
+     * @param probes the default number of probes of the LSH.
+     * @param verify true if the LSH verifies signatures.
+     * @param mapped the index whose sequences get the ids [0, mapped.size()), or null.
+     * @param store the heap sequences, which get the ids following the sequences of mapped.
+     * @param bands the heap band tables containing the ids of store.
+     */
+    static void write(String path, MinHashSketcher sketcher, int b, int probes, boolean verify, MappedLSHIndex mapped, SequenceStore store, BandTable[] bands) {
+        int mappedSize = mapped == null ? 0 : mapped.size();
+        int heapSize = store.size();
+        int size = mappedSize + heapSize;
+        int bandSize = sketcher.getR() / b;
+        Path target = Path.of(path);
+        Path tmp = Path.of(path + ".tmp");
+        FuncUtils.safeRun(() -> {
+            Path parent = target.toAbsolutePath().getParent();
+            if (parent != null)
+                Files.createDirectories(parent);
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp), 1 << 16))) {
+                long totalBases = 0L;
+                for (int id = 0; id < size; id++)
+                    totalBases += id < mappedSize ? mapped.seqLength(id) : store.get(id - mappedSize).length();
+                long basesBytes = (totalBases + 3L) >>> 2;
+
+                writeHeader(out, sketcher.getK(), sketcher.getR(), b, sketcher.getType(), probes, verify, sketcher.getSeed(), size, basesBytes);
+
+                for (int id = 0; id < size; id++)
+                    out.writeLong(id < mappedSize ? mapped.getFingerprint(id) : store.getFingerprint(id - mappedSize));
+
+                long offset = 0L;
+                out.writeLong(offset);
+                for (int id = 0; id < size; id++) {
+                    offset += id < mappedSize ? mapped.seqLength(id) : store.get(id - mappedSize).length();
+                    out.writeLong(offset);
+                }
+
+                BasePacker packer = new BasePacker(out);
+                for (int id = 0; id < size; id++) {
+                    if (id < mappedSize)
+                        mapped.forEachBaseCode(id, packer);
+                    else
+                        for (Base base : store.get(id - mappedSize))
+                            packer.accept(base.ordinal());
+                }
+                packer.flush();
+                pad(out, align8(basesBytes) - basesBytes);
+
+                for (int band = 0; band < b; band++)
+                    writeBand(out, band, bandSize, verify, mapped, mappedSize, size, bands[band]);
+            }
+            Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        });
+    }
+
+    /**
+     * Merges index files into a new index file. The sequences of the i-th index get the ids following the sequences of the indexes before it, and the bucket of a signature is the union of its buckets in all indexes. The file is written to a temporary file first and then moved to path, such that path may be one of the merged indexes.
+     * @param path the path of the merged index file.
+     * @param indexes the indexes to merge. They must have been written by LSH instances with the same hash functions, number of bands, and signature verification.
+     */
+    static void merge(String path, MappedLSHIndex... indexes) {
+        if (indexes.length == 0)
+            throw new RuntimeException("merging requires at least one index");
+        MappedLSHIndex first = indexes[0];
+        long total = 0L;
+        for (MappedLSHIndex index : indexes) {
+            if (index.k != first.k || index.r != first.r || index.b != first.b || index.sketch != first.sketch || index.seed != first.seed || index.verify != first.verify)
+                throw new RuntimeException("only indexes with the same hash functions, bands, and signature verification can be merged");
+            total += index.size;
+        }
+        if (total > Integer.MAX_VALUE)
+            throw new RuntimeException("the merged index would exceed " + Integer.MAX_VALUE + " sequences");
+
+        int size = (int) total;
+        Path target = Path.of(path);
+        Path tmp = Path.of(path + ".tmp");
+        FuncUtils.safeRun(() -> {
+            Path parent = target.toAbsolutePath().getParent();
+            if (parent != null)
+                Files.createDirectories(parent);
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp), 1 << 16))) {
+                long totalBases = 0L;
+                for (MappedLSHIndex index : indexes)
+                    totalBases += index.region.getLong(index.offsetsPos + 8L * index.size);
+                long basesBytes = (totalBases + 3L) >>> 2;
+
+                writeHeader(out, first.k, first.r, first.b, first.sketch, first.probes, first.verify, first.seed, size, basesBytes);
+                for (MappedLSHIndex index : indexes) {
+                    for (int id = 0; id < index.size; id++)
+                        out.writeLong(index.getFingerprint(id));
+                }
+
+                long offset = 0L;
+                out.writeLong(offset);
+                for (MappedLSHIndex index : indexes) {
+                    for (int id = 0; id < index.size; id++) {
+                        offset += index.seqLength(id);
+                        out.writeLong(offset);
+                    }
+                }
+
+                BasePacker packer = new BasePacker(out);
+                for (MappedLSHIndex index : indexes) {
+                    for (int id = 0; id < index.size; id++)
+                        index.forEachBaseCode(id, packer);
+                }
+                packer.flush();
+                pad(out, align8(basesBytes) - basesBytes);
+
+                for (int band = 0; band < first.b; band++) {
+                    int buckets = 0;
+                    for (MappedLSHIndex index : indexes)
+                        buckets += index.bucketCount(band);
+                    BandBuilder builder = new BandBuilder(Math.max(16, Integer.highestOneBit(Math.max(1, buckets) * 2 - 1) << 1), first.bandSize, first.verify);
+                    int idOffset = 0;
+                    for (MappedLSHIndex index : indexes) {
+                        index.addBuckets(builder, band, idOffset);
+                        idOffset += index.size;
+                    }
+                    builder.write(out);
+                }
+            }
+            Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        });
+    }
+
+    private static void writeHeader(DataOutputStream out, int k, int r, int b, MinHashSketcher.Type sketch, int probes, boolean verify, long seed, int size, long basesBytes) throws IOException {
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeInt(k);
+        out.writeInt(r);
+        out.writeInt(b);
+        out.writeInt(sketch.ordinal());
+        out.writeInt(probes);
+        out.writeInt(verify ? 1 : 0);
+        out.writeLong(seed);
+        out.writeInt(size);
+        out.writeInt(0);
+        out.writeLong(basesBytes);
+        out.writeLong(0L);
+    }
+
+    private static void writeBand(DataOutputStream out, int band, int bandSize, boolean verify, MappedLSHIndex mapped, int mappedSize, int size, BandTable heap) throws IOException {
+        int buckets = heap.size() + (mapped == null ? 0 : mapped.bucketCount(band));
+        BandBuilder builder = new BandBuilder(Math.max(16, Integer.highestOneBit(Math.max(1, buckets) * 2 - 1) << 1), bandSize, verify);
+        if (mapped != null)
+            mapped.addBuckets(builder, band, 0);
+        heap.forEach((sig, bandMinHashes, bucket) -> {
+            int count = bucket.size();
+            int[] ids = bucket.ids();
+            int index = -1;
+            for (int i = 0; i < count; i++) {
+                int id = mappedSize + ids[i];
+                if (id >= size)
+                    continue;
+                if (index < 0)
+                    index = builder.slotOf(sig, bandMinHashes);
+                builder.add(index, id);
+            }
+        });
+        builder.write(out);
+    }
+
+    private void addBuckets(BandBuilder builder, int band, int idOffset) {
+        for (int slot = 0; slot < capacities[band]; slot++) {
+            int count = bucketSize(band, slot);
+            if (count == 0)
+                continue;
+            long sig = region.getLong(keysPos[band] + 8L * slot);
+            int index = builder.slotOf(sig, verify ? bandMinHashes(band, slot) : null);
+            for (int i = 0; i < count; i++)
+                builder.add(index, idOffset + bucketId(band, slot, i));
+        }
+    }
+
+    private int bucketCount(int band) {
+        int count = 0;
+        for (int slot = 0; slot < capacities[band]; slot++) {
+            if (bucketSize(band, slot) > 0)
+                count++;
+        }
+        return count;
+    }
+
+    private long seqLength(int id) {
+        return region.getLong(offsetsPos + 8L * (id + 1)) - region.getLong(offsetsPos + 8L * id);
+    }
+
+    private void forEachBaseCode(int id, BasePacker packer) throws IOException {
+        long start = region.getLong(offsetsPos + 8L * id);
+        long end = region.getLong(offsetsPos + 8L * (id + 1));
+        for (long pos = start; pos < end; pos++)
+            packer.accept((region.get(basesPos + (pos >>> 2)) >>> ((pos & 3L) << 1)) & 3);
+    }
+
+    private static void pad(DataOutputStream out, long bytes) throws IOException {
+        for (long i = 0L; i < bytes; i++)
+            out.writeByte(0);
+    }
+
+    /**
+     * Packs 2-bit base codes into bytes, the first base being the least significant bits of a byte.
+     */
+    private static final class BasePacker {
+        private final DataOutputStream out;
+        private int current;
+        private int count;
+
+        BasePacker(DataOutputStream out) {
+            this.out = out;
+        }
+
+        void accept(int code) throws IOException {
+            current |= code << (count << 1);
+            if (++count == 4) {
+                out.writeByte(current);
+                current = 0;
+                count = 0;
+            }
+        }
+
+        void flush() throws IOException {
+            if (count > 0)
+                out.writeByte(current);
+            current = 0;
+            count = 0;
+        }
+    }
+
+    /**
+     * Builds the open addressing table of a band in memory before it is written.
+     */
+    private static final class BandBuilder {
+        private final int bandSize;
+        private final long[] keys;
+        private final long[][] minHashes;
+        private final int[][] ids;
+        private final int[] counts;
+        private final int mask;
+        private int idsCount;
+
+        BandBuilder(int capacity, int bandSize, boolean verify) {
+            this.bandSize = bandSize;
+            this.keys = new long[capacity];
+            this.minHashes = verify ? new long[capacity][] : null;
+            this.ids = new int[capacity][];
+            this.counts = new int[capacity];
+            this.mask = capacity - 1;
+        }
+
+        int slotOf(long sig, long[] bandMinHashes) {
+            int slot = BandTable.slot(sig, mask);
+            while (ids[slot] != null) {
+                if (keys[slot] == sig && (minHashes == null || Arrays.equals(minHashes[slot], bandMinHashes)))
+                    return slot;
+                slot = (slot + 1) & mask;
+            }
+            keys[slot] = sig;
+            if (minHashes != null)
+                minHashes[slot] = bandMinHashes;
+            ids[slot] = new int[2];
+            return slot;
+        }
+
+        void add(int slot, int id) {
+            if (counts[slot] == ids[slot].length)
+                ids[slot] = Arrays.copyOf(ids[slot], counts[slot] << 1);
+            ids[slot][counts[slot]++] = id;
+            idsCount++;
+        }
+
+        void write(DataOutputStream out) throws IOException {
+            int capacity = keys.length;
+            out.writeInt(capacity);
+            out.writeInt(idsCount);
+            for (long key : keys)
+                out.writeLong(key);
+            int start = 0;
+            for (int count : counts) {
+                out.writeInt(start);
+                start += count;
+            }
+            for (int count : counts)
+                out.writeInt(count);
+            if (minHashes != null) {
+                for (long[] bandMinHashes : minHashes) {
+                    for (int m = 0; m < bandSize; m++)
+                        out.writeLong(bandMinHashes == null ? 0L : bandMinHashes[m]);
+                }
+            }
+            for (int slot = 0; slot < capacity; slot++) {
+                for (int i = 0; i < counts[slot]; i++)
+                    out.writeInt(ids[slot][i]);
+            }
+            pad(out, align8(4L * idsCount) - 4L * idsCount);
+        }
+    }
+
+    /**
+     * A read-only file mapped in chunks of 2^30 bytes, since a single MappedByteBuffer is limited to 2^31 - 1 bytes. All longs and ints in the file are aligned, such that none of them spans two chunks.
+     */
+    private static final class Region {
+        private static final int CHUNK_BITS = 30;
+        private static final long CHUNK_MASK = (1L << CHUNK_BITS) - 1L;
+
+        private final MappedByteBuffer[] chunks;
+
+        Region(FileChannel channel, long size) throws IOException {
+            int count = (int) ((size + CHUNK_MASK) >>> CHUNK_BITS);
+            this.chunks = new MappedByteBuffer[count];
+            for (int i = 0; i < count; i++) {
+                long pos = (long) i << CHUNK_BITS;
+                chunks[i] = channel.map(FileChannel.MapMode.READ_ONLY, pos, Math.min(1L << CHUNK_BITS, size - pos));
+            }
+        }
+
+        long getLong(long pos) {
+            return chunks[(int) (pos >>> CHUNK_BITS)].getLong((int) (pos & CHUNK_MASK));
+        }
+
+        int getInt(long pos) {
+            return chunks[(int) (pos >>> CHUNK_BITS)].getInt((int) (pos & CHUNK_MASK));
+        }
+
+        int get(long pos) {
+            return chunks[(int) (pos >>> CHUNK_BITS)].get((int) (pos & CHUNK_MASK)) & 0xFF;
+        }
+    }
+}
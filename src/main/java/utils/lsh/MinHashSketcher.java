@@ -0,0 +1,129 @@
+package utils.lsh;
+
+import core.Base;
+import core.BaseSequence;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Computes the min-hash sketch of a DNA sequence's k-mers that LSH splits into bands.
+ */
+public interface MinHashSketcher {
+
+    /**
+     * The sketching schemes supported by LSH.
+     */
+    enum Type {
+        /**
+         * One hash function (permutation) per min-hash, i.e., r hash evaluations per k-mer.
+         */
+        PERMUTATIONS,
+
+        /**
+         * One-permutation hashing with densification, i.e., a single hash evaluation per k-mer.
+         */
+        ONE_PERMUTATION;
+
+        /**
+         * @param name the name of the type, e.g., "permutations" or "one_permutation".
+         * @return the type for that name.
+         */
+        public static Type of(String name) {
+            return switch (name.toLowerCase()) {
+                case "permutations"    -> PERMUTATIONS;
+                case "one_permutation" -> ONE_PERMUTATION;
+                default -> throw new RuntimeException("unknown sketch type: " + name);
+            };
+        }
+    }
+
+    /**
+     * @param seq the DNA sequence.
+     * @return the r min-hashes of seq's k-mers.
+     */
+    long[] minHashes(BaseSequence seq);
+
+    /**
+     * Computes the r min-hashes of seq's k-mers together with the second smallest hash of each min-hash. Multi-probe queries replace a min-hash by its second smallest hash to probe neighbouring buckets.
+     * @param seq the DNA sequence.
+     * @param minHashes the array of length r the min-hashes are written to.
+     * @param secondMinHashes the array of length r the second smallest hashes are written to, or Long.MAX_VALUE if there is none.
+     */
+    void minHashes(BaseSequence seq, long[] minHashes, long[] secondMinHashes);
+
+    /**
+     * @return the k-mer length.
+     */
+    int getK();
+
+    /**
+     * @return the number of min-hashes per sketch.
+     */
+    int getR();
+
+    /**
+     * @return the seed of the hash functions. Two sketchers of the same type, k, r, and seed compute the same min-hashes.
+     */
+    long getSeed();
+
+    /**
+     * @return the type of this sketcher.
+     */
+    Type getType();
+
+    /**
+     * Creates a sketcher of the given type.
+     * @param type the sketching scheme.
+     * @param k the k-mer length.
+     * @param r the number of min-hashes per sketch.
+     * @return the sketcher.
+     */
+    static MinHashSketcher newInstance(Type type, int k, int r) {
+        return newInstance(type, k, r, ThreadLocalRandom.current().nextLong());
+    }
+
+    /**
+     * Creates a sketcher of the given type.
+     * @param type the sketching scheme.
+     * @param k the k-mer length.
+     * @param r the number of min-hashes per sketch.
+     * @param seed the seed of the hash functions.
+     * @return the sketcher.
+     */
+    static MinHashSketcher newInstance(Type type, int k, int r, long seed) {
+        return switch (type) {
+            case PERMUTATIONS    -> new PermutationSketcher(k, r, seed);
+            case ONE_PERMUTATION -> new OnePermutationSketcher(k, r, seed);
+        };
+    }
+
+    /**
+     * Computes the base 4 code of each k-mer of a DNA sequence in a single rolling pass. As in <Code>BaseSequence.toBase4()</Code>, the first base of a k-mer is its least significant digit. The codes are exact for k &lt;= 32.
+     * @param seq the DNA sequence.
+     * @param k the k-mer length.
+     * @return the k-mer codes in order of occurrence, or an empty array if seq is shorter than k.
+     */
+    static long[] kmerCodes(BaseSequence seq, int k) {
+        int len = seq.length();
+        if (len < k)
+            return new long[0];
+
+        long[] codes = new long[len - k + 1];
+        int shift = 2 * (k - 1);
+        long code = 0L;
+        for (int i = 0; i < len; i++) {
+            code = (code >>> 2) | (code(seq.get(i)) << shift);
+            if (i >= k - 1)
+                codes[i - k + 1] = code;
+        }
+        return codes;
+    }
+
+    private static long code(Base base) {
+        return switch (base) {
+            case A -> 0L;
+            case C -> 1L;
+            case G -> 2L;
+            case T -> 3L;
+        };
+    }
+}
@@ -0,0 +1,21 @@
+package utils.lsh;
+
+/**
+ * The finalizer of the SplitMix64 generator, which is shared by the hash functions of the LSH and the fingerprints of sequences and keys.
+ */
+public final class Mix {
+
+    private Mix() {
+    }
+
+    /**
+     * Mixes the bits of a 64-bit value. Each bit of the input affects each bit of the output.
+     * @param x the value.
+     * @return the mixed value.
+     */
+    public static long mix64(long x) {
+        x = (x ^ (x >>> 30)) * 0xBF58476D1CE4E5B9L;
+        x = (x ^ (x >>> 27)) * 0x94D049BB133111EBL;
+        return x ^ (x >>> 31);
+    }
+}
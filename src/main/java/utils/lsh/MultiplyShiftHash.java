@@ -0,0 +1,109 @@
+package utils.lsh;
+
+import java.util.SplittableRandom;
+
+/**
+ * A family of r universal hash functions for 64-bit keys based on vector multiply-shift hashing.
+ * The i-th function splits a key x into its 32-bit halves and computes <Code>(a0 * lo(x) + a1 * hi(x) + b) &gt;&gt;&gt; 32</Code> in 64-bit arithmetic, where overflow is part of the scheme (i.e., arithmetic modulo 2^64) rather than an error.
+ * The constants of all functions are laid out in one flat array, such that the constants of a function are adjacent in memory.
+ */
+public class MultiplyShiftHash {
+
+    private static final int STRIDE = 3;
+
+    private final long[] constants;
+    private final int r;
+
+    /**
+     * Creates a family of r hash functions with random constants.
+     * @param r the number of hash functions.
+     * @param seed the seed from which the constants are drawn.
+     */
+    public MultiplyShiftHash(int r, long seed) {
+        if (r <= 0)
+            throw new RuntimeException("r must be > 0");
+        this.r = r;
+        this.constants = new long[STRIDE * r];
+        SplittableRandom rand = new SplittableRandom(seed);
+        for (int i = 0; i < constants.length; i++)
+            constants[i] = rand.nextLong();
+    }
+
+    /**
+     * @param i the index of the hash function.
+     * @param x the key.
+     * @return the 32-bit hash of x under the i-th hash function.
+     */
+    public long hash(int i, long x) {
+        int c = STRIDE * i;
+        return (constants[c] * (x & 0xFFFFFFFFL) + constants[c + 1] * (x >>> 32) + constants[c + 2]) >>> 32;
+    }
+
+    /**
+     * Computes the minimum hash of the given keys under each hash function.
+     * @param keys the keys.
+     * @param minHashes the array of length r the minima are written to. If keys is empty, each minimum is Long.MAX_VALUE.
+     */
+    public void minHashes(long[] keys, long[] minHashes) {
+        int n = keys.length;
+        long a0;
+        long a1;
+        long b;
+        long minHash;
+        long h;
+        for (int i = 0, c = 0; i < r; i++, c += STRIDE) {
+            a0 = constants[c];
+            a1 = constants[c + 1];
+            b = constants[c + 2];
+            minHash = Long.MAX_VALUE;
+            for (int j = 0; j < n; j++) {
+                h = (a0 * (keys[j] & 0xFFFFFFFFL) + a1 * (keys[j] >>> 32) + b) >>> 32;
+                if (h < minHash)
+                    minHash = h;
+            }
+            minHashes[i] = minHash;
+        }
+    }
+
+    /**
+     * Computes the minimum and the second smallest distinct hash of the given keys under each hash function.
+     * @param keys the keys.
+     * @param minHashes the array of length r the minima are written to.
+     * @param secondMinHashes the array of length r the second smallest hashes are written to. If no second distinct hash exists, it is Long.MAX_VALUE.
+     */
+    public void minHashes(long[] keys, long[] minHashes, long[] secondMinHashes) {
+        int n = keys.length;
+        long a0;
+        long a1;
+        long b;
+        long minHash;
+        long secondMinHash;
+        long h;
+        for (int i = 0, c = 0; i < r; i++, c += STRIDE) {
+            a0 = constants[c];
+            a1 = constants[c + 1];
+            b = constants[c + 2];
+            minHash = Long.MAX_VALUE;
+            secondMinHash = Long.MAX_VALUE;
+            for (int j = 0; j < n; j++) {
+                h = (a0 * (keys[j] & 0xFFFFFFFFL) + a1 * (keys[j] >>> 32) + b) >>> 32;
+                if (h < minHash) {
+                    secondMinHash = minHash;
+                    minHash = h;
+                }
+                else if (h > minHash && h < secondMinHash) {
+                    secondMinHash = h;
+                }
+            }
+            minHashes[i] = minHash;
+            secondMinHashes[i] = secondMinHash;
+        }
+    }
+
+    /**
+     * @return the number of hash functions.
+     */
+    public int size() {
+        return r;
+    }
+}
@@ -0,0 +1,128 @@
+package utils.lsh;
+
+import core.BaseSequence;
+import java.util.Arrays;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * One-permutation hashing with densification. Each k-mer is hashed once: the upper bits of the hash select one of r bins and the lower bits are the value compared within that bin.
+ * Bins left empty borrow the minimum of a non-empty bin chosen by a bin-specific probing sequence (optimal densification), such that two DNA sequences agree on a bin with a probability close to their Jaccard similarity.
+ */
+public class OnePermutationSketcher implements MinHashSketcher {
+
+    private static final int MAX_PROBES = 64;
+
+    private final int k;
+    private final int r;
+    private final long seed;
+
+    /**
+     * Creates a OnePermutationSketcher with a random seed.
+     * @param k the k-mer length.
+     * @param r the number of bins.
+     */
+    public OnePermutationSketcher(int k, int r) {
+        this(k, r, ThreadLocalRandom.current().nextLong());
+    }
+
+    /**
+     * Creates a OnePermutationSketcher.
+     * @param k the k-mer length.
+     * @param r the number of bins.
+     * @param seed the seed of the hash function.
+     */
+    public OnePermutationSketcher(int k, int r, long seed) {
+        if (r <= 0)
+            throw new RuntimeException("r must be > 0");
+        this.k = k;
+        this.r = r;
+        this.seed = seed;
+    }
+
+    @Override
+    public long[] minHashes(BaseSequence seq) {
+        long[] minHashes = new long[r];
+        sketch(seq, minHashes, null);
+        return minHashes;
+    }
+
+    @Override
+    public void minHashes(BaseSequence seq, long[] minHashes, long[] secondMinHashes) {
+        sketch(seq, minHashes, secondMinHashes);
+    }
+
+    private void sketch(BaseSequence seq, long[] minHashes, long[] secondMinHashes) {
+        Arrays.fill(minHashes, Long.MAX_VALUE);
+        if (secondMinHashes != null)
+            Arrays.fill(secondMinHashes, Long.MAX_VALUE);
+        long[] shingles = MinHashSketcher.kmerCodes(seq, k);
+        if (shingles.length == 0)
+            return;
+
+        long h;
+        long value;
+        int bin;
+        int filled = 0;
+        for (long shingle : shingles) {
+            h = Mix.mix64(shingle + seed);
+            bin = bin(h);
+            value = h & 0xFFFFFFFFL;
+            if (minHashes[bin] == Long.MAX_VALUE)
+                filled++;
+            if (value < minHashes[bin]) {
+                if (secondMinHashes != null)
+                    secondMinHashes[bin] = minHashes[bin];
+                minHashes[bin] = value;
+            }
+            else if (secondMinHashes != null && value > minHashes[bin] && value < secondMinHashes[bin]) {
+                secondMinHashes[bin] = value;
+            }
+        }
+        if (filled < r)
+            densify(minHashes, secondMinHashes);
+    }
+
+    private void densify(long[] minHashes, long[] secondMinHashes) {
+        long[] sparse = minHashes.clone();
+        int donor;
+        for (int i = 0; i < r; i++) {
+            if (sparse[i] != Long.MAX_VALUE)
+                continue;
+            long probe = Mix.mix64(seed ^ ((long) i << 32));
+            for (int attempt = 0; ; attempt++) {
+                probe = Mix.mix64(probe + attempt);
+                donor = attempt < MAX_PROBES ? bin(probe) : (i + attempt - MAX_PROBES + 1) % r;
+                if (sparse[donor] != Long.MAX_VALUE) {
+                    minHashes[i] = sparse[donor];
+                    if (secondMinHashes != null)
+                        secondMinHashes[i] = secondMinHashes[donor];
+                    break;
+                }
+            }
+        }
+    }
+
+    private int bin(long h) {
+        return (int) (((h >>> 32) * r) >>> 32);
+    }
+
+    @Override
+    public int getK() {
+        return k;
+    }
+
+    @Override
+    public int getR() {
+        return r;
+    }
+
+    @Override
+    public long getSeed() {
+        return seed;
+    }
+
+    @Override
+    public Type getType() {
+        return Type.ONE_PERMUTATION;
+    }
+}
@@ -0,0 +1,67 @@
+package utils.lsh;
+
+import core.BaseSequence;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * The classic min-hash sketch: each of the r min-hashes is the minimum of a separate hash function over the k-mers.
+ */
+public class PermutationSketcher implements MinHashSketcher {
+
+    private final int k;
+    private final long seed;
+    private final MultiplyShiftHash hashes;
+
+    /**
+     * Creates a PermutationSketcher with r random hash functions.
+     * @param k the k-mer length.
+     * @param r the number of hash functions.
+     */
+    public PermutationSketcher(int k, int r) {
+        this(k, r, ThreadLocalRandom.current().nextLong());
+    }
+
+    /**
+     * Creates a PermutationSketcher.
+     * @param k the k-mer length.
+     * @param r the number of hash functions.
+     * @param seed the seed of the hash functions.
+     */
+    public PermutationSketcher(int k, int r, long seed) {
+        this.k = k;
+        this.seed = seed;
+        this.hashes = new MultiplyShiftHash(r, seed);
+    }
+
+    @Override
+    public long[] minHashes(BaseSequence seq) {
+        long[] minHashes = new long[hashes.size()];
+        hashes.minHashes(MinHashSketcher.kmerCodes(seq, k), minHashes);
+        return minHashes;
+    }
+
+    @Override
+    public void minHashes(BaseSequence seq, long[] minHashes, long[] secondMinHashes) {
+        hashes.minHashes(MinHashSketcher.kmerCodes(seq, k), minHashes, secondMinHashes);
+    }
+
+    @Override
+    public int getK() {
+        return k;
+    }
+
+    @Override
+    public int getR() {
+        return hashes.size();
+    }
+
+    @Override
+    public long getSeed() {
+        return seed;
+    }
+
+    @Override
+    public Type getType() {
+        return Type.PERMUTATIONS;
+    }
+}
@@ -0,0 +1,148 @@
+package utils.lsh;
+
+import core.Base;
+import core.BaseSequence;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A thread-safe, append-only store that assigns dense int ids to DNA sequences and keeps a 64-bit fingerprint for each of them.
+ * The sequences are stored in fixed-size chunks, such that growing the store never copies existing entries.
+ */
+public class SequenceStore {
+
+    private static final int CHUNK_BITS = 12;
+    private static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+    private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+
+    private final AtomicInteger nextId;
+    private volatile Chunk[] chunks;
+
+    /**
+     * Creates an empty SequenceStore.
+     */
+    public SequenceStore() {
+        this.nextId = new AtomicInteger();
+        this.chunks = new Chunk[1];
+    }
+
+    /**
+     * Adds a DNA sequence to this store. This method is thread-safe.
+     * @param seq the DNA sequence.
+     * @return the id of seq.
+     */
+    public int add(BaseSequence seq) {
+        return add(seq, fingerprint(seq));
+    }
+
+    /**
+     * Adds a DNA sequence with a known fingerprint to this store. This method is thread-safe.
+     * @param seq the DNA sequence.
+     * @param fingerprint the fingerprint of seq.
+     * @return the id of seq.
+     */
+    public int add(BaseSequence seq, long fingerprint) {
+        int id = nextId.getAndIncrement();
+        if (id < 0)
+            throw new RuntimeException("the SequenceStore is full");
+
+        Chunk chunk = chunk(id >>> CHUNK_BITS);
+        int i = id & CHUNK_MASK;
+        chunk.fingerprints[i] = fingerprint;
+        chunk.seqs[i] = seq;
+        return id;
+    }
+
+    /**
+     * Stores a DNA sequence under a given id, replacing the DNA sequence previously stored under that id. Unlike <Code>add</Code>, this method does not assign ids, and the caller must ensure that the same id is not set concurrently.
+     * @param id the id.
+     * @param seq the DNA sequence.
+     * @param fingerprint the fingerprint of seq.
+     */
+    public void set(int id, BaseSequence seq, long fingerprint) {
+        Chunk chunk = chunk(id >>> CHUNK_BITS);
+        int i = id & CHUNK_MASK;
+        chunk.fingerprints[i] = fingerprint;
+        chunk.seqs[i] = seq;
+    }
+
+    /**
+     * Removes the DNA sequence of a given id, such that it can be garbage collected.
+     * @param id the id.
+     */
+    public void remove(int id) {
+        Chunk[] current = chunks;
+        int index = id >>> CHUNK_BITS;
+        if (index < current.length && current[index] != null)
+            current[index].seqs[id & CHUNK_MASK] = null;
+    }
+
+    /**
+     * Returns the DNA sequence of a given id. The id must have been published safely, e.g., by a BandTable, to the calling thread.
+     * @param id the id.
+     * @return the DNA sequence.
+     */
+    public BaseSequence get(int id) {
+        return chunks[id >>> CHUNK_BITS].seqs[id & CHUNK_MASK];
+    }
+
+    /**
+     * @param id the id.
+     * @return true if a DNA sequence is stored under id, and false otherwise.
+     */
+    public boolean contains(int id) {
+        Chunk[] current = chunks;
+        int index = id >>> CHUNK_BITS;
+        return index < current.length && current[index] != null && current[index].seqs[id & CHUNK_MASK] != null;
+    }
+
+    /**
+     * Returns the fingerprint of a given id. The id must have been published safely, e.g., by a BandTable, to the calling thread.
+     * @param id the id.
+     * @return the fingerprint.
+     */
+    public long getFingerprint(int id) {
+        return chunks[id >>> CHUNK_BITS].fingerprints[id & CHUNK_MASK];
+    }
+
+    /**
+     * @return the number of ids assigned so far.
+     */
+    public int size() {
+        return nextId.get();
+    }
+
+    /**
+     * Computes the 64-bit fingerprint of a DNA sequence. Equal DNA sequences have equal fingerprints.
+     * @param seq the DNA sequence.
+     * @return the fingerprint.
+     */
+    public static long fingerprint(BaseSequence seq) {
+        long h = seq.length();
+        for (Base base : seq)
+            h = h * 0x9E3779B97F4A7C15L + base.ordinal() + 1;
+
+        return Mix.mix64(h);
+    }
+
+    private Chunk chunk(int index) {
+        Chunk[] current = chunks;
+        if (index < current.length && current[index] != null)
+            return current[index];
+
+        synchronized (this) {
+            current = chunks;
+            if (index >= current.length)
+                current = Arrays.copyOf(current, Math.max(index + 1, current.length << 1));
+            if (current[index] == null)
+                current[index] = new Chunk();
+            chunks = current;
+            return current[index];
+        }
+    }
+
+    private static final class Chunk {
+        final BaseSequence[] seqs = new BaseSequence[CHUNK_SIZE];
+        final long[] fingerprints = new long[CHUNK_SIZE];
+    }
+}
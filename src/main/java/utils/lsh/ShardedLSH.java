@@ -0,0 +1,137 @@
+package utils.lsh;
+
+import core.BaseSequence;
+import java.util.*;
+import java.util.function.Consumer;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+/**
+ * An LSH split into shards that partition the DNA sequences by their fingerprints. All shards share the same hash functions, such that a query is sketched once and then fans out over the shards.
+ * During bulk loads, each worker owns one shard, and within a shard each worker owns a subset of the bands. Since the shards are ordinary LSH instances, they can also be built in separate processes: create an LSH with the same seed (or open an empty index saved by one process with <Code>LSH.open</Code>) in each process, insert, save each shard, and either open the shards with <Code>ShardedLSH.open</Code> or merge them into a single index with <Code>LSH.merge</Code>.
+ * This class is thread-safe.
+ */
+public class ShardedLSH {
+
+    private final LSH[] shards;
+
+    /**
+     * Creates a ShardedLSH of empty shards that use the hash functions of a given LSH instance.
+     * @param prototype the LSH instance whose parameters and hash functions are used. Its DNA sequences are not copied.
+     * @param count the number of shards.
+     */
+    public ShardedLSH(LSH prototype, int count) {
+        this(Stream.generate(prototype::emptyCopy).limit(count).toArray(LSH[]::new));
+    }
+
+    /**
+     * Creates a ShardedLSH from existing shards.
+     * @param shards the shards. They must use the same hash functions and the same number of bands.
+     */
+    public ShardedLSH(LSH... shards) {
+        if (shards.length == 0)
+            throw new RuntimeException("a ShardedLSH requires at least one shard");
+        MinHashSketcher sketcher = shards[0].getSketcher();
+        for (LSH shard : shards) {
+            MinHashSketcher other = shard.getSketcher();
+            if (other.getType() != sketcher.getType() || other.getK() != sketcher.getK() || other.getR() != sketcher.getR() || other.getSeed() != sketcher.getSeed() || shard.getB() != shards[0].getB())
+                throw new RuntimeException("the shards of a ShardedLSH must use the same hash functions and bands");
+        }
+        this.shards = shards;
+    }
+
+    /**
+     * Opens LSH index files as the shards of a ShardedLSH.
+     * @param paths the paths of the index files.
+     * @return the ShardedLSH.
+     */
+    public static ShardedLSH open(String... paths) {
+        return new ShardedLSH(Arrays.stream(paths).map(LSH::open).toArray(LSH[]::new));
+    }
+
+    /**
+     * Inserts a DNA sequence into its shard. This method is thread-safe.
+     * @param seq the DNA sequence.
+     */
+    public void insert(BaseSequence seq) {
+        shards[shardOf(seq)].insertSafe(seq);
+    }
+
+    /**
+     * Partitions a list of DNA sequences by shard and bulk-loads the shards in parallel.
+     * @param seqs the DNA sequences to insert.
+     */
+    public void insertBulk(List<BaseSequence> seqs) {
+        List<List<BaseSequence>> partitions = Stream.generate(() -> (List<BaseSequence>) new ArrayList<BaseSequence>()).limit(shards.length).toList();
+        for (BaseSequence seq : seqs)
+            partitions.get(shardOf(seq)).add(seq);
+
+        IntStream.range(0, shards.length).parallel().forEach(i -> shards[i].insertBulk(partitions.get(i)));
+    }
+
+    /**
+     * Passes each similar DNA sequence of each shard to the given action. Since the shards partition the DNA sequences, each match is passed once.
+     * @param seq the input DNA sequence.
+     * @param probes the number of additional buckets to probe per band.
+     * @param action the action to perform on each match.
+     * @return the number of matches.
+     */
+    public int forEachSimilarSeq(BaseSequence seq, int probes, Consumer<BaseSequence> action) {
+        MinHashSketcher sketcher = shards[0].getSketcher();
+        long[] minHashes = new long[sketcher.getR()];
+        long[] secondMinHashes = null;
+        if (probes > 0) {
+            secondMinHashes = new long[minHashes.length];
+            sketcher.minHashes(seq, minHashes, secondMinHashes);
+        }
+        else {
+            minHashes = sketcher.minHashes(seq);
+        }
+
+        int count = 0;
+        for (LSH shard : shards)
+            count += shard.forEachSimilarId(minHashes, secondMinHashes, Integer.MAX_VALUE, probes, id -> action.accept(shard.getSeq(id)));
+
+        return count;
+    }
+
+    /**
+     * @param seq the input DNA sequence.
+     * @return the set of similar DNA sequences of all shards.
+     */
+    public Set<BaseSequence> similarSeqs(BaseSequence seq) {
+        Set<BaseSequence> result = new HashSet<>();
+        forEachSimilarSeq(seq, shards[0].getProbes(), result::add);
+        return result;
+    }
+
+    /**
+     * @param i the index of the shard.
+     * @return the i-th shard.
+     */
+    public LSH getShard(int i) {
+        return shards[i];
+    }
+
+    /**
+     * @return the number of shards.
+     */
+    public int getShardCount() {
+        return shards.length;
+    }
+
+    /**
+     * @return the number of DNA sequences in all shards.
+     */
+    public long size() {
+        long size = 0L;
+        for (LSH shard : shards)
+            size += shard.size();
+
+        return size;
+    }
+
+    private int shardOf(BaseSequence seq) {
+        return (int) Long.remainderUnsigned(SequenceStore.fingerprint(seq), shards.length);
+    }
+}
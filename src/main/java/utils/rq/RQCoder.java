@@ -155,22 +155,6 @@ public class RQCoder implements DNACoder<byte[]> {
         return new BaseSequence(header, encodedStrand.combinedPackets);
     }
 
-    /**
-     * Decode the outer header to generate its RichEncodedStrand
-     * @param finalizedStrand A DNA sequence containing an outer header, assembled with finalizeStrand()
-     */
-    private RichEncodedStrand deFinalizeStrand(BaseSequence finalizedStrand) {
-        long[] outerHeader = DNAPacker.unpack(finalizedStrand, 2);
-        int numBytes = (int) outerHeader[0];
-        int symbolSize = (int) outerHeader[1];
-
-        return new RichEncodedStrand(
-                numBytes,
-                symbolSize,
-                finalizedStrand.window(DNAPacker.getPackedLength(finalizedStrand, 2))
-        );
-    }
-
     private StrandAssemblyResult combinePackets(SourceBlockDecoder decoder, List<Pair<EncodingPacket, BaseSequence>> packets, int[] order, int numBytes, int symbolSize) {
         BaseSequence strand = new BaseSequence();
         Pair<EncodingPacket, BaseSequence> p;
@@ -190,25 +174,23 @@ public class RQCoder implements DNACoder<byte[]> {
         return StrandAssemblyResult.notDecodable(decoder.missingSourceSymbols().size());
     }
 
+    /**
+     * Decodes a DNA sequence assembled with finalizeStrand() in a single pass: the outer header and the packets are read by one cursor.
+     * @param seq the DNA sequence.
+     * @return the decoded bytes.
+     */
     @Override
     public byte[] decode(BaseSequence seq) {
-        RichEncodedStrand encodedStrand = deFinalizeStrand(seq);
-        BaseSequence packetBases = encodedStrand.combinedPackets;
-        var decoder = OpenRQ.newDecoder(FECParameters.newParameters(encodedStrand.numBytes, encodedStrand.symbolSize, NUM_SOURCE_BLOCKS), packetsOverhead);
-        int index = 0;
+        DNAPacker.Cursor cursor = new DNAPacker.Cursor(seq);
+        int numBytes = (int) cursor.next();
+        int symbolSize = (int) cursor.next();
+        var decoder = OpenRQ.newDecoder(FECParameters.newParameters(numBytes, symbolSize, NUM_SOURCE_BLOCKS), packetsOverhead);
 
         SourceBlockDecoder blockDecoder = decoder.sourceBlock(0);
-        while(index <= packetBases.length()) {
+        while(cursor.hasNext()) {
             // If the symbol size is 2 but the length of the byte array % 2 == 1,
             // the last packet will only contain one byte (rather than two) in the payload
-            EncodingPacket decodedPacket = decodePacket(packetBases.window(index), encodedStrand.symbolSize, decoder);
-            int headerLength = encodedStrand.symbolSize != decodedPacket.symbolsLength() ? 2 : 1;
-
-            index += 1 + DNAPacker.getPackedLength(
-                    packetBases.window(index + 1),
-                    headerLength + decodedPacket.symbolsLength()
-            );
-
+            EncodingPacket decodedPacket = decodePacket(cursor, symbolSize, decoder);
             blockDecoder.putEncodingPacket(decodedPacket);
             if (decoder.isDataDecoded())
                 return decoder.dataArray();
@@ -239,24 +221,20 @@ public class RQCoder implements DNACoder<byte[]> {
         return new BaseSequence(customSymbolLen ? CUSTOM_SYMBOL_SEQ : COPY_SYMBOL_SEQ, packetSeq);
     }
 
-    private EncodingPacket decodePacket(BaseSequence packetBases, int originalSymbolLen, ArrayDataDecoder decoder) {
-        var customSymbolLen = packetBases.get(0) == CUSTOM_SYMBOL_BASE;
-        int headerLength = customSymbolLen ? 2 : 1;
-        var header = DNAPacker.unpack(packetBases.window(1), headerLength);
-
-        int fecId = (int) header[0];
-        int symbolsLength = customSymbolLen ? (int) header[1] : originalSymbolLen;
-
-        var unpacked = DNAPacker.unpack(packetBases.window(1), headerLength + symbolsLength);
-        var payload = new byte[symbolsLength];
-        for (int i = 0; i < symbolsLength; i++) {
-            payload[i] = (byte) unpacked[i + headerLength];
-        }
+    /**
+     * Decodes the packet at the position of a cursor and advances the cursor past it.
+     */
+    private EncodingPacket decodePacket(DNAPacker.Cursor cursor, int originalSymbolLen, ArrayDataDecoder decoder) {
+        var customSymbolLen = cursor.nextBase() == CUSTOM_SYMBOL_BASE;
+        int fecId = (int) cursor.next();
+        int symbolsLength = customSymbolLen ? (int) cursor.next() : originalSymbolLen;
 
         var payloadBuffer = ByteBuffer.allocate(TWO_INTS_BYTES + symbolsLength);
         payloadBuffer.putInt(fecId);
         payloadBuffer.putInt(symbolsLength);
-        payloadBuffer.put(payload);
+        for (int i = 0; i < symbolsLength; i++)
+            payloadBuffer.put((byte) cursor.next());
+
         return decoder.parsePacket(payloadBuffer.array(), false).value();
     }
 